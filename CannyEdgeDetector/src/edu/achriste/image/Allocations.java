@@ -0,0 +1,83 @@
+package edu.achriste.image;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Counts the bytes allocated by the calling thread, for checking that code which is meant to reuse its buffers really
+ * does stop allocating. Counting relies on the HotSpot extension of ThreadMXBean, and is not available on every JVM.
+ * @author Anthony Christe
+ */
+class Allocations {
+  /**
+   * The HotSpot thread bean, or null if allocations cannot be counted.
+   */
+  private static final com.sun.management.ThreadMXBean THREADS = getThreads();
+
+  /**
+   * The bytes that reading the counter twice in a row reports, which is allocated by the counter itself.
+   */
+  private static final long OVERHEAD = getOverhead();
+
+  /**
+   * Returns the HotSpot thread bean if allocation counting is available and turned on.
+   * @return The HotSpot thread bean, or null.
+   */
+  private static com.sun.management.ThreadMXBean getThreads() {
+    try {
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      if (threads instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean hotSpot = (com.sun.management.ThreadMXBean) threads;
+        if (hotSpot.isThreadAllocatedMemorySupported()) {
+          hotSpot.setThreadAllocatedMemoryEnabled(true);
+          return hotSpot;
+        }
+      }
+    }
+    catch (LinkageError e) {
+      // The HotSpot extension is not part of this JVM.
+    }
+    catch (UnsupportedOperationException e) {
+      // Counting cannot be turned on.
+    }
+    return null;
+  }
+
+  /**
+   * Measures how many bytes reading the counter allocates, so that it can be left out of the counts.
+   * @return The smallest difference seen between two back to back reads.
+   */
+  private static long getOverhead() {
+    if (THREADS == null) {
+      return 0;
+    }
+    long overhead = Long.MAX_VALUE;
+    for (int i = 0; i < 16; i++) {
+      long before = getThreadAllocatedBytes();
+      long after = getThreadAllocatedBytes();
+      overhead = Math.min(overhead, after - before);
+    }
+    return overhead;
+  }
+
+  /**
+   * Returns the total number of bytes allocated so far by the calling thread.
+   * @return The number of bytes allocated, or -1 if allocations cannot be counted.
+   */
+  static long getThreadAllocatedBytes() {
+    if (THREADS == null) {
+      return -1;
+    }
+    return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Returns the bytes allocated between two reads of getThreadAllocatedBytes, leaving out what the reads allocated.
+   * @param before The first read.
+   * @param after The second read.
+   * @return The number of bytes allocated in between.
+   */
+  static long since(long before, long after) {
+    return Math.max(0, after - before - OVERHEAD);
+  }
+}
@@ -0,0 +1,218 @@
+package edu.achriste.image;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Approximates a Gaussian blur with a stack of box filters, whose cost per pixel does not depend on sigma.
+ * Each box filter is run with a running sum along the rows and then along the columns, so every pass costs one add and
+ * one subtract per pixel no matter how wide the box is. Stacking three boxes gives a close, smooth approximation of a
+ * Gaussian. The box widths are chosen so that the stack has the same variance as the kernel being approximated.
+ *
+ * As with Convolution, values outside of the plane are read through one of its border policies, without a padded copy.
+ * @author Anthony Christe
+ */
+class BoxBlur {
+  /**
+   * The number of box filters stacked along each direction.
+   */
+  static final int BOXES = 3;
+
+  /**
+   * Running sums for a band of columns, kept per thread so that the column passes do not allocate once they have grown.
+   */
+  private static final ThreadLocal<double[]> COLUMN_SUMS = new ThreadLocal<double[]>() {
+    @Override
+    protected double[] initialValue() {
+      return new double[0];
+    }
+  };
+
+  /**
+   * Returns the widths of the stacked boxes that together have the given variance.
+   * Following Kovesi, the boxes are all either the largest odd width that is not too wide or the next odd width up,
+   * mixed so that the total variance is as close to the target as whole widths allow.
+   * @param variance The variance of the blur, in pixels squared.
+   * @return BOXES odd widths, each at least 1.
+   */
+  static int[] getWidths(double variance) {
+    double ideal = Math.sqrt(12 * variance / BOXES + 1);
+    int lower = (int) Math.floor(ideal);
+    if (lower % 2 == 0) {
+      lower--;
+    }
+    lower = Math.max(1, lower);
+    int upper = lower + 2;
+
+    // A box of width w has variance (w^2 - 1) / 12, so choose how many of the boxes are the lower width.
+    double lowerCount = (BOXES * (upper * upper - 1) - 12 * variance) / (upper * upper - lower * lower);
+    int count = (int) Math.max(0, Math.min(BOXES, Math.round(lowerCount)));
+
+    int[] widths = new int[BOXES];
+    for (int i = 0; i < BOXES; i++) {
+      widths[i] = i < count ? lower : upper;
+    }
+    return widths;
+  }
+
+  /**
+   * Blurs a plane with the stacked boxes along its rows and then along its columns.
+   * @param src The plane to blur. It is not changed.
+   * @param dst The plane to store the result in.
+   * @param tmp Scratch plane of the same size.
+   * @param width The width of the planes.
+   * @param height The height of the planes.
+   * @param widths The widths of the boxes, from getWidths.
+   * @param pool The pool to run on, or null to run on the calling thread.
+   * @param border One of the BORDER constants of Convolution.
+   */
+  static void blur(float[] src, float[] dst, float[] tmp, int width, int height, int[] widths, ForkJoinPool pool,
+                   int border) {
+    // Passes alternate between the two planes so that the last one lands in dst.
+    runPass(src, tmp, width, height, true, widths[0], pool, border);
+    runPass(tmp, dst, width, height, true, widths[1], pool, border);
+    runPass(dst, tmp, width, height, true, widths[2], pool, border);
+    runPass(tmp, dst, width, height, false, widths[0], pool, border);
+    runPass(dst, tmp, width, height, false, widths[1], pool, border);
+    runPass(tmp, dst, width, height, false, widths[2], pool, border);
+  }
+
+  /**
+   * Runs one box filter over a whole plane, split into bands of rows or columns across the pool if there is one.
+   * @param src The plane to blur.
+   * @param dst The plane to store the result in.
+   * @param width The width of the planes.
+   * @param height The height of the planes.
+   * @param rows Whether to run the box along the rows, split into bands of rows, or along the columns, split into bands
+   *             of columns.
+   * @param boxWidth The width of the box.
+   * @param pool The pool to run on, or null to run on the calling thread.
+   * @param border One of the BORDER constants of Convolution.
+   */
+  private static void runPass(final float[] src, final float[] dst, final int width, final int height,
+                              final boolean rows, final int boxWidth, ForkJoinPool pool, final int border) {
+    final int rowBorder = Convolution.getRowBorder(border);
+    final int columnBorder = Convolution.getColumnBorder(border);
+    if (pool == null) {
+      if (rows) {
+        blurRows(src, dst, width, 0, height, boxWidth, rowBorder);
+      }
+      else {
+        blurColumns(src, dst, width, height, 0, width, boxWidth, columnBorder);
+      }
+      return;
+    }
+
+    RowBands.run(pool, rows ? height : width, new RowBands.Task() {
+      @Override
+      public void run(int band, int start, int end) {
+        if (rows) {
+          blurRows(src, dst, width, start, end, boxWidth, rowBorder);
+        }
+        else {
+          blurColumns(src, dst, width, height, start, end, boxWidth, columnBorder);
+        }
+      }
+    });
+  }
+
+  /**
+   * Runs a box filter along rows start through end - 1.
+   * @param src The plane to blur.
+   * @param dst The plane to store the result in.
+   * @param width The width of the planes.
+   * @param start The first row.
+   * @param end One past the last row.
+   * @param boxWidth The odd width of the box.
+   * @param border One of the BORDER constants of Convolution, with the flags from getRowBorder.
+   */
+  private static void blurRows(float[] src, float[] dst, int width, int start, int end, int boxWidth, int border) {
+    int radius = boxWidth / 2;
+    double scale = 1.0 / boxWidth;
+
+    for (int r = start; r < end; r++) {
+      int row = r * width;
+      // Start with the window [-radius - 1, radius - 1], so the first step slides it onto [-radius, radius].
+      double sum = 0;
+      for (int c = -radius - 1; c < radius; c++) {
+        int i = Convolution.getBorderIndex(c, width, border);
+        if (i >= 0) {
+          sum += src[row + i];
+        }
+      }
+      for (int c = 0; c < width; c++) {
+        // Slide the window [c - radius, c + radius] along the row. Values past the ends of the row are only looked up
+        // through the border policy near the ends.
+        if (c + radius < width) {
+          sum += src[row + c + radius];
+        }
+        else if (border != Convolution.BORDER_ZERO) {
+          int i = Convolution.getBorderIndex(c + radius, width, border);
+          sum += i >= 0 ? src[row + i] : 0;
+        }
+        if (c - radius - 1 >= 0) {
+          sum -= src[row + c - radius - 1];
+        }
+        else if (border != Convolution.BORDER_ZERO) {
+          int i = Convolution.getBorderIndex(c - radius - 1, width, border);
+          sum -= i >= 0 ? src[row + i] : 0;
+        }
+        dst[row + c] = (float) (sum * scale);
+      }
+    }
+  }
+
+  /**
+   * Runs a box filter along columns start through end - 1, sweeping down the rows so that memory is read in order.
+   * @param src The plane to blur.
+   * @param dst The plane to store the result in.
+   * @param width The width of the planes.
+   * @param height The height of the planes.
+   * @param start The first column.
+   * @param end One past the last column.
+   * @param boxWidth The odd width of the box.
+   * @param border One of the BORDER constants of Convolution, with the flags from getColumnBorder.
+   */
+  private static void blurColumns(float[] src, float[] dst, int width, int height, int start, int end, int boxWidth,
+                                  int border) {
+    int radius = boxWidth / 2;
+    double scale = 1.0 / boxWidth;
+    int columns = end - start;
+
+    double[] sums = COLUMN_SUMS.get();
+    if (sums.length < columns) {
+      sums = new double[width];
+      COLUMN_SUMS.set(sums);
+    }
+    for (int c = 0; c < columns; c++) {
+      sums[c] = 0;
+    }
+    for (int r = -radius - 1; r < radius; r++) {
+      int i = Convolution.getBorderIndex(r, height, border);
+      if (i >= 0) {
+        for (int c = 0; c < columns; c++) {
+          sums[c] += src[i * width + start + c];
+        }
+      }
+    }
+
+    for (int r = 0; r < height; r++) {
+      // Slide the window [r - radius, r + radius] down every column at once.
+      int added = Convolution.getBorderIndex(r + radius, height, border);
+      if (added >= 0) {
+        for (int c = 0; c < columns; c++) {
+          sums[c] += src[added * width + start + c];
+        }
+      }
+      int removed = Convolution.getBorderIndex(r - radius - 1, height, border);
+      if (removed >= 0) {
+        for (int c = 0; c < columns; c++) {
+          sums[c] -= src[removed * width + start + c];
+        }
+      }
+      int row = r * width + start;
+      for (int c = 0; c < columns; c++) {
+        dst[row + c] = (float) (sums[c] * scale);
+      }
+    }
+  }
+}
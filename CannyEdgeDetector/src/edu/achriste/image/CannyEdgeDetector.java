@@ -2,6 +2,8 @@ package edu.achriste.image;
 
 import org.apache.commons.math3.analysis.function.Gaussian;
 
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -11,41 +13,224 @@ import java.util.Map;
  */
 public class CannyEdgeDetector {
   /**
-   * The original image.
+   * The original image, or null if the last frame was given as a plane.
    */
   private EditableImage image;
 
+  /**
+   * The settings to use during detection.
+   */
+  private CannySettings settings;
+
   /**
    * Sigma value to use during detection.
    */
   private double sigma;
 
   /**
-   * Stores gradient values at pixel location r, c.
-   * The third dimension (depth) of the array stores different gradient values.
-   * At depth = 0, the gradient in the x-direction is stored.
-   * At depth = 1, the gradient in the y-direction is stored.
-   * At depth = 2, the gradient strength is stored.
-   * At depth = 3, the normalized (between 0 - 1) gradient strength is stored.
-   * At depth = 4, the rounded (to 0, 45, 90, 135) angle is stored.
-   * At depth = 5, the hysteresis matrix is constructed and stored.
+   * How values outside of the image are read, which is the border policy of the settings unless it has been set for
+   * a plane cut out of a larger image.
+   */
+  private int border;
+
+  // Dimensions of the image. Every plane below stores the value for pixel r, c at index r * width + c.
+  private int width;
+  private int height;
+
+  /**
+   * The single dimensional separated Gaussian kernel for this sigma.
+   */
+  private double[] kernel;
+
+  /**
+   * The widths of the stacked box filters that stand in for the kernel when blurring with BLUR_BOXES, or null.
+   */
+  private int[] boxWidths;
+
+  /**
+   * The original image after it has been blurred by the Gaussian filter.
+   */
+  private float[] blurred;
+
+  // Gradient in the x-direction, gradient in the y-direction, and gradient strength for each pixel.
+  private float[] gradientX;
+  private float[] gradientY;
+  private float[] strength;
+
+  /**
+   * Stores the rounded gradient direction for each pixel as one of the DIRECTION constants.
+   * Pixels removed by non-maximum suppression also have the SUPPRESSED bit set.
+   */
+  private byte[] direction;
+
+  // Constants for the direction plane. The angles 0, 45, 90, and 135 are stored as 0, 1, 2, and 3.
+  static final byte DIRECTION_0 = 0;
+  static final byte DIRECTION_45 = 1;
+  static final byte DIRECTION_90 = 2;
+  static final byte DIRECTION_135 = 3;
+  static final byte DIRECTION_MASK = 3;
+  static final byte SUPPRESSED = 4;
+
+  /**
+   * Stores the hysteresis matrix as one of the EDGE constants for each pixel.
+   */
+  private byte[] hysteresis;
+
+  /**
+   * The part of the image that edges can be traced through, or null for the whole image.
+   */
+  private Rectangle traceWindow;
+
+  // Constants for the hysteresis plane.
+  static final byte EDGE_UNVISITED = 0;
+  static final byte EDGE_NONE = 1;
+  static final byte EDGE_WEAK = 2;
+  static final byte EDGE_STRONG = 3;
+
+  /**
+   * Scratch stack used while tracing hysteresis on the calling thread.
+   */
+  private IntStack stack;
+
+  /**
+   * Scratch plane used by the convolutions on the calling thread.
+   */
+  private float[] scratch;
+
+  // Planes that frames are read into when this detector is reused.
+  private float[] source;
+  private GrayscaleImage levels;
+
+  /**
+   * The min and max gradient values found by each band, kept so they can be reused for every frame.
+   */
+  private GradientLimits[] bandLimits;
+
+  /**
+   * The histogram of the gradient strengths that survive non-maximum suppression in each band, or null if the
+   * thresholds are not chosen automatically. The histograms of the other bands are merged into the first one.
+   */
+  private GradientHistogram[] bandHistograms;
+
+  /**
+   * For each DIRECTION constant, the offset in the planes from a pixel to one of the two neighbors it is compared with
+   * during non-maximum suppression. The other neighbor is at the negative offset.
+   */
+  private int[] neighborOffsets;
+
+  // The work done over each band of rows, kept so they can be reused for every frame.
+  private RowBands.Task strengthTask;
+  private RowBands.Task suppressionTask;
+  private RowBands.Task thresholdTask;
+  private RowBands.Runner strengthBands;
+  private RowBands.Runner suppressionBands;
+  private RowBands.Runner thresholdBands;
+
+  // The band convolution and tracer used with a pool, created the first time they are needed and then reused.
+  private Convolution.BandConvolution bandConvolution;
+  private Hysteresis.BandTracer bandTracer;
+
+  /**
+   * Whether this detector is bound to a frame size and reused for many frames.
+   */
+  private boolean reusable;
+
+  /**
+   * The last frame given to detectChanges, or null if it has not been called.
+   */
+  private float[] previous;
+
+  /**
+   * Whether the last frame was run through detectChanges, so that previous, tileLimits, and the histogram of the first
+   * band describe it.
    */
-  private double[][][] gradients;
+  private boolean tracking;
 
-  // Constants for depth-dimension of gradients array.
-  private final int GRADIENT_X = 0;
-  private final int GRADIENT_Y = 1;
-  private final int GRADIENT_STRENGTH = 2;
-  private final int GRADIENT_STRENGTH_NORM = 3;
-  private final int GRADIENT_DIRECTION = 4;
-  private final int HYSTERESIS = 5;
+  // The tiles that changed since the last frame, and the tiles each step must compute again because of them.
+  private DirtyTiles changedTiles;
+  private DirtyTiles blurTiles;
+  private DirtyTiles gradientTiles;
+  private DirtyTiles suppressionTiles;
 
   /**
-   * Once the edge detection steps are done, the resulting images are stored in this image map.
-   * This image map is the only way to get the resulting images from the detector.
+   * The min and max gradient values found in each tile, kept so that only the tiles that changed have to be scanned.
+   */
+  private GradientLimits[] tileLimits;
+
+  /**
+   * The min and max gradient values of the whole frame, merged from the limits of every tile.
+   */
+  private GradientLimits frameLimits;
+
+  /**
+   * Marks the pixels gathered into components to trace again, and the list of those pixels.
+   */
+  private boolean[] gathered;
+  private IntStack component;
+
+  // The work done over each run of dirty tiles by detectChanges.
+  private DirtyTiles.Task blurTileTask;
+  private DirtyTiles.Task uncountTileTask;
+  private DirtyTiles.Task gradientTileTask;
+  private DirtyTiles.Task suppressionTileTask;
+  private DirtyTiles.Task thresholdTileTask;
+  private DirtyTiles.Task gatherTileTask;
+
+  /**
+   * Whether the suppression of the tiles counts their surviving strengths in the histogram, or the whole frame is
+   * counted again afterwards.
+   */
+  private boolean countTiles;
+
+  /**
+   * Reports the time taken by each step to the settings' stage listener, if there is one.
+   */
+  private StageTimer timer;
+
+  /**
+   * The number of bytes allocated on the calling thread during the last call to detect, or -1 if unknown.
+   */
+  private long allocatedBytes;
+
+  // Min and max gradient values, kept so that the normalized images can be rendered on request.
+  private double minX;
+  private double maxX;
+  private double minY;
+  private double maxY;
+  private double minStrength;
+  private double maxStrength;
+
+  // The gradient strengths that normalized strengths of 0 and 1 stand for, or NaN to use the weakest and strongest
+  // gradient of each frame.
+  private double fixedMinStrength;
+  private double fixedMaxStrength;
+
+  // The lower and upper thresholds used during hysteresis.
+  private double lowThreshold;
+  private double highThreshold;
+
+  /**
+   * When true, only the final hysteresis image can be retrieved from this detector.
+   * All other intermediate data is released as soon as edge detection completes.
+   */
+  private boolean edgesOnly;
+
+  /**
+   * Images are rendered from the stored gradient values the first time they are requested and then stored in this
+   * image map. This image map is the only way to get the resulting images from the detector.
    */
   private Map<Integer, EditableImage> imageMap;
 
+  // The separated Sobel operators in the x and y-directions.
+  static final double[] SOBEL_XX = {1, 2, 1};
+  static final double[] SOBEL_XY = {-1, 0, 1};
+  static final double[] SOBEL_YX = {1, 0, -1};
+  static final double[] SOBEL_YY = {1, 2, 1};
+
+  // The tangents of the borders between the rounded directions, used when approximating the gradient direction.
+  private static final double TAN_22_5 = Math.tan(Math.toRadians(22.5));
+  private static final double TAN_67_5 = Math.tan(Math.toRadians(67.5));
+
   // Constants and mapping to store images at.
   public static final int IMAGE_GAUSSIAN = 0;
   public static final int IMAGE_GRADIENT_X = 1;
@@ -59,104 +244,634 @@ public class CannyEdgeDetector {
   public static final int IMAGE_BETWEEN_THRESHOLD = 9;
   public static final int IMAGE_HYSTERESIS = 10;
 
-  // The different images produced by this algorithm.
-  private EditableImage imageGaussian;
-  private EditableImage imageGradientX;
-  private EditableImage imageGradientY;
-  private EditableImage imageGradientXNorm;
-  private EditableImage imageGradientYNorm;
-  private EditableImage imageGradientStrength;
-  private EditableImage imageGradientStrengthNorm;
-  private EditableImage imageNonMaximumSuppression;
-  private EditableImage imageHighThreshold;
-  private EditableImage imageBetweenThreshold;
-  private EditableImage imageHysteresis;
+  // Constants for the steps reported to a CannyStageListener.
+  public static final int STAGE_GAUSSIAN = 0;
+  public static final int STAGE_GRADIENTS = 1;
+  public static final int STAGE_NON_MAXIMUM_SUPPRESSION = 2;
+  public static final int STAGE_HYSTERESIS = 3;
 
   /**
    * Run the steps of this Canny Edge Detector the image with the given sigma.
+   * The thresholds are the defaults of 0.1 and 0.3. Since the Gaussian filter no longer blurs pixels more than once,
+   * these find fewer edge pixels than they used to. See CannySettings(double).
    * @param image The image to run edge detection on.
    * @param sigma The sigma to use for edge detection.
    */
   public CannyEdgeDetector(EditableImage image, double sigma) {
+    this(image, sigma, false);
+  }
+
+  /**
+   * Run the steps of this Canny Edge Detector the image with the given sigma.
+   * Intermediate images are not rendered until they are requested through getImage. When edgesOnly is set, only
+   * IMAGE_HYSTERESIS can be requested and the memory used by the intermediate steps is released right away.
+   * @param image The image to run edge detection on.
+   * @param sigma The sigma to use for edge detection.
+   * @param edgesOnly Whether to keep only the data needed for the final hysteresis image.
+   */
+  public CannyEdgeDetector(EditableImage image, double sigma, boolean edgesOnly) {
+    this(image, new CannySettings(sigma).setEdgesOnly(edgesOnly));
+  }
+
+  /**
+   * Run the steps of this Canny Edge Detector on the image with the given settings.
+   * Intermediate images are not rendered until they are requested through getImage.
+   * @param image The image to run edge detection on.
+   * @param settings The settings to use for edge detection.
+   */
+  public CannyEdgeDetector(EditableImage image, CannySettings settings) {
+    this(image, settings, null);
+  }
+
+  /**
+   * Run the steps of this Canny Edge Detector on the image with the given settings, starting from an image that has
+   * already been blurred. This lets several detectors share the work of reading and blurring the same image.
+   * @param image The image to run edge detection on.
+   * @param settings The settings to use for edge detection.
+   * @param blurred The image already blurred with the settings' sigma, or null to blur it here.
+   */
+  CannyEdgeDetector(EditableImage image, CannySettings settings, float[] blurred) {
+    this(image.getWidth(), image.getHeight(), settings, blurred);
     this.image = image;
-    this.sigma = sigma;
+
+    // Perform edge detection steps
+    if (blurred == null) {
+      applyGaussianFilter(image.getGrayscalePlane());
+    }
+    applyFeatureDetection();
+    applyNonMaximumSuppression();
+    applyHysteresis();
+
+    if (edgesOnly) {
+      releaseIntermediates();
+    }
+  }
+
+  /**
+   * Run the steps of this Canny Edge Detector on a grayscale image with the given settings.
+   * Intermediate images are not rendered until they are requested through getImage, and are rendered as new
+   * TYPE_BYTE_GRAY images.
+   * @param image The image to run edge detection on.
+   * @param settings The settings to use for edge detection.
+   */
+  public CannyEdgeDetector(GrayscaleImage image, CannySettings settings) {
+    this(image.getWidth(), image.getHeight(), settings, null);
+
+    applyGaussianFilter(image.getGrayscalePlane(new float[width * height]));
+    applyFeatureDetection();
+    applyNonMaximumSuppression();
+    applyHysteresis();
+
+    if (edgesOnly) {
+      releaseIntermediates();
+    }
+  }
+
+  /**
+   * Creates a detector bound to a frame size and settings, which can then be run on many frames through detect.
+   * Every plane is allocated here, so when the settings have no pool, detect does not allocate anything after the
+   * first few frames have grown the tracing stack. With a pool, the band actions and their scratch rows are created
+   * for the first frame and reused, but handing the bands to the pool still allocates about 200 bytes for each frame.
+   * Frames given as planes skip reading the image entirely, while reading an EditableImage frame may allocate a few
+   * bytes inside of Java 2D. Rendering images through getImage still allocates, so use copyEdges to read the edges of
+   * each frame without allocating.
+   * In edges only mode, the planes are kept for the next frame but only IMAGE_HYSTERESIS can be requested.
+   * @param width The width of every frame.
+   * @param height The height of every frame.
+   * @param settings The settings to use for edge detection.
+   */
+  public CannyEdgeDetector(int width, int height, CannySettings settings) {
+    this(width, height, settings, null);
+    this.reusable = true;
+    this.source = new float[width * height];
+    this.levels = new GrayscaleImage(width, height, GrayscaleImage.TYPE_BYTE);
+    this.scratch = new float[width * height];
+    this.stack = new IntStack();
+  }
+
+  /**
+   * Sets up the settings and planes shared by every way of creating a detector.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param settings The settings to use for edge detection.
+   * @param blurred The image already blurred with the settings' sigma, or null to allocate a plane to blur into.
+   */
+  private CannyEdgeDetector(int width, int height, CannySettings settings, float[] blurred) {
+    this.settings = settings;
+    this.sigma = settings.getSigma();
+    this.border = settings.getBorder();
+    this.edgesOnly = settings.isEdgesOnly();
+    this.width = width;
+    this.height = height;
     this.imageMap = new HashMap<Integer, EditableImage>();
+    this.allocatedBytes = -1;
+    this.timer = new StageTimer(settings.getListener(), sigma);
+    this.fixedMinStrength = Double.NaN;
+    this.fixedMaxStrength = Double.NaN;
+
+    // Initialize the planes
+    this.kernel = getGaussianKernel(sigma);
+    if (settings.getBlur() == CannySettings.BLUR_BOXES) {
+      this.boxWidths = BoxBlur.getWidths(Convolution.getVariance(kernel));
+    }
+    this.blurred = blurred == null ? new float[width * height] : blurred;
+    gradientX = new float[width * height];
+    gradientY = new float[width * height];
+    strength = new float[width * height];
+    direction = new byte[width * height];
+    hysteresis = new byte[width * height];
+
+    // N, NW, W, and NE neighbors for the 0, 45, 90, and 135 directions
+    neighborOffsets = new int[] {-width, -width - 1, -1, -width + 1};
+
+    bandLimits = new GradientLimits[RowBands.getBandCount(settings.getPool(), height)];
+    for (int band = 0; band < bandLimits.length; band++) {
+      bandLimits[band] = new GradientLimits();
+    }
+    if (settings.getThresholdMode() != CannySettings.THRESHOLDS_FIXED) {
+      bandHistograms = new GradientHistogram[bandLimits.length];
+      for (int band = 0; band < bandHistograms.length; band++) {
+        bandHistograms[band] = new GradientHistogram();
+      }
+    }
+    createTasks();
+  }
+
+  /**
+   * Creates the work done over each band of rows by the steps that are split into bands, and the actions that run it.
+   */
+  private void createTasks() {
+    strengthTask = new RowBands.Task() {
+      @Override
+      public void run(int band, int start, int end) {
+        bandLimits[band].reset();
+        applyStrengthAndDirection(start * width, end * width, bandLimits[band]);
+      }
+    };
+
+    // Each band only writes its own rows, and reads the rows above and below it from the strength plane.
+    // The strengths that survive are counted in the histogram of the band.
+    suppressionTask = new RowBands.Task() {
+      @Override
+      public void run(int band, int start, int end) {
+        applyNonMaximumSuppression(start, end);
+        if (bandHistograms != null) {
+          bandHistograms[band].clear();
+          countMaxima(start * width, end * width, bandHistograms[band]);
+        }
+      }
+    };
+
+    // First, set all values greater than t2 to white.
+    // Second, set all suppressed pixels and values less than t1 to black. Everything else is left to be traced.
+    // Every pixel is set from the strength and direction planes, so this can be run again with new thresholds.
+    thresholdTask = new RowBands.Task() {
+      @Override
+      public void run(int band, int start, int end) {
+        for (int i = start * width; i < end * width; i++) {
+          hysteresis[i] = getThresholdState(i);
+        }
+      }
+    };
 
-    // Initialize the gradient values matrix
-    gradients = new double[image.getHeight()][image.getWidth()][7];
-
-    // Make sure that everything at the hysteresis depth is initially set to -1.
-    for(int r = 0; r < gradients.length; r++) {
-      for(int c = 0; c < gradients[r].length; c++) {
-        gradients[r][c][HYSTERESIS] = -1;
-      }
-    }
-
-    // Instantiate each intermediate image
-    imageGaussian = new EditableImage(image.copy().getImage());
-    imageGradientX = new EditableImage(image.copy().getImage());
-    imageGradientY = new EditableImage(image.copy().getImage());
-    imageGradientXNorm = new EditableImage(image.copy().getImage());
-    imageGradientYNorm = new EditableImage(image.copy().getImage());
-    imageGradientStrength = new EditableImage(image.copy().getImage());
-    imageGradientStrengthNorm = new EditableImage(image.copy().getImage());
-    imageNonMaximumSuppression = new EditableImage(image.copy().getImage());
-    imageHighThreshold = new EditableImage(image.copy().getImage());
-    imageBetweenThreshold = new EditableImage(image.copy().getImage());
-    imageHysteresis = new EditableImage(image.copy().getImage());
-
-    // Add the images to the image map
-    imageMap.put(IMAGE_GAUSSIAN, imageGaussian);
-    imageMap.put(IMAGE_GRADIENT_X, imageGradientX);
-    imageMap.put(IMAGE_GRADIENT_Y, imageGradientY);
-    imageMap.put(IMAGE_GRADIENT_X_NORM, imageGradientXNorm);
-    imageMap.put(IMAGE_GRADIENT_Y_NORM, imageGradientYNorm);
-    imageMap.put(IMAGE_GRADIENT_STRENGTH, imageGradientStrength);
-    imageMap.put(IMAGE_GRADIENT_STRENGTH_NORM, imageGradientStrengthNorm);
-    imageMap.put(IMAGE_NON_MAXIMUM_SUPPRESSION, imageNonMaximumSuppression);
-    imageMap.put(IMAGE_HIGH_THRESHOLD, imageHighThreshold);
-    imageMap.put(IMAGE_BETWEEN_THRESHOLD, imageBetweenThreshold);
-    imageMap.put(IMAGE_HYSTERESIS, imageHysteresis);
+    strengthBands = new RowBands.Runner(settings.getPool(), height, strengthTask);
+    suppressionBands = new RowBands.Runner(settings.getPool(), height, suppressionTask);
+    thresholdBands = new RowBands.Runner(settings.getPool(), height, thresholdTask);
+  }
 
-    // Perform edge detection steps
-    applyGaussianFilter();
+  /**
+   * Sorts a pixel against the current thresholds.
+   * @param i The index of the pixel.
+   * @return EDGE_STRONG if the pixel is above the upper threshold, EDGE_NONE if it was suppressed, is below the lower
+   *         threshold, or is outside of the trace window, and EDGE_UNVISITED if it is left to be traced.
+   */
+  private byte getThresholdState(int i) {
+    if (traceWindow != null && !traceWindow.contains(i % width, i / width)) {
+      return EDGE_NONE;
+    }
+    if (getStrengthNorm(i) > highThreshold) {
+      return EDGE_STRONG;
+    }
+    else if ((direction[i] & SUPPRESSED) != 0 || getStrengthNorm(i) < lowThreshold) {
+      return EDGE_NONE;
+    }
+    return EDGE_UNVISITED;
+  }
+
+  /**
+   * Sets up the planes, tiles, and work used by detectChanges the first time it is called.
+   */
+  private void setUpChanges() {
+    previous = new float[width * height];
+    changedTiles = new DirtyTiles(width, height);
+    blurTiles = new DirtyTiles(width, height);
+    gradientTiles = new DirtyTiles(width, height);
+    suppressionTiles = new DirtyTiles(width, height);
+    tileLimits = new GradientLimits[changedTiles.getTileCount()];
+    for (int tile = 0; tile < tileLimits.length; tile++) {
+      tileLimits[tile] = new GradientLimits();
+    }
+    frameLimits = new GradientLimits();
+    gathered = new boolean[width * height];
+    component = new IntStack();
+
+    // The last frame matches the new frame once its changed tiles are copied over, so it is blurred in place of the
+    // new frame.
+    blurTileTask = new DirtyTiles.Task() {
+      @Override
+      public void run(int x, int y, int w, int h) {
+        Convolution.convolveWindow(previous, blurred, scratch, width, height, kernel, kernel, x, y, w, h,
+            border);
+      }
+    };
+
+    // The strengths of the tiles that survived suppression in the last frame are taken out of the histogram before the
+    // strengths or their suppression can change. They are put back in by the suppression of the tiles.
+    uncountTileTask = new DirtyTiles.Task() {
+      @Override
+      public void run(int x, int y, int w, int h) {
+        for (int r = y; r < y + h; r++) {
+          for (int i = r * width + x; i < r * width + x + w; i++) {
+            if ((direction[i] & SUPPRESSED) == 0) {
+              bandHistograms[0].remove(strength[i]);
+            }
+          }
+        }
+      }
+    };
+
+    gradientTileTask = new DirtyTiles.Task() {
+      @Override
+      public void run(int x, int y, int w, int h) {
+        Convolution.convolveWindow(blurred, gradientX, scratch, width, height, SOBEL_XX, SOBEL_XY, x, y, w, h,
+            border);
+        Convolution.convolveWindow(blurred, gradientY, scratch, width, height, SOBEL_YX, SOBEL_YY, x, y, w, h,
+            border);
+        for (int tileX = x; tileX < x + w; tileX += DirtyTiles.TILE_SIZE) {
+          int tileEnd = Math.min(x + w, tileX + DirtyTiles.TILE_SIZE);
+          GradientLimits limits = tileLimits[changedTiles.getTile(tileX, y)];
+          limits.reset();
+          for (int r = y; r < y + h; r++) {
+            applyStrengthAndDirection(r * width + tileX, r * width + tileEnd, limits);
+          }
+        }
+      }
+    };
+
+    // Pixels next to the tiles may have been suppressed by their old neighbors, so their suppression is cleared first.
+    suppressionTileTask = new DirtyTiles.Task() {
+      @Override
+      public void run(int x, int y, int w, int h) {
+        for (int r = y; r < y + h; r++) {
+          for (int i = r * width + x; i < r * width + x + w; i++) {
+            direction[i] &= DIRECTION_MASK;
+          }
+          applyNonMaximumSuppression(r, x, x + w);
+          if (countTiles) {
+            countMaxima(r * width + x, r * width + x + w, bandHistograms[0]);
+          }
+        }
+      }
+    };
+
+    thresholdTileTask = new DirtyTiles.Task() {
+      @Override
+      public void run(int x, int y, int w, int h) {
+        for (int r = y; r < y + h; r++) {
+          for (int i = r * width + x; i < r * width + x + w; i++) {
+            hysteresis[i] = getThresholdState(i);
+          }
+        }
+      }
+    };
+
+    // Edges that used to run into the tiles may now be cut off right outside of them, so the ring of pixels around the
+    // tiles is gathered from as well.
+    gatherTileTask = new DirtyTiles.Task() {
+      @Override
+      public void run(int x, int y, int w, int h) {
+        for (int r = Math.max(0, y - 1); r < Math.min(height, y + h + 1); r++) {
+          for (int c = Math.max(0, x - 1); c < Math.min(width, x + w + 1); c++) {
+            gatherComponent(r * width + c);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Runs the steps of this Canny Edge Detector on the next frame.
+   * Only detectors created with a frame size can be run again. Images rendered from the previous frame are dropped.
+   * @param frame The frame to run edge detection on. It must have the size this detector was created with.
+   */
+  public void detect(EditableImage frame) {
+    checkFrame(frame.getWidth() * frame.getHeight(), frame.getWidth(), frame.getHeight());
+    long before = Allocations.getThreadAllocatedBytes();
+    image = frame;
+    frame.getGrayscalePlane(source, levels);
+    detectPlane(source, before);
+  }
+
+  /**
+   * Runs the steps of this Canny Edge Detector on the next frame, given as a row-major plane of grayscale values.
+   * Only detectors created with a frame size can be run again. Images rendered from the previous frame are dropped.
+   * @param frame The grayscale values of the frame, where the value at x, y is stored at y * width + x.
+   */
+  public void detect(float[] frame) {
+    checkFrame(frame.length, width, height);
+    long before = Allocations.getThreadAllocatedBytes();
+    image = null;
+    detectPlane(frame, before);
+  }
+
+  /**
+   * Runs the steps of this Canny Edge Detector on the next frame, given as a grayscale image.
+   * Only detectors created with a frame size can be run again. Images rendered from the previous frame are dropped.
+   * @param frame The frame to run edge detection on. It must have the size this detector was created with.
+   */
+  public void detect(GrayscaleImage frame) {
+    checkFrame(frame.getWidth() * frame.getHeight(), frame.getWidth(), frame.getHeight());
+    long before = Allocations.getThreadAllocatedBytes();
+    image = null;
+    detectPlane(frame.getGrayscalePlane(source), before);
+  }
+
+  /**
+   * Makes sure that this detector can be run on a frame.
+   * @param size The number of pixels in the frame.
+   * @param frameWidth The width of the frame.
+   * @param frameHeight The height of the frame.
+   */
+  private void checkFrame(int size, int frameWidth, int frameHeight) {
+    if (!reusable) {
+      throw new IllegalStateException("Only detectors created with a frame size can detect more frames");
+    }
+    if (size != width * height || frameWidth != width || frameHeight != height) {
+      throw new IllegalArgumentException("Expected a " + width + "x" + height + " frame");
+    }
+  }
+
+  /**
+   * Runs every step on a frame and records how much was allocated along the way.
+   * @param plane The grayscale values of the frame.
+   * @param before The bytes allocated on the calling thread before the frame was started.
+   */
+  private void detectPlane(float[] plane, long before) {
+    imageMap.clear();
+    tracking = false;
+    applyGaussianFilter(plane);
     applyFeatureDetection();
     applyNonMaximumSuppression();
-    applyHysteresis(0.1, 0.3);
+    applyHysteresis();
+
+    long after = Allocations.getThreadAllocatedBytes();
+    allocatedBytes = before < 0 || after < 0 ? -1 : Allocations.since(before, after);
   }
 
   /**
-   * Applies a Gaussian filter to the original image using a Gaussian kernel with length 2 * sigma.
+   * Runs the steps of this Canny Edge Detector on the next frame, computing again only the parts of the frame that
+   * changed since the last frame given to this method. This is much faster than detect for frames that are mostly
+   * the same as the last one, such as video from a fixed camera, and gives exactly the same result.
+   *
+   * The frame is compared with the last one in square tiles. The Gaussian filter, gradients, and non-maximum
+   * suppression are run again only over the tiles that changed, grown by how far each step reaches, and edges are
+   * traced again only through the components that touch those tiles. When the changed tiles move the min or max
+   * gradient strength or the automatic thresholds, every pixel is sorted against the thresholds and traced again.
+   *
+   * The first frame, and the first frame after a call to detect, are run over every tile. The work is always done on
+   * the calling thread, even when the settings have a pool. Box blurs cannot be restarted partway through a row, so
+   * detectors that blur with BLUR_BOXES run every frame through detect instead. So do detectors with BORDER_WRAP,
+   * since a change near one side of the frame also changes the other side.
+   * Only detectors created with a frame size can be run again. Images rendered from the previous frame are dropped.
+   * @param frame The frame to run edge detection on. It must have the size this detector was created with.
    */
-  private void applyGaussianFilter() {
-    // Retrieve the separated single dimension Gaussian kernel for the current sigma.
-    double[] kernel = getGaussianKernel();
-    int size = (int) (2 * sigma);
-    int halfSize = size / 2;
-    double val;
+  public void detectChanges(EditableImage frame) {
+    checkFrame(frame.getWidth() * frame.getHeight(), frame.getWidth(), frame.getHeight());
+    long before = Allocations.getThreadAllocatedBytes();
+    image = frame;
+    frame.getGrayscalePlane(source, levels);
+    detectChangedPlane(source, before);
+  }
+
+  /**
+   * Runs the steps of this Canny Edge Detector on the next frame, given as a row-major plane of grayscale values,
+   * computing again only the parts of the frame that changed since the last frame given to detectChanges.
+   * @param frame The grayscale values of the frame, where the value at x, y is stored at y * width + x.
+   * @see #detectChanges(EditableImage)
+   */
+  public void detectChanges(float[] frame) {
+    checkFrame(frame.length, width, height);
+    long before = Allocations.getThreadAllocatedBytes();
+    image = null;
+    detectChangedPlane(frame, before);
+  }
+
+  /**
+   * Runs the steps of this Canny Edge Detector on the next frame, given as a grayscale image, computing again only the
+   * parts of the frame that changed since the last frame given to detectChanges.
+   * @param frame The frame to run edge detection on. It must have the size this detector was created with.
+   * @see #detectChanges(EditableImage)
+   */
+  public void detectChanges(GrayscaleImage frame) {
+    checkFrame(frame.getWidth() * frame.getHeight(), frame.getWidth(), frame.getHeight());
+    long before = Allocations.getThreadAllocatedBytes();
+    image = null;
+    detectChangedPlane(frame.getGrayscalePlane(source), before);
+  }
+
+  /**
+   * Runs every step over the tiles of a frame that changed since the last frame, and records how much was allocated
+   * along the way.
+   * @param plane The grayscale values of the frame.
+   * @param before The bytes allocated on the calling thread before the frame was started.
+   */
+  private void detectChangedPlane(float[] plane, long before) {
+    if (boxWidths != null || border == Convolution.BORDER_WRAP) {
+      detectPlane(plane, before);
+      return;
+    }
+    imageMap.clear();
+    if (previous == null) {
+      setUpChanges();
+    }
+
+    // A changed pixel moves the blurred image as far as the kernel reaches, the gradients one pixel further, and the
+    // suppression of its neighbors one pixel further still.
+    GradientHistogram histogram = bandHistograms == null ? null : bandHistograms[0];
+    if (tracking) {
+      changedTiles.markChanges(plane, previous);
+    }
+    else {
+      changedTiles.markAll();
+      System.arraycopy(plane, 0, previous, 0, plane.length);
+    }
+    int reach = kernel.length / 2;
+    blurTiles.grow(changedTiles, DirtyTiles.getReach(reach));
+    gradientTiles.grow(changedTiles, DirtyTiles.getReach(reach + 1));
+    suppressionTiles.grow(changedTiles, DirtyTiles.getReach(reach + 2));
+
+    timer.start();
+    blurTiles.run(blurTileTask);
+    timer.stop(STAGE_GAUSSIAN, blurTiles.getPixels());
+
+    // Only the tiles whose suppression is run again are counted again, unless this is the first frame or the range of
+    // the frame moved to another size of bins, when every surviving strength is counted again.
+    double maxValue = 0;
+    countTiles = false;
+    if (histogram != null) {
+      maxValue = GradientHistogram.getMaxValue(blurred);
+      countTiles = tracking && maxValue == histogram.getMaxValue();
+    }
+
+    timer.start();
+    if (countTiles) {
+      suppressionTiles.run(uncountTileTask);
+    }
+    gradientTiles.run(gradientTileTask);
+    double oldMinStrength = minStrength;
+    double oldMaxStrength = maxStrength;
+    frameLimits.reset();
+    for (GradientLimits limits : tileLimits) {
+      frameLimits.merge(limits);
+    }
+    setLimits(frameLimits);
+    timer.stop(STAGE_GRADIENTS, gradientTiles.getPixels());
+
+    timer.start();
+    suppressionTiles.run(suppressionTileTask);
+    if (histogram != null && !countTiles) {
+      histogram.setMaxValue(maxValue);
+      histogram.clear();
+      countMaxima(0, width * height, histogram);
+    }
+    timer.stop(STAGE_NON_MAXIMUM_SUPPRESSION, suppressionTiles.getPixels());
+
+    double high = chooseHighThreshold();
+    double low = chooseLowThreshold(high);
+    if (!tracking || minStrength != oldMinStrength || maxStrength != oldMaxStrength || low != lowThreshold ||
+        high != highThreshold) {
+      // Every normalized strength moved, so every pixel has to be sorted again.
+      applyHysteresis(low, high);
+    }
+    else {
+      applyChangedHysteresis();
+    }
+    tracking = true;
 
-    // First, pad the image.
-    imageGaussian.padWithZeros(halfSize);
+    long after = Allocations.getThreadAllocatedBytes();
+    allocatedBytes = before < 0 || after < 0 ? -1 : Allocations.since(before, after);
+  }
+
+  /**
+   * Applies hysteresis again over only the pixels whose edges may have changed, with the thresholds of the last frame.
+   * Every strong and unvisited pixel that is 8-connected to the changed tiles is gathered and traced again. Components
+   * that do not reach the changed tiles or the ring of pixels around them are the same as in the last frame, so the
+   * edges found in them are kept.
+   */
+  private void applyChangedHysteresis() {
+    timer.start();
+    suppressionTiles.run(thresholdTileTask);
+    component.clear();
+    suppressionTiles.run(gatherTileTask);
+    Hysteresis.trace(hysteresis, width, height, component, stack);
+    for (int p = 0; p < component.size(); p++) {
+      gathered[component.get(p)] = false;
+    }
+    timer.stop(STAGE_HYSTERESIS, suppressionTiles.getPixels() + component.size());
+  }
+
+  /**
+   * Gathers the component of strong and unvisited pixels around a pixel, sorting each pixel of the component against
+   * the thresholds again. Does nothing if the pixel is sorted as none or has already been gathered.
+   * @param start The index of the pixel.
+   */
+  private void gatherComponent(int start) {
+    if (gathered[start] || getThresholdState(start) == EDGE_NONE) {
+      return;
+    }
+    gathered[start] = true;
+    component.push(start);
+    stack.clear();
+    stack.push(start);
+
+    while (!stack.isEmpty()) {
+      int i = stack.pop();
+      hysteresis[i] = getThresholdState(i);
+      int r = i / width;
+      int c = i % width;
+      for (int nr = Math.max(0, r - 1); nr <= Math.min(height - 1, r + 1); nr++) {
+        for (int nc = Math.max(0, c - 1); nc <= Math.min(width - 1, c + 1); nc++) {
+          int j = nr * width + nc;
+          if (!gathered[j] && getThresholdState(j) != EDGE_NONE) {
+            gathered[j] = true;
+            component.push(j);
+            stack.push(j);
+          }
+        }
+      }
+    }
+  }
 
-    // For each pixel that isn't padding, convolude the Gaussian kernel with the image.
-    // Then update the non-normalized Gaussian image.
-    for (int r = 0; r < imageGaussian.getHeight() - kernel.length + 1; r++) {
-      for (int c = 0; c < imageGaussian.getWidth() - kernel.length + 1; c++) {
-        val = convolude(imageGaussian, kernel, r, c);
-        imageGaussian.setGrayscale(c + (halfSize), r + (halfSize), (int) val);
+  /**
+   * Returns the number of bytes allocated on the calling thread during the last call to detect.
+   * Work done on the threads of a pool is not counted.
+   * @return The number of bytes allocated, or -1 if the JVM cannot count allocations or detect has not been called.
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /**
+   * Applies a Gaussian filter to the original image using a Gaussian kernel with length 2 * sigma, or with stacked box
+   * filters of the same variance when the settings blur with BLUR_BOXES.
+   * @param plane The grayscale values of the original image.
+   */
+  private void applyGaussianFilter(float[] plane) {
+    timer.start();
+    if (boxWidths != null) {
+      // Stacked box filters cost the same per pixel at any sigma.
+      if (scratch == null) {
+        scratch = new float[width * height];
       }
+      BoxBlur.blur(plane, blurred, scratch, width, height, boxWidths, settings.getPool(), border);
+    }
+    else {
+      // Convolude the Gaussian kernel along the rows and then along the columns of the original image.
+      convolve(plane, blurred, kernel, kernel);
     }
+    timer.stop(STAGE_GAUSSIAN, width * height);
+  }
 
-    // Remove the original padding.
-    imageGaussian.removePadding();
+  /**
+   * Convolves a plane with a separable kernel, on the pool if there is one and with the scratch plane otherwise.
+   * Values outside of the plane are read through the border policy.
+   * @param src The plane to convolve.
+   * @param dst The plane to store the result in.
+   * @param kernelX The separated kernel in the x-direction.
+   * @param kernelY The separated kernel in the y-direction.
+   */
+  private void convolve(float[] src, float[] dst, double[] kernelX, double[] kernelY) {
+    if (settings.getPool() != null) {
+      if (bandConvolution == null) {
+        bandConvolution = new Convolution.BandConvolution(width, height, settings.getPool(), border);
+      }
+      bandConvolution.convolve(src, dst, kernelX, kernelY);
+    }
+    else {
+      if (scratch == null) {
+        scratch = new float[width * height];
+      }
+      Convolution.convolve(src, dst, scratch, width, height, kernelX, kernelY, border);
+    }
   }
 
   /**
-   * Returns a single dimensional separated Gaussian kernel based on this sigma.
+   * Returns a single dimensional separated Gaussian kernel with length 2 * sigma.
    * The actual Gaussian is calculated using the Apache Commons Math API.
-   * @return A single dimensional separated Gaussian kernel based on this sigma.
+   * @param sigma The sigma of the Gaussian.
+   * @return A single dimensional separated Gaussian kernel based on sigma.
    */
-  private double[] getGaussianKernel() {
+  static double[] getGaussianKernel(double sigma) {
     int size = (int) (2 * sigma);
     double norm = 0;
     // Gaussian object with given mean and sigma.
@@ -182,88 +897,92 @@ public class CannyEdgeDetector {
    * Finds gradient directions and strengths over the blurred image.
    */
   private void applyFeatureDetection() {
-    // This image is used to convolude over using Sobel's operator.
-    EditableImage tmpImage = imageGaussian.copy();
-
+    timer.start();
     // The Sobel operator is separable, so we can split the two operators into four single-dimensional operators.
-    // Sobel operator in x-direction.
-    double[] sobelXX = {1, 2, 1};
-    double[] sobelXY = {-1, 0, 1};
-
-    // Sobel operator in y-direction.
-    double[] sobelYX = {1, 0, -1};
-    double[] sobelYY = {1, 2, 1};
-
-    // Pad the image
-    tmpImage.padWithZeros(1);
-
-    // Convolude the image in the x and y-directions to find the gradient strength in the x and y-directions.
-    for (int r = 0; r < image.getHeight() - 2; r++) {
-      for (int c = 0; c < image.getWidth() - 2; c++) {
-        gradients[r][c][GRADIENT_X] = convolude(tmpImage, sobelXX, sobelXY, r, c);
-        gradients[r][c][GRADIENT_Y] = convolude(tmpImage, sobelYX, sobelYY, r, c);
+    // Convolude the blurred image in the x and y-directions to find the gradient strength in the x and y-directions.
+    convolve(blurred, gradientX, SOBEL_XX, SOBEL_XY);
+    convolve(blurred, gradientY, SOBEL_YX, SOBEL_YY);
+
+    // The histogram bins are sized for the range of this frame, which is not known ahead of time for frames that are
+    // not 8-bit.
+    if (bandHistograms != null) {
+      double maxValue = GradientHistogram.getMaxValue(blurred);
+      for (GradientHistogram histogram : bandHistograms) {
+        histogram.setMaxValue(maxValue);
       }
     }
 
-    // Remove padding
-    tmpImage.removePadding();
-
     // In order to normalize the gradients, we need to keep track of their min and max values.
-    double minX = Double.MAX_VALUE;
-    double maxX = Double.MIN_VALUE;
-    double minY = Double.MAX_VALUE;
-    double maxY = Double.MIN_VALUE;
-    double minStrength = Double.MAX_VALUE;
-    double maxStrength = Double.MIN_VALUE;
-
-    // Final gradient strength and rounded gradient direction.
-    // Also find min and max values for gradients for future normalizations.
-    for (int r = 0; r < gradients.length; r++) {
-      for (int c = 0; c < gradients[r].length; c++) {
-        // Calculate the gradient strength
-        gradients[r][c][GRADIENT_STRENGTH] = Math.sqrt(Math.pow(gradients[r][c][GRADIENT_X], 2) + Math.pow(gradients[r][c][GRADIENT_Y], 2));
+    // Each band finds its own min and max values, and then they are reduced into a single global min and max.
+    strengthBands.run();
 
-        // Calculate the rounded gradient direction
-        gradients[r][c][GRADIENT_DIRECTION] = roundAngle(Math.atan2(gradients[r][c][GRADIENT_Y], gradients[r][c][GRADIENT_X]));
-
-        // Find min and max gradients for future normalizations.
-        minX = gradients[r][c][GRADIENT_X] < minX ? gradients[r][c][GRADIENT_X] : minX;
-        maxX = gradients[r][c][GRADIENT_X] > maxX ? gradients[r][c][GRADIENT_X] : maxX;
-        minY = gradients[r][c][GRADIENT_Y] < minY ? gradients[r][c][GRADIENT_Y] : minY;
-        maxY = gradients[r][c][GRADIENT_Y] > maxY ? gradients[r][c][GRADIENT_Y] : maxY;
-        minStrength = gradients[r][c][GRADIENT_STRENGTH] < minStrength ? gradients[r][c][GRADIENT_STRENGTH] : minStrength;
-        maxStrength = gradients[r][c][GRADIENT_STRENGTH] > maxStrength ? gradients[r][c][GRADIENT_STRENGTH] : maxStrength;
-      }
+    GradientLimits limits = bandLimits[0];
+    for (int band = 1; band < bandLimits.length; band++) {
+      limits.merge(bandLimits[band]);
     }
+    setLimits(limits);
+    timer.stop(STAGE_GRADIENTS, width * height);
+  }
 
-    // Store normalized (0 - 1) gradient strengths.
-    // Update images.
-    for (int r = 0; r < gradients.length; r++) {
-      for (int c = 0; c < gradients[r].length; c++) {
-        // Calculate and store the gradient strength normalized to between 0 and 1.
-        gradients[r][c][GRADIENT_STRENGTH_NORM] = (gradients[r][c][GRADIENT_STRENGTH] - minStrength) / (maxStrength - minStrength);
-
-        // Update image of gradient in x-direction
-        imageGradientX.setGrayscale(c, r, (int) gradients[r][c][GRADIENT_X]);
-
-        // Update image of gradient in y-direction
-        imageGradientY.setGrayscale(c, r, (int) gradients[r][c][GRADIENT_Y]);
-
-        // Update image of gradient in x-direction normalized to between 0 and 255
-        imageGradientXNorm.setGrayscale(c, r, (int) ((gradients[r][c][GRADIENT_X] - minX) / (maxX - minX) * 255));
-
-        // Update image of gradient in y-direction normalized to between 0 and 255
-        imageGradientYNorm.setGrayscale(c, r, (int) ((gradients[r][c][GRADIENT_Y] - minY) / (maxY - minY) * 255));
+  /**
+   * Keeps the min and max gradient values of the whole image for future normalizations.
+   * @param limits The min and max gradient values of the whole image.
+   */
+  private void setLimits(GradientLimits limits) {
+    minX = limits.minX;
+    maxX = limits.maxX;
+    minY = limits.minY;
+    maxY = limits.maxY;
+    minStrength = Double.isNaN(fixedMinStrength) ? limits.minStrength : fixedMinStrength;
+    maxStrength = Double.isNaN(fixedMaxStrength) ? limits.maxStrength : fixedMaxStrength;
+  }
 
-        // Update image of gradient strength
-        imageGradientStrength.setGrayscale(c, r, (int) gradients[r][c][GRADIENT_STRENGTH]);
+  /**
+   * Calculates the final gradient strength and rounded gradient direction for a range of pixels.
+   * Also finds min and max values for gradients for future normalizations.
+   * @param start The index of the first pixel.
+   * @param end One past the index of the last pixel.
+   * @param limits Widened to cover the min and max gradient values found in the range.
+   */
+  private void applyStrengthAndDirection(int start, int end, GradientLimits limits) {
+    boolean fast = settings.isFastGradients();
+
+    for (int i = start; i < end; i++) {
+      if (fast) {
+        // Approximate the gradient strength as the larger gradient plus 3/8 of the smaller one, which is within 7%
+        // of the true length in every direction.
+        float ax = Math.abs(gradientX[i]);
+        float ay = Math.abs(gradientY[i]);
+        strength[i] = ax > ay ? ax + 0.375f * ay : ay + 0.375f * ax;
+        direction[i] = roundDirection(gradientX[i], gradientY[i]);
+      }
+      else {
+        // Calculate the gradient strength
+        strength[i] = (float) Math.sqrt(Math.pow(gradientX[i], 2) + Math.pow(gradientY[i], 2));
 
-        // Update image of gradient strength normalized to between 0 and 255
-        imageGradientStrengthNorm.setGrayscale(c, r, (int) ((gradients[r][c][GRADIENT_STRENGTH] - minStrength) / (maxStrength - minStrength) * 255));
+        // Calculate the rounded gradient direction
+        direction[i] = (byte) (roundAngle(Math.atan2(gradientY[i], gradientX[i])) / 45);
       }
+
+      // Find min and max gradients for future normalizations.
+      limits.minX = gradientX[i] < limits.minX ? gradientX[i] : limits.minX;
+      limits.maxX = gradientX[i] > limits.maxX ? gradientX[i] : limits.maxX;
+      limits.minY = gradientY[i] < limits.minY ? gradientY[i] : limits.minY;
+      limits.maxY = gradientY[i] > limits.maxY ? gradientY[i] : limits.maxY;
+      limits.minStrength = strength[i] < limits.minStrength ? strength[i] : limits.minStrength;
+      limits.maxStrength = strength[i] > limits.maxStrength ? strength[i] : limits.maxStrength;
     }
   }
 
+  /**
+   * Returns the gradient strength at the given index normalized to between 0 and 1.
+   * @param i The index into the planes.
+   * @return The normalized gradient strength.
+   */
+  private double getStrengthNorm(int i) {
+    return (strength[i] - minStrength) / (maxStrength - minStrength);
+  }
+
   /**
    * Given an angle in radians, returns the angle in degrees rounded to either 0, 45, 90, or 135.
    * The angle at 0 represents the horizontal direction.
@@ -273,7 +992,7 @@ public class CannyEdgeDetector {
    * @param radians The radian value to convert and round.
    * @return The angle in degrees rounded to 0, 45, 90, or 135.
    */
-  private int roundAngle(double radians) {
+  static int roundAngle(double radians) {
     double degrees = Math.toDegrees(radians);
 
     // Make sure we're using a positive angle
@@ -302,56 +1021,136 @@ public class CannyEdgeDetector {
     return (int) degrees;
   }
 
+  /**
+   * Rounds the direction of a gradient to one of the DIRECTION constants without finding its angle.
+   * The rounding borders of roundAngle are at 22.5 and 67.5 degrees from horizontal on either side, so the direction
+   * can be found by comparing the ratio of the two gradients against the tangents of those angles, and then using
+   * their signs to tell the two diagonals apart.
+   * @param gx The gradient in the x-direction.
+   * @param gy The gradient in the y-direction.
+   * @return The rounded direction.
+   */
+  static byte roundDirection(float gx, float gy) {
+    float ax = Math.abs(gx);
+    float ay = Math.abs(gy);
+
+    // Value is close to horizontal
+    if (ay < TAN_22_5 * ax || ay == 0) {
+      return DIRECTION_0;
+    }
+    // Value is close to vertical
+    if (ay >= TAN_67_5 * ax) {
+      return DIRECTION_90;
+    }
+    // Value is close to one of the diagonals
+    return (gx > 0) == (gy > 0) ? DIRECTION_45 : DIRECTION_135;
+  }
+
   /**
    * Removes pixels with large gradients that are not part of an edge.
    * This has the overall effect of making the edges skinnier and removing noise from the image.
-   * This method does two things,it removes non-maximum pixels from the normalized gradient strength image. It also
-   * makes sure the corresponding pixels don't find their way into the final image by setting the values in the
-   * hysteresis matrix to background.
+   * Non-maximum pixels are marked with the SUPPRESSED bit in the direction plane, so they can be removed from the
+   * normalized gradient strength image and kept out of the final image by hysteresis.
    */
   private void applyNonMaximumSuppression() {
-    imageNonMaximumSuppression = imageGradientStrengthNorm.copy();
+    timer.start();
+    suppressionBands.run();
+    if (bandHistograms != null) {
+      for (int band = 1; band < bandHistograms.length; band++) {
+        bandHistograms[0].merge(bandHistograms[band]);
+      }
+    }
+    timer.stop(STAGE_NON_MAXIMUM_SUPPRESSION, width * height);
+  }
+
+  /**
+   * Counts the gradient strengths of a range of pixels that survived non-maximum suppression in a histogram.
+   * The thresholds are chosen from these strengths only, since the suppressed pixels can never be edges, and counting
+   * the much larger number of them would pull the thresholds down towards the background.
+   * The raw strengths are counted, since the strength cannot be normalized until every band has been run.
+   * @param start The index of the first pixel.
+   * @param end One past the index of the last pixel.
+   * @param histogram The histogram to count the strengths in.
+   */
+  private void countMaxima(int start, int end, GradientHistogram histogram) {
+    for (int i = start; i < end; i++) {
+      if ((direction[i] & SUPPRESSED) == 0) {
+        histogram.add(strength[i]);
+      }
+    }
+  }
+
+  /**
+   * Removes pixels with large gradients that are not part of an edge from rows start through end - 1.
+   * @param start The first row.
+   * @param end One past the last row.
+   */
+  private void applyNonMaximumSuppression(int start, int end) {
+    // Pixels away from the border of the image have all of their neighbors, so they can skip the bounds checks.
+    boolean vector = Convolution.getKernels() == Convolution.KERNELS_VECTOR;
+    for (int r = start; r < end; r++) {
+      if (!vector || r == 0 || r == height - 1 || width < 3) {
+        applyNonMaximumSuppression(r, 0, width);
+      }
+      else {
+        applyNonMaximumSuppression(r, 0, 1);
+        applyInteriorSuppression(r);
+        applyNonMaximumSuppression(r, width - 1, width);
+      }
+    }
+  }
 
+  /**
+   * Removes pixels with large gradients that are not part of an edge from part of a row.
+   * @param r The row.
+   * @param from The first column.
+   * @param to One past the last column.
+   */
+  private void applyNonMaximumSuppression(int r, int from, int to) {
     // For each pixel, check it's gradient direction, and then check to see if that pixel should be suppressed by
     // comparing it to it's neighbors which are parallel to the direction of the gradient.
-    for (int r = 0; r < gradients.length; r++) {
-      for (int c = 0; c < gradients[r].length; c++) {
-        switch ((int) gradients[r][c][GRADIENT_DIRECTION]) {
-          case 0:
-            // Compare with N and S neighbors
-            if (shouldSuppress((int) gradients[r][c][GRADIENT_STRENGTH], r - 1, c, r + 1, c)) {
-              imageNonMaximumSuppression.setGrayscale(c, r, 0);
-              gradients[r][c][HYSTERESIS] = 0;
-            }
-            break;
-          case 45:
-            // Compare with NW and SE neighbors
-            if (shouldSuppress((int) gradients[r][c][GRADIENT_STRENGTH], r - 1, c - 1, r + 1, c + 1)) {
-              imageNonMaximumSuppression.setGrayscale(c, r, 0);
-              gradients[r][c][HYSTERESIS] = 0;
-            }
-            break;
-          case 90:
-            // Compare with W and E neighbors
-            if (shouldSuppress((int) gradients[r][c][GRADIENT_STRENGTH], r, c - 1, r, c + 1)) {
-              imageNonMaximumSuppression.setGrayscale(c, r, 0);
-              gradients[r][c][HYSTERESIS] = 0;
-            }
-            break;
-          case 135:
-            // Compare with NE and SW neighbors
-            if (shouldSuppress((int) gradients[r][c][GRADIENT_STRENGTH], r - 1, c + 1, r + 1, c - 1)) {
-              imageNonMaximumSuppression.setGrayscale(c, r, 0);
-              gradients[r][c][HYSTERESIS] = 0;
-            }
-            break;
-        }
+    boolean suppress;
+    for (int c = from; c < to; c++) {
+      int i = r * width + c;
+      switch (direction[i]) {
+        case DIRECTION_0:
+          // Compare with N and S neighbors
+          suppress = shouldSuppress((int) strength[i], r - 1, c, r + 1, c);
+          break;
+        case DIRECTION_45:
+          // Compare with NW and SE neighbors
+          suppress = shouldSuppress((int) strength[i], r - 1, c - 1, r + 1, c + 1);
+          break;
+        case DIRECTION_90:
+          // Compare with W and E neighbors
+          suppress = shouldSuppress((int) strength[i], r, c - 1, r, c + 1);
+          break;
+        default:
+          // Compare with NE and SW neighbors
+          suppress = shouldSuppress((int) strength[i], r - 1, c + 1, r + 1, c - 1);
+          break;
+      }
+      if (suppress) {
+        direction[i] |= SUPPRESSED;
+      }
+    }
+  }
+
+  /**
+   * Removes pixels with large gradients that are not part of an edge from every column of a row except the first and
+   * last. The row may not be the first or last row. The two neighbors of each pixel are found from an offset for each
+   * direction instead of a switch, so there are no bounds checks or branches other than the comparison itself.
+   * @param r The row.
+   */
+  private void applyInteriorSuppression(int r) {
+    int[] offsets = neighborOffsets;
+    for (int i = r * width + 1; i < (r + 1) * width - 1; i++) {
+      int offset = offsets[direction[i]];
+      int gradStrength = (int) strength[i];
+      if (gradStrength < strength[i - offset] || gradStrength < strength[i + offset]) {
+        direction[i] |= SUPPRESSED;
       }
     }
-    // Since the reference to imageNonMaximumSuppression was changed, we have to add it back to the map.
-    // This was something that I was unaware of and caused quite a bit of pain when trying to debug this step
-    // of the process.
-    imageMap.put(IMAGE_NON_MAXIMUM_SUPPRESSION, imageNonMaximumSuppression);
   }
 
   /**
@@ -366,17 +1165,17 @@ public class CannyEdgeDetector {
    */
   private boolean shouldSuppress(int gradStrength, int r1, int c1, int r2, int c2) {
     // Check bounds of the first neighbor
-    if (r1 < gradients.length && r1 >= 0 && c1 < gradients[r1].length && c1 >= 0) {
+    if (r1 < height && r1 >= 0 && c1 < width && c1 >= 0) {
       // Check strength against first neighbor
-      if (gradStrength < gradients[r1][c1][GRADIENT_STRENGTH]) {
+      if (gradStrength < strength[r1 * width + c1]) {
         return true;
       }
     }
 
     // Check bounds of second neighbor
-    if (r2 < gradients.length && r2 >= 0 && c2 < gradients[r2].length && c2 >= 0) {
+    if (r2 < height && r2 >= 0 && c2 < width && c2 >= 0) {
       // Check strength against second neighbor
-      if (gradStrength < gradients[r2][c2][GRADIENT_STRENGTH]) {
+      if (gradStrength < strength[r2 * width + c2]) {
         return true;
       }
     }
@@ -385,6 +1184,40 @@ public class CannyEdgeDetector {
     return false;
   }
 
+  /**
+   * Apply hysteresis with the thresholds from the settings, or with thresholds chosen from the histogram of gradient
+   * strengths when the settings choose them automatically.
+   */
+  private void applyHysteresis() {
+    double high = chooseHighThreshold();
+    applyHysteresis(chooseLowThreshold(high), high);
+  }
+
+  /**
+   * Returns the upper threshold from the settings, or chooses it from the histogram of gradient strengths when the
+   * settings choose the thresholds automatically.
+   * @return The upper threshold.
+   */
+  private double chooseHighThreshold() {
+    if (settings.getThresholdMode() == CannySettings.THRESHOLDS_FIXED) {
+      return settings.getHighThreshold();
+    }
+    return bandHistograms[0].getHighThreshold(settings, minStrength, maxStrength);
+  }
+
+  /**
+   * Returns the lower threshold from the settings, or as a fraction of the upper threshold when the settings choose
+   * the thresholds automatically.
+   * @param high The upper threshold.
+   * @return The lower threshold.
+   */
+  private double chooseLowThreshold(double high) {
+    if (settings.getThresholdMode() == CannySettings.THRESHOLDS_FIXED) {
+      return settings.getLowThreshold();
+    }
+    return settings.getLowRatio() * high;
+  }
+
   /**
    * Apply hysteresis over two thresholds, t1 and t2.
    * The thresholds are compared against the normalized gradient strength at each pixel.
@@ -392,159 +1225,357 @@ public class CannyEdgeDetector {
    * @param t2 The upper threshold.
    */
   private void applyHysteresis(double t1, double t2) {
-    // First, set all values less than t1 to black
-    for(int r = 0; r < gradients.length; r++) {
-      for(int c = 0; c < gradients[r].length; c++) {
-        if(gradients[r][c][GRADIENT_STRENGTH_NORM] < t1) {
-          gradients[r][c][HYSTERESIS] = 0;
-        }
-      }
-    }
+    timer.start();
+    lowThreshold = t1;
+    highThreshold = t2;
 
-    // Second, set all values greater than t2 to white
-    for(int r = 0; r < gradients.length; r++) {
-      for(int c = 0; c < gradients[r].length; c++) {
-        if(gradients[r][c][GRADIENT_STRENGTH_NORM] > t2) {
-          gradients[r][c][HYSTERESIS] = 255;
-        }
-      }
-    }
+    // Sort every pixel against the thresholds.
+    thresholdBands.run();
 
     // Third, trace from t1s to t2s
-    // That is, for each pixel, if it an accepted edge pixel, recursively search all 8 neighbors and apply thresholding
-    // with t2.
-    for(int r = 0; r < gradients.length; r++) {
-      for(int c = 0; c < gradients[r].length; c++) {
-        if(gradients[r][c][HYSTERESIS] == 255) {
-          applyHysteresis(r - 1, c);      // N
-          applyHysteresis(r - 1, c + 1);  // NE
-          applyHysteresis(r, c + 1);      // E
-          applyHysteresis(r + 1, c + 1);  // SE
-          applyHysteresis(r + 1, c);      // S
-          applyHysteresis(r + 1, c - 1);  // SW
-          applyHysteresis(r, c - 1);      // W
-          applyHysteresis(r - 1, c - 1);  // NW
-        }
+    // That is, for each accepted edge pixel, search all 8 neighbors for pixels between the thresholds and keep
+    // following them. Any remaining pixels are set to black.
+    if (settings.getPool() != null) {
+      if (bandTracer == null) {
+        bandTracer = new Hysteresis.BandTracer(width, height, settings.getPool());
       }
+      bandTracer.trace(hysteresis);
     }
-
-    // Set any remaining pixels to black.
-    // Also set between thresholds image.
-    for(int r = 0; r < gradients.length; r++) {
-      for(int c = 0; c < gradients[r].length; c++) {
-        if(gradients[r][c][HYSTERESIS] == 127 || gradients[r][c][HYSTERESIS] == -1) {
-          imageBetweenThreshold.setGrayscale(c, r, 127);
-        }
-        else {
-          imageBetweenThreshold.setGrayscale(c, r, 0);
-        }
-        if(gradients[r][c][HYSTERESIS] == -1) {
-          gradients[r][c][HYSTERESIS] = 0;
-        }
+    else {
+      if (stack == null) {
+        stack = new IntStack();
       }
+      Hysteresis.trace(hysteresis, width, height, stack);
     }
+    timer.stop(STAGE_HYSTERESIS, width * height);
+  }
 
-    // Set high and hysteresis images
-    for(int r = 0; r < gradients.length; r++) {
-      for(int c = 0; c < gradients[r].length; c++) {
-        if(gradients[r][c][HYSTERESIS] == 255) {
-          imageHighThreshold.setGrayscale(c, r, 255);
-        }
-        else {
-          imageHighThreshold.setGrayscale(c, r, 0);
-        }
-        imageHysteresis.setGrayscale(c, r, (int) gradients[r][c][HYSTERESIS]);
-      }
+  /**
+   * Runs hysteresis again with a new pair of thresholds.
+   * The Gaussian filter, gradients, and non-maximum suppression are not run again, so trying many pairs of thresholds
+   * on the same image only costs one hysteresis pass each. Images that depend on the thresholds are rendered again
+   * the next time they are requested. Each pass is reported to the stage listener as another hysteresis stage.
+   * @param low The new lower threshold.
+   * @param high The new upper threshold.
+   */
+  public void rethreshold(double low, double high) {
+    if (edgesOnly && !reusable) {
+      throw new IllegalStateException("Cannot rethreshold in edges only mode");
     }
+    applyHysteresis(low, high);
+    imageMap.remove(IMAGE_HIGH_THRESHOLD);
+    imageMap.remove(IMAGE_BETWEEN_THRESHOLD);
+    imageMap.remove(IMAGE_HYSTERESIS);
   }
 
   /**
-   * Recursively search for and set values that match the threshold t such that t1 > t > t2.
-   * This method will only set thresholds at t2 if there is a path from a t2 pixel to a t1 pixel.
-   * @param r The row.
-   * @param c The column.
+   * Returns the lower threshold used by the last run of hysteresis.
+   * @return The lower threshold.
    */
-  private void applyHysteresis(int r, int c) {
-    // Check row bounds
-    if(r < 0 || r >= gradients.length) {
-      return;
-    }
+  public double getLowThreshold() {
+    return lowThreshold;
+  }
 
-    // Check column bounds
-    if(c < 0 || c >= gradients[r].length) {
-      return;
-    }
+  /**
+   * Returns the upper threshold used by the last run of hysteresis.
+   * @return The upper threshold.
+   */
+  public double getHighThreshold() {
+    return highThreshold;
+  }
 
-    // Are we looking at a pixel that has already been set?
-    if(gradients[r][c][HYSTERESIS] != -1) {
-      return;
+  /**
+   * Returns the gradient strength that a normalized strength of 0 stood for in the last frame. This is the weakest
+   * gradient of the frame unless a strength range has been set.
+   * @return The gradient strength that a normalized strength of 0 stood for.
+   */
+  public double getMinStrength() {
+    return minStrength;
+  }
+
+  /**
+   * Returns the gradient strength that a normalized strength of 1 stood for in the last frame. This is the strongest
+   * gradient of the frame unless a strength range has been set.
+   * @return The gradient strength that a normalized strength of 1 stood for.
+   */
+  public double getMaxStrength() {
+    return maxStrength;
+  }
+
+  /**
+   * Sets how values outside of the following frames are read, for frames cut out of a larger image. Only the sides of
+   * such a frame that are borders of the larger image should keep the policy of the settings, and the others should
+   * be given REPLICATE flags so that the cut does not look like a step down to zero.
+   * Must be called before the first frame.
+   * @param border One of the BORDER constants of Convolution, with or without REPLICATE flags.
+   */
+  void setBorder(int border) {
+    Convolution.checkBorder(border);
+    this.border = border;
+  }
+
+  /**
+   * Traces edges only inside of a window of the following frames. Every pixel outside of it is sorted as none before
+   * hysteresis, so it can neither start a trace nor carry one, while the pixels inside are still sorted against
+   * normalized strengths found over the whole frame.
+   * @param window The window, in the coordinates of the frame.
+   */
+  void setTraceWindow(Rectangle window) {
+    traceWindow = new Rectangle(window);
+  }
+
+  /**
+   * Normalizes the gradient strengths of the following frames against a fixed range instead of the weakest and
+   * strongest gradient of each frame, so that thresholds keep the same meaning from one frame to the next.
+   * Strengths outside of the range are not clamped, so the range should cover every strength the frames can have.
+   * @param min The gradient strength that a normalized strength of 0 stands for.
+   * @param max The gradient strength that a normalized strength of 1 stands for.
+   */
+  public void setStrengthRange(double min, double max) {
+    if (!(min < max)) {
+      throw new IllegalArgumentException("Invalid strength range " + min + " to " + max);
     }
+    fixedMinStrength = min;
+    fixedMaxStrength = max;
+  }
 
-    // Set the value to gray
-    gradients[r][c][HYSTERESIS] = 127;
+  /**
+   * Goes back to normalizing the gradient strengths of each frame against its weakest and strongest gradient.
+   */
+  public void clearStrengthRange() {
+    fixedMinStrength = Double.NaN;
+    fixedMaxStrength = Double.NaN;
+  }
 
-    // Recurs over all 8 neighbors
-    applyHysteresis(r - 1, c);      // N
-    applyHysteresis(r - 1, c + 1);  // NE
-    applyHysteresis(r, c + 1);      // E
-    applyHysteresis(r + 1, c + 1);  // SE
-    applyHysteresis(r + 1, c);      // S
-    applyHysteresis(r + 1, c - 1);  // SW
-    applyHysteresis(r, c - 1);      // W
-    applyHysteresis(r - 1, c - 1);  // NW
+  /**
+   * Returns a gradient strength that no frame with values between 0 and a largest value can reach. Each Sobel
+   * operator gives at most 4 times the largest value, so the strength is at most that times the square root of 2, and
+   * the fast approximation of the strength stays below that as well.
+   * @param maxValue The largest value of the frames, such as 255 for 8-bit frames.
+   * @return A bound on the gradient strength.
+   */
+  public static double getStrengthBound(double maxValue) {
+    return 4 * Math.sqrt(2) * maxValue;
   }
 
   /**
-   * Performs convolution given a single separated kernel which is the same kernel to use in both x and y-directions.
-   * @param convoludeImage The image to convolude with.
-   * @param kernel The single dimensional separated kernel.
-   * @param row The row to convolude at.
-   * @param col The column to convolude at.
-   * @return The result of convolution at row and col.
+   * Copies the edges of the last frame into an existing plane, with the same values as IMAGE_HYSTERESIS.
+   * Unlike getImage, this does not allocate.
+   * @param edges A plane of at least width * height values to store 255 for strong edges, 127 for traced edges, and 0
+   *              for everything else.
    */
-  private double convolude(EditableImage convoludeImage, double[] kernel, int row, int col) {
-    return this.convolude(convoludeImage, kernel, kernel, row, col);
+  public void copyEdges(byte[] edges) {
+    for (int i = 0; i < width * height; i++) {
+      edges[i] = (byte) renderPixel(IMAGE_HYSTERESIS, i);
+    }
   }
 
   /**
-   * Performs convolution given two separated kernels at a given row and col.
-   * This convolusion is separable. It performs convolusion along the rows, and then convolution along a single
-   * column.
-   * @param convoludeImage The image to convolude with.
-   * @param kernelX The separated kernel in the x-direction.
-   * @param kernelY The seperated kernel in the y-direction.
-   * @param row The row to convolude at.
-   * @param col The column to convolude at.
-   * @return The result of convolution at row and col.
+   * Links the edges of the last frame into chains of neighboring pixels, without rendering an image.
+   * @param subpixel Whether to also find the subpixel position of each edge pixel from the gradient strengths.
+   * @return The edge chains.
+   * @throws IllegalStateException If subpixel positions are requested in edges only mode, where the gradient strengths
+   *                               have been released.
    */
-  private double convolude(EditableImage convoludeImage, double[] kernelX, double[] kernelY, int row, int col) {
-    // Stores the results of convoluding among the rows
-    double[] tmp = new double[kernelX.length];
-    double sum = 0;
+  public EdgeChains getEdgeChains(boolean subpixel) {
+    if (subpixel && strength == null) {
+      throw new IllegalStateException("Cannot find subpixel positions in edges only mode");
+    }
+    return new EdgeChains(hysteresis, width, height, subpixel ? strength : null, direction);
+  }
 
-    // First perform convolution along the rows
-    for (int r = 0; r < kernelX.length; r++) {
-      for (int c = 0; c < kernelX.length; c++) {
-        sum += kernelX[c] * convoludeImage.getGrayscale(c + col, r + row);
+  /**
+   * Links the edges inside a window of the last frame into chains, in the coordinates of the window.
+   * Subpixel positions are only refined from pixels inside the window.
+   * @param subpixel Whether to also find the subpixel position of each edge pixel from the gradient strengths.
+   * @param x The x-coordinate of the window.
+   * @param y The y-coordinate of the window.
+   * @param w The width of the window.
+   * @param h The height of the window.
+   * @param mask A window sized plane that is 0 for pixels to leave out, or null to keep every pixel of the window.
+   * @return The edge chains.
+   */
+  EdgeChains getEdgeChains(boolean subpixel, int x, int y, int w, int h, byte[] mask) {
+    if (subpixel && strength == null) {
+      throw new IllegalStateException("Cannot find subpixel positions in edges only mode");
+    }
+    byte[] windowStates = new byte[w * h];
+    float[] windowStrength = subpixel ? new float[w * h] : null;
+    byte[] windowDirection = subpixel ? new byte[w * h] : null;
+
+    for (int r = 0; r < h; r++) {
+      for (int c = 0; c < w; c++) {
+        int i = (y + r) * width + x + c;
+        int j = r * w + c;
+        windowStates[j] = mask == null || mask[j] != 0 ? hysteresis[i] : EDGE_NONE;
+        if (subpixel) {
+          windowStrength[j] = strength[i];
+          windowDirection[j] = direction[i];
+        }
       }
-      tmp[r] = sum;
-      sum = 0;
     }
+    return new EdgeChains(windowStates, w, h, windowStrength, windowDirection);
+  }
+
+  /**
+   * Releases everything except for the hysteresis plane.
+   */
+  private void releaseIntermediates() {
+    blurred = null;
+    gradientX = null;
+    gradientY = null;
+    strength = null;
+    direction = null;
+  }
 
-    // Convolude along the single column.
-    for (int i = 0; i < kernelY.length; i++) {
-      sum += kernelY[i] * tmp[i];
+  /**
+   * Renders one of the images produced by this algorithm from the stored planes.
+   * @param IMAGE_TYPE The image types given by this class.
+   * @return A new image of the requested type.
+   */
+  private EditableImage renderImage(final int IMAGE_TYPE) {
+    // Every pixel is set below, so an image from the pool does not need to be cleared first.
+    ImagePool imagePool = settings.getImagePool();
+    EditableImage rendered;
+    if (image != null) {
+      rendered = image.createCompatible(imagePool);
+    }
+    else if (imagePool != null) {
+      rendered = new EditableImage(imagePool.acquire(width, height, BufferedImage.TYPE_BYTE_GRAY));
+    }
+    else {
+      rendered = new EditableImage(new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY));
     }
 
-    return sum;
+    // Rendered a row at a time, so that only a row of scratch is allocated whether or not the image is pooled.
+    int[] row = new int[width];
+    int[] rowRgb = new int[width];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        row[x] = renderPixel(IMAGE_TYPE, y * width + x);
+      }
+      rendered.setGrayscaleRow(y, row, rowRgb);
+    }
+    return rendered;
+  }
+
+  /**
+   * Returns the grayscale value of a single pixel in one of the images produced by this algorithm.
+   * @param IMAGE_TYPE The image types given by this class.
+   * @param i The index of the pixel in the planes.
+   * @return The grayscale value of the pixel.
+   */
+  private int renderPixel(final int IMAGE_TYPE, int i) {
+    switch (IMAGE_TYPE) {
+      case IMAGE_GAUSSIAN:
+        return (int) blurred[i];
+      case IMAGE_GRADIENT_X:
+        return (int) gradientX[i];
+      case IMAGE_GRADIENT_Y:
+        return (int) gradientY[i];
+      case IMAGE_GRADIENT_X_NORM:
+        // Gradient in x-direction normalized to between 0 and 255
+        return (int) ((gradientX[i] - minX) / (maxX - minX) * 255);
+      case IMAGE_GRADIENT_Y_NORM:
+        // Gradient in y-direction normalized to between 0 and 255
+        return (int) ((gradientY[i] - minY) / (maxY - minY) * 255);
+      case IMAGE_GRADIENT_STRENGTH:
+        return (int) strength[i];
+      case IMAGE_GRADIENT_STRENGTH_NORM:
+        // Gradient strength normalized to between 0 and 255
+        return (int) (getStrengthNorm(i) * 255);
+      case IMAGE_NON_MAXIMUM_SUPPRESSION:
+        // The normalized gradient strength with non-maximum pixels removed
+        if ((direction[i] & SUPPRESSED) != 0) {
+          return 0;
+        }
+        return (int) (getStrengthNorm(i) * 255);
+      case IMAGE_HIGH_THRESHOLD:
+        return hysteresis[i] == EDGE_STRONG ? 255 : 0;
+      case IMAGE_BETWEEN_THRESHOLD:
+        // Pixels that survived suppression and fall between the two thresholds, whether or not they were traced
+        if ((direction[i] & SUPPRESSED) == 0 && getStrengthNorm(i) >= lowThreshold &&
+            getStrengthNorm(i) <= highThreshold) {
+          return 127;
+        }
+        return 0;
+      case IMAGE_HYSTERESIS:
+        if (hysteresis[i] == EDGE_STRONG) {
+          return 255;
+        }
+        return hysteresis[i] == EDGE_WEAK ? 127 : 0;
+      default:
+        throw new IllegalArgumentException("Unknown image type " + IMAGE_TYPE);
+    }
   }
 
   /**
    * Return one of the images stored during processing.
+   * The image is rendered the first time it is requested.
    * @param IMAGE_TYPE The image types given by this class.
    * @return The EditableImage stored at the IMAGE_TYPE location.
    */
   public EditableImage getImage(final int IMAGE_TYPE) {
-    return imageMap.get(IMAGE_TYPE);
+    EditableImage stored = imageMap.get(IMAGE_TYPE);
+    if (stored == null) {
+      if (edgesOnly && IMAGE_TYPE != IMAGE_HYSTERESIS) {
+        throw new IllegalStateException("Only IMAGE_HYSTERESIS is available in edges only mode");
+      }
+      stored = renderImage(IMAGE_TYPE);
+      imageMap.put(IMAGE_TYPE, stored);
+    }
+    return stored;
+  }
+
+  /**
+   * Returns every image rendered so far to the image pool of the settings, and forgets them. They are rendered again
+   * if they are requested again. The released images, and any copies or views of them, must not be used afterwards.
+   * Without an image pool, the images are only forgotten.
+   */
+  public void releaseImages() {
+    ImagePool imagePool = settings.getImagePool();
+    if (imagePool != null) {
+      for (EditableImage stored : imageMap.values()) {
+        imagePool.release(stored.getImage());
+      }
+    }
+    imageMap.clear();
+  }
+
+  /**
+   * The min and max gradient values found over some range of pixels.
+   */
+  private static class GradientLimits {
+    double minX;
+    double maxX;
+    double minY;
+    double maxY;
+    double minStrength;
+    double maxStrength;
+
+    /**
+     * Resets these limits so that any value will widen them.
+     */
+    void reset() {
+      minX = Double.MAX_VALUE;
+      maxX = Double.MIN_VALUE;
+      minY = Double.MAX_VALUE;
+      maxY = Double.MIN_VALUE;
+      minStrength = Double.MAX_VALUE;
+      maxStrength = Double.MIN_VALUE;
+    }
+
+    /**
+     * Widens these limits to also cover another set of limits.
+     * @param other The other limits.
+     */
+    void merge(GradientLimits other) {
+      minX = Math.min(minX, other.minX);
+      maxX = Math.max(maxX, other.maxX);
+      minY = Math.min(minY, other.minY);
+      maxY = Math.max(maxY, other.maxY);
+      minStrength = Math.min(minStrength, other.minStrength);
+      maxStrength = Math.max(maxStrength, other.maxStrength);
+    }
   }
 }
@@ -0,0 +1,191 @@
+package edu.achriste.image;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs the Canny Edge Detector over the same image at several sigmas.
+ * The image is only read once, and the scratch space used by the Gaussian filter is shared between the levels.
+ *
+ * By default each level is blurred directly from the original image, so every level gives exactly the same result as
+ * running a separate CannyEdgeDetector at that sigma. In incremental mode, the levels are blurred in order of
+ * increasing sigma and each level is blurred from the level below it. Blurring by sigma a and then by sigma b is the
+ * same as blurring by sqrt(a^2 + b^2), so each step only needs a small kernel for the difference between the two
+ * variances. The kernels used by the detector are cut off at a length of 2 * sigma, which makes them flatter than a
+ * true Gaussian, so each step is sized from the variance the cut off kernels actually have. The incremental levels
+ * have the same amount of blur as the levels blurred directly, but not exactly the same values.
+ * @author Anthony Christe
+ */
+public class CannyScaleSpace {
+  /**
+   * The sigmas in the order they were given.
+   */
+  private double[] sigmas;
+
+  /**
+   * One detector for each sigma, in the same order as the sigmas.
+   */
+  private CannyEdgeDetector[] detectors;
+
+  /**
+   * Run the Canny Edge Detector on the image at each of the given sigmas, blurring each level from the original image.
+   * @param image The image to run edge detection on.
+   * @param settings The settings to use for every level. The sigma of the settings is ignored.
+   * @param sigmas The sigmas to run edge detection at.
+   */
+  public CannyScaleSpace(EditableImage image, CannySettings settings, double... sigmas) {
+    this(image, settings, false, sigmas);
+  }
+
+  /**
+   * Run the Canny Edge Detector on the image at each of the given sigmas.
+   * @param image The image to run edge detection on.
+   * @param settings The settings to use for every level. The sigma of the settings is ignored.
+   * @param incremental Whether to blur each level from the level with the next smaller sigma.
+   * @param sigmas The sigmas to run edge detection at.
+   */
+  public CannyScaleSpace(EditableImage image, CannySettings settings, boolean incremental, double... sigmas) {
+    this.sigmas = sigmas.clone();
+    this.detectors = new CannyEdgeDetector[sigmas.length];
+
+    int width = image.getWidth();
+    int height = image.getHeight();
+    ForkJoinPool pool = settings.getPool();
+    int border = settings.getBorder();
+
+    // The original image is only read once, and the row scratch plane is shared by every level.
+    float[] source = image.getGrayscalePlane();
+    boolean boxes = settings.getBlur() == CannySettings.BLUR_BOXES;
+    float[] tmp = pool == null || boxes ? new float[width * height] : null;
+
+    // Visit the levels in order of increasing sigma so that each incremental level can start from the one before it.
+    Integer[] order = new Integer[sigmas.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    if (incremental) {
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return Double.compare(CannyScaleSpace.this.sigmas[a], CannyScaleSpace.this.sigmas[b]);
+        }
+      });
+    }
+
+    float[] previous = source;
+    double previousVariance = 0;
+    for (int level : order) {
+      double sigma = sigmas[level];
+      double[] kernel = CannyEdgeDetector.getGaussianKernel(sigma);
+      double variance = Convolution.getVariance(kernel);
+      float[] blurred = new float[width * height];
+
+      // The detectors are given the blurred levels, so the Gaussian stage is timed here instead.
+      StageTimer timer = new StageTimer(settings.getListener(), sigma);
+      timer.start();
+      if (incremental && previous != source && boxes) {
+        // Box filters cost the same at any width, but blurring by the missing variance still keeps the boxes small.
+        BoxBlur.blur(previous, blurred, tmp, width, height, BoxBlur.getWidths(variance - previousVariance), pool,
+            border);
+      }
+      else if (incremental && previous != source) {
+        // Only blur by the variance that the previous level is missing.
+        double[] step = getStepKernel(variance - previousVariance);
+        if (step.length == 1) {
+          System.arraycopy(previous, 0, blurred, 0, blurred.length);
+        }
+        else {
+          blur(previous, blurred, tmp, width, height, step, pool, border);
+        }
+      }
+      else if (boxes) {
+        BoxBlur.blur(source, blurred, tmp, width, height, BoxBlur.getWidths(variance), pool, border);
+      }
+      else {
+        blur(source, blurred, tmp, width, height, kernel, pool, border);
+      }
+      timer.stop(CannyEdgeDetector.STAGE_GAUSSIAN, width * height);
+
+      detectors[level] = new CannyEdgeDetector(image, settings.copy(sigma), blurred);
+      previous = blurred;
+      previousVariance = variance;
+    }
+  }
+
+  /**
+   * Returns a symmetric Gaussian kernel with the given variance, sampled out to three standard deviations on each side.
+   * @param variance The variance of the kernel.
+   * @return A Gaussian kernel with an odd length, or the kernel {1} if the variance is too small to blur with.
+   */
+  private static double[] getStepKernel(double variance) {
+    double sigma = Math.sqrt(Math.max(0, variance));
+    int radius = (int) Math.ceil(3 * sigma);
+    double[] kernel = new double[2 * radius + 1];
+    if (radius == 0) {
+      kernel[0] = 1;
+      return kernel;
+    }
+
+    double norm = 0;
+    for (int i = 0; i < kernel.length; i++) {
+      kernel[i] = Math.exp(-(i - radius) * (i - radius) / (2 * variance));
+      norm += kernel[i];
+    }
+    for (int i = 0; i < kernel.length; i++) {
+      kernel[i] /= norm;
+    }
+    return kernel;
+  }
+
+  /**
+   * Blurs a plane with a separated kernel along its rows and then along its columns.
+   * @param src The plane to blur.
+   * @param dst The plane to store the result in.
+   * @param tmp Scratch plane used when running on the calling thread.
+   * @param width The width of the planes.
+   * @param height The height of the planes.
+   * @param kernel The single dimensional kernel.
+   * @param pool The pool to run on, or null to run on the calling thread.
+   * @param border One of the BORDER constants of Convolution.
+   */
+  private static void blur(float[] src, float[] dst, float[] tmp, int width, int height, double[] kernel,
+                           ForkJoinPool pool, int border) {
+    if (pool == null) {
+      Convolution.convolve(src, dst, tmp, width, height, kernel, kernel, border);
+    }
+    else {
+      Convolution.convolve(src, dst, width, height, kernel, kernel, pool, border);
+    }
+  }
+
+  /**
+   * Returns the sigmas in the order they were given.
+   * @return The sigmas in the order they were given.
+   */
+  public double[] getSigmas() {
+    return sigmas.clone();
+  }
+
+  /**
+   * Returns the detector that was run at the given sigma.
+   * @param sigma One of the sigmas given when this scale space was created.
+   * @return The detector that was run at the given sigma.
+   */
+  public CannyEdgeDetector getDetector(double sigma) {
+    for (int i = 0; i < sigmas.length; i++) {
+      if (sigmas[i] == sigma) {
+        return detectors[i];
+      }
+    }
+    throw new IllegalArgumentException("No level with sigma " + sigma);
+  }
+
+  /**
+   * Returns the detectors for every level, in the same order as the sigmas were given.
+   * @return The detectors for every level.
+   */
+  public CannyEdgeDetector[] getDetectors() {
+    return detectors.clone();
+  }
+}
@@ -0,0 +1,357 @@
+package edu.achriste.image;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Holds the settings used by a run of the Canny Edge Detector.
+ * Setters return this settings object so that settings can be chained.
+ * @author Anthony Christe
+ */
+public class CannySettings {
+  /**
+   * Sigma value to use during detection.
+   */
+  private double sigma;
+
+  // The lower and upper thresholds used during hysteresis.
+  private double lowThreshold;
+  private double highThreshold;
+
+  /**
+   * How the hysteresis thresholds are chosen, as one of the THRESHOLDS constants.
+   */
+  private int thresholdMode;
+
+  /**
+   * The fraction of pixels that are not strong edges, used by THRESHOLDS_PERCENTILE.
+   */
+  private double percentile;
+
+  /**
+   * The lower threshold as a fraction of the upper threshold, used when the thresholds are chosen automatically.
+   */
+  private double lowRatio;
+
+  // Constants for the ways of choosing the hysteresis thresholds.
+  public static final int THRESHOLDS_FIXED = 0;
+  public static final int THRESHOLDS_OTSU = 1;
+  public static final int THRESHOLDS_PERCENTILE = 2;
+
+  /**
+   * Whether to keep only the data needed for the final hysteresis image.
+   */
+  private boolean edgesOnly;
+
+  /**
+   * Whether to approximate the gradient strength and direction without square roots or trigonometry.
+   */
+  private boolean fastGradients;
+
+  /**
+   * How the image is blurred, as one of the BLUR constants.
+   */
+  private int blur;
+
+  // Constants for the ways of blurring the image.
+  public static final int BLUR_KERNEL = 0;
+  public static final int BLUR_BOXES = 1;
+
+  /**
+   * How values outside of the image are read by the blur and the Sobel operators, as one of the BORDER constants of
+   * Convolution.
+   */
+  private int border;
+
+  /**
+   * The pool to run on, or null to run on the calling thread.
+   */
+  private ForkJoinPool pool;
+
+  /**
+   * The listener told about each step as it completes, or null.
+   */
+  private CannyStageListener listener;
+
+  /**
+   * The pool that rendered images are taken from, or null.
+   */
+  private ImagePool imagePool;
+
+  /**
+   * Creates settings with the given sigma and the default thresholds of 0.1 and 0.3.
+   * The Gaussian filter used to read back pixels it had already blurred, which blurred images more than the kernel
+   * does. It now blurs by the kernel alone, so the same thresholds find noticeably fewer edge pixels than they used
+   * to, about half as many at a sigma of 2.5. Lower thresholds such as 0.08 and 0.25 give about the old edge density.
+   * @param sigma The sigma to use for edge detection.
+   */
+  public CannySettings(double sigma) {
+    this.sigma = sigma;
+    this.lowThreshold = 0.1;
+    this.highThreshold = 0.3;
+    this.thresholdMode = THRESHOLDS_FIXED;
+    this.percentile = 0.9;
+    this.lowRatio = 0.4;
+    this.edgesOnly = false;
+    this.fastGradients = false;
+    this.blur = BLUR_KERNEL;
+    this.border = Convolution.BORDER_ZERO;
+    this.pool = null;
+    this.listener = null;
+  }
+
+  /**
+   * Returns a copy of these settings with a different sigma.
+   * @param sigma The sigma to use for edge detection.
+   * @return A copy of these settings.
+   */
+  public CannySettings copy(double sigma) {
+    CannySettings copy = new CannySettings(sigma);
+    copy.lowThreshold = lowThreshold;
+    copy.highThreshold = highThreshold;
+    copy.thresholdMode = thresholdMode;
+    copy.percentile = percentile;
+    copy.lowRatio = lowRatio;
+    copy.edgesOnly = edgesOnly;
+    copy.fastGradients = fastGradients;
+    copy.blur = blur;
+    copy.border = border;
+    copy.pool = pool;
+    copy.listener = listener;
+    copy.imagePool = imagePool;
+    return copy;
+  }
+
+  /**
+   * Returns the sigma to use for edge detection.
+   * @return The sigma to use for edge detection.
+   */
+  public double getSigma() {
+    return sigma;
+  }
+
+  /**
+   * Returns the lower hysteresis threshold.
+   * @return The lower hysteresis threshold.
+   */
+  public double getLowThreshold() {
+    return lowThreshold;
+  }
+
+  /**
+   * Returns the upper hysteresis threshold.
+   * @return The upper hysteresis threshold.
+   */
+  public double getHighThreshold() {
+    return highThreshold;
+  }
+
+  /**
+   * Sets the hysteresis thresholds. Both are compared against the normalized (0 - 1) gradient strength.
+   * Turns off choosing the thresholds automatically.
+   * @param low The lower threshold.
+   * @param high The upper threshold.
+   * @return These settings.
+   */
+  public CannySettings setThresholds(double low, double high) {
+    this.lowThreshold = low;
+    this.highThreshold = high;
+    this.thresholdMode = THRESHOLDS_FIXED;
+    return this;
+  }
+
+  /**
+   * Returns how the hysteresis thresholds are chosen.
+   * @return One of the THRESHOLDS constants.
+   */
+  public int getThresholdMode() {
+    return thresholdMode;
+  }
+
+  /**
+   * Returns the fraction of pixels that are not strong edges when thresholds are chosen by percentile.
+   * @return The percentile, from 0 to 1.
+   */
+  public double getPercentile() {
+    return percentile;
+  }
+
+  /**
+   * Returns the lower threshold as a fraction of the upper threshold when thresholds are chosen automatically.
+   * @return The ratio of the lower threshold to the upper threshold.
+   */
+  public double getLowRatio() {
+    return lowRatio;
+  }
+
+  /**
+   * Chooses the hysteresis thresholds for each image with Otsu's method over a histogram of its gradient strengths.
+   * The upper threshold splits the weak and strong gradients, and the lower threshold is a fraction of it.
+   * Only the strengths that survive non-maximum suppression are counted, so the background does not pull the
+   * thresholds down.
+   * @param lowRatio The lower threshold as a fraction of the upper threshold, such as 0.4.
+   * @return These settings.
+   */
+  public CannySettings setOtsuThresholds(double lowRatio) {
+    this.thresholdMode = THRESHOLDS_OTSU;
+    this.lowRatio = lowRatio;
+    return this;
+  }
+
+  /**
+   * Chooses the hysteresis thresholds for each image from a histogram of its gradient strengths, so that a fixed
+   * fraction of the pixels that survive non-maximum suppression are below the upper threshold. The lower threshold is
+   * a fraction of the upper threshold.
+   * @param percentile The fraction of the surviving pixels that are not strong edges, such as 0.9.
+   * @param lowRatio The lower threshold as a fraction of the upper threshold, such as 0.4.
+   * @return These settings.
+   */
+  public CannySettings setPercentileThresholds(double percentile, double lowRatio) {
+    this.thresholdMode = THRESHOLDS_PERCENTILE;
+    this.percentile = percentile;
+    this.lowRatio = lowRatio;
+    return this;
+  }
+
+  /**
+   * Returns whether only the final hysteresis image is kept.
+   * @return Whether only the final hysteresis image is kept.
+   */
+  public boolean isEdgesOnly() {
+    return edgesOnly;
+  }
+
+  /**
+   * Sets whether to keep only the data needed for the final hysteresis image.
+   * @param edgesOnly Whether to keep only the data needed for the final hysteresis image.
+   * @return These settings.
+   */
+  public CannySettings setEdgesOnly(boolean edgesOnly) {
+    this.edgesOnly = edgesOnly;
+    return this;
+  }
+
+  /**
+   * Returns whether the gradient strength and direction are approximated.
+   * @return Whether the gradient strength and direction are approximated.
+   */
+  public boolean isFastGradients() {
+    return fastGradients;
+  }
+
+  /**
+   * Sets whether to approximate the gradient strength and direction.
+   * When set, the strength is the larger of the absolute x and y-gradients plus 3/8 of the smaller one instead of the
+   * length of the gradient, and the direction is rounded by comparing the ratio of the gradients against tan(22.5) and
+   * tan(67.5) instead of finding the angle. Use EdgeComparison to measure how far the edges move on a given image.
+   * @param fastGradients Whether to approximate the gradient strength and direction.
+   * @return These settings.
+   */
+  public CannySettings setFastGradients(boolean fastGradients) {
+    this.fastGradients = fastGradients;
+    return this;
+  }
+
+  /**
+   * Returns how the image is blurred.
+   * @return BLUR_KERNEL or BLUR_BOXES.
+   */
+  public int getBlur() {
+    return blur;
+  }
+
+  /**
+   * Sets how the image is blurred. BLUR_KERNEL convolves the image with the sampled Gaussian kernel, whose length and
+   * cost per pixel grow with sigma. BLUR_BOXES runs three stacked box filters instead, which cost the same per pixel at
+   * any sigma. The boxes approximate a true Gaussian with the same variance as the sampled kernel, while the sampled
+   * kernel is cut off at one sigma on each side and is much flatter, so the edges found can differ. EdgeComparison
+   * reports how much. The boxes are meant for large sigmas, since they cannot follow small variances closely.
+   * @param blur BLUR_KERNEL or BLUR_BOXES.
+   * @return These settings.
+   */
+  public CannySettings setBlur(int blur) {
+    if (blur != BLUR_KERNEL && blur != BLUR_BOXES) {
+      throw new IllegalArgumentException("Unknown blur " + blur);
+    }
+    this.blur = blur;
+    return this;
+  }
+
+  /**
+   * Returns how values outside of the image are read.
+   * @return One of the BORDER constants of Convolution.
+   */
+  public int getBorder() {
+    return border;
+  }
+
+  /**
+   * Sets how values outside of the image are read by the blur and the Sobel operators. Convolution.BORDER_ZERO treats
+   * them as black, which is what the detector has always done and which darkens the blurred image near its border, so
+   * strong false edges can show up along it at large sigmas. BORDER_REPLICATE and BORDER_REFLECT continue the image
+   * past its border instead. BORDER_WRAP is meant for images that really do wrap around, such as panoramas.
+   * @param border One of the BORDER constants of Convolution.
+   * @return These settings.
+   */
+  public CannySettings setBorder(int border) {
+    Convolution.checkBorder(border);
+    this.border = border;
+    return this;
+  }
+
+  /**
+   * Returns the pool to run on, or null if detection runs on the calling thread.
+   * @return The pool to run on, or null.
+   */
+  public ForkJoinPool getPool() {
+    return pool;
+  }
+
+  /**
+   * Sets the pool to run on. When a pool is set, every step of detection is split into bands of rows that run across
+   * the pool's threads.
+   * @param pool The pool to run on, or null to run on the calling thread.
+   * @return These settings.
+   */
+  public CannySettings setPool(ForkJoinPool pool) {
+    this.pool = pool;
+    return this;
+  }
+
+  /**
+   * Returns the listener told about each step as it completes, or null if steps are not timed.
+   * @return The stage listener, or null.
+   */
+  public CannyStageListener getListener() {
+    return listener;
+  }
+
+  /**
+   * Sets the listener told about the wall time, pixels, and allocations of each step as it completes.
+   * @param listener The stage listener, or null to not time the steps.
+   * @return These settings.
+   */
+  public CannySettings setListener(CannyStageListener listener) {
+    this.listener = listener;
+    return this;
+  }
+
+  /**
+   * Returns the pool that rendered images are taken from, or null if each one is newly allocated.
+   * @return The image pool, or null.
+   */
+  public ImagePool getImagePool() {
+    return imagePool;
+  }
+
+  /**
+   * Sets the pool that rendered images are taken from. Images go back to the pool when
+   * CannyEdgeDetector.releaseImages is called, so a long-running process that detects one frame after another reuses
+   * the same few images instead of allocating new ones for every frame.
+   * @param imagePool The image pool, or null to allocate each rendered image.
+   * @return These settings.
+   */
+  public CannySettings setImagePool(ImagePool imagePool) {
+    this.imagePool = imagePool;
+    return this;
+  }
+}
@@ -0,0 +1,20 @@
+package edu.achriste.image;
+
+/**
+ * Receives the wall time, size, and allocations of each step of the Canny Edge Detector as it completes.
+ * A listener is set through CannySettings.setListener, and is called on the thread that ran the detector. The same
+ * settings are often shared by detectors on several threads, so listeners should be thread safe.
+ * @author Anthony Christe
+ */
+public interface CannyStageListener {
+  /**
+   * Called after a step of edge detection completes.
+   * @param stage The step, as one of the CannyEdgeDetector.STAGE constants.
+   * @param sigma The sigma of the detector that ran the step.
+   * @param nanos The wall time that the step took, in nanoseconds.
+   * @param pixels The number of pixels that the step processed.
+   * @param allocatedBytes The bytes allocated on the calling thread during the step, or -1 if the JVM cannot count
+   *                       allocations. Work done on the threads of a pool is not counted.
+   */
+  void stageCompleted(int stage, double sigma, long nanos, long pixels, long allocatedBytes);
+}
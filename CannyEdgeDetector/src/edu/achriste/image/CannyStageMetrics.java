@@ -0,0 +1,136 @@
+package edu.achriste.image;
+
+/**
+ * Collects the time, pixels, and allocations of each step of the Canny Edge Detector over many runs.
+ * Set it on the settings of every detector to be measured, then read the totals or print the summary. Detectors
+ * sharing one set of metrics may run on different threads.
+ * @author Anthony Christe
+ */
+public class CannyStageMetrics implements CannyStageListener {
+  // Names of the STAGE constants, in order.
+  private static final String[] STAGE_NAMES = {"gaussian", "gradients", "non-maximum suppression", "hysteresis"};
+
+  // Totals for each stage, indexed by the STAGE constants.
+  private long[] counts = new long[STAGE_NAMES.length];
+  private long[] totalNanos = new long[STAGE_NAMES.length];
+  private long[] maxNanos = new long[STAGE_NAMES.length];
+  private long[] pixels = new long[STAGE_NAMES.length];
+
+  /**
+   * The total bytes allocated by each stage, or -1 once a run could not count its allocations.
+   */
+  private long[] allocatedBytes = new long[STAGE_NAMES.length];
+
+  /**
+   * Returns the name of a stage.
+   * @param stage One of the CannyEdgeDetector.STAGE constants.
+   * @return The name of the stage.
+   */
+  public static String getStageName(int stage) {
+    return STAGE_NAMES[stage];
+  }
+
+  /**
+   * Adds a completed step to the totals.
+   * @param stage The step, as one of the CannyEdgeDetector.STAGE constants.
+   * @param sigma The sigma of the detector that ran the step.
+   * @param nanos The wall time that the step took, in nanoseconds.
+   * @param pixels The number of pixels that the step processed.
+   * @param allocatedBytes The bytes allocated on the calling thread during the step, or -1 if unknown.
+   */
+  @Override
+  public synchronized void stageCompleted(int stage, double sigma, long nanos, long pixels, long allocatedBytes) {
+    counts[stage]++;
+    totalNanos[stage] += nanos;
+    maxNanos[stage] = Math.max(maxNanos[stage], nanos);
+    this.pixels[stage] += pixels;
+    if (allocatedBytes < 0 || this.allocatedBytes[stage] < 0) {
+      this.allocatedBytes[stage] = -1;
+    }
+    else {
+      this.allocatedBytes[stage] += allocatedBytes;
+    }
+  }
+
+  /**
+   * Returns the number of times a stage has run.
+   * @param stage One of the CannyEdgeDetector.STAGE constants.
+   * @return The number of times the stage has run.
+   */
+  public synchronized long getCount(int stage) {
+    return counts[stage];
+  }
+
+  /**
+   * Returns the total wall time of a stage.
+   * @param stage One of the CannyEdgeDetector.STAGE constants.
+   * @return The total wall time of the stage, in nanoseconds.
+   */
+  public synchronized long getTotalNanos(int stage) {
+    return totalNanos[stage];
+  }
+
+  /**
+   * Returns the longest wall time of a single run of a stage.
+   * @param stage One of the CannyEdgeDetector.STAGE constants.
+   * @return The longest wall time of the stage, in nanoseconds.
+   */
+  public synchronized long getMaxNanos(int stage) {
+    return maxNanos[stage];
+  }
+
+  /**
+   * Returns the total number of pixels processed by a stage.
+   * @param stage One of the CannyEdgeDetector.STAGE constants.
+   * @return The total number of pixels processed.
+   */
+  public synchronized long getPixels(int stage) {
+    return pixels[stage];
+  }
+
+  /**
+   * Returns the total bytes allocated on the detecting threads by a stage.
+   * @param stage One of the CannyEdgeDetector.STAGE constants.
+   * @return The total bytes allocated, or -1 if any run could not count its allocations.
+   */
+  public synchronized long getAllocatedBytes(int stage) {
+    return allocatedBytes[stage];
+  }
+
+  /**
+   * Clears the totals of every stage.
+   */
+  public synchronized void reset() {
+    for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+      counts[stage] = 0;
+      totalNanos[stage] = 0;
+      maxNanos[stage] = 0;
+      pixels[stage] = 0;
+      allocatedBytes[stage] = 0;
+    }
+  }
+
+  /**
+   * Returns a summary with one line for each stage, giving the mean and max time, the time per megapixel, and the
+   * bytes allocated per run.
+   * @return A summary of every stage.
+   */
+  @Override
+  public synchronized String toString() {
+    StringBuilder summary = new StringBuilder();
+    for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+      long count = Math.max(1, counts[stage]);
+      summary.append(String.format("%-24s runs %6d  mean %8.3f ms  max %8.3f ms  %8.3f ms/MP  ",
+          STAGE_NAMES[stage], counts[stage], totalNanos[stage] / 1e6 / count, maxNanos[stage] / 1e6,
+          pixels[stage] == 0 ? 0 : totalNanos[stage] / 1e6 / (pixels[stage] / 1e6)));
+      if (allocatedBytes[stage] < 0) {
+        summary.append("allocated unknown");
+      }
+      else {
+        summary.append(String.format("allocated %d B/run", allocatedBytes[stage] / count));
+      }
+      summary.append(String.format("%n"));
+    }
+    return summary.toString();
+  }
+}
@@ -0,0 +1,972 @@
+package edu.achriste.image;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Provides convolution over primitive grayscale planes.
+ * A plane is a row-major array of width * height values, so the value at x, y is stored at index y * width + x.
+ * Kernels are anchored at their middle index (length / 2), and values outside of the plane are treated as zero. This
+ * is the same convention that the Canny Edge Detector has always used for its Gaussian and Sobel steps.
+ *
+ * The separable passes can instead read values outside of the plane through a border policy, which finds the pixel of
+ * the plane that each outside value stands for. Nothing is copied into a padded plane, and only the pixels whose
+ * kernels cross the border of the plane look at the policy at all. The two-dimensional strategies always use zeros.
+ *
+ * Three strategies are provided. Separable kernels are applied in two single-dimensional passes, small
+ * two-dimensional kernels are applied directly, and large two-dimensional kernels are applied in the frequency domain
+ * using the FFT. When a strategy is not given, one is chosen based on the kernel.
+ *
+ * The single-dimensional passes have two sets of kernels. The scalar kernels visit one output pixel at a time. The
+ * vector kernels split off the pixels near the ends of each row, and run the rest as simple loops over whole rows that
+ * the JIT compiler can turn into SIMD instructions. Both give exactly the same results. The vector kernels are used
+ * unless the edu.achriste.image.kernels system property is set to "scalar", and can be switched at runtime with
+ * setKernels.
+ * @author Anthony Christe
+ */
+public class Convolution {
+  // Constants for selecting a convolution strategy.
+  public static final int STRATEGY_AUTO = 0;
+  public static final int STRATEGY_DIRECT = 1;
+  public static final int STRATEGY_SEPARABLE = 2;
+  public static final int STRATEGY_FFT = 3;
+
+  /**
+   * Non-separable kernels with more elements than this are convolved using the FFT.
+   * Below this size the direct method does less work than the three transforms the FFT needs.
+   */
+  public static final int FFT_THRESHOLD = 15 * 15;
+
+  /**
+   * Relative tolerance used when testing if a two-dimensional kernel is separable.
+   */
+  private static final double SEPARABLE_TOLERANCE = 1e-9;
+
+  // Constants for the border policies, which decide what the values outside of the plane are.
+  // BORDER_ZERO treats them as zero, BORDER_REPLICATE repeats the nearest pixel of the plane, BORDER_REFLECT mirrors
+  // the plane about its border (so the pixel on the border is repeated once), and BORDER_WRAP tiles the plane.
+  public static final int BORDER_ZERO = 0;
+  public static final int BORDER_REPLICATE = 1;
+  public static final int BORDER_REFLECT = 2;
+  public static final int BORDER_WRAP = 3;
+
+  // Flags that can be added to any border policy except BORDER_WRAP to repeat the nearest pixel past some sides of the
+  // plane instead. They are for planes cut out of a larger image, where only some sides of the plane are borders of the
+  // image. Each pass only looks at two of the sides, so the flags for the left and top sides are both turned into
+  // REPLICATE_LEFT, and the flags for the right and bottom sides into REPLICATE_RIGHT, by getRowBorder and
+  // getColumnBorder.
+  static final int REPLICATE_LEFT = 4;
+  static final int REPLICATE_RIGHT = 8;
+  static final int REPLICATE_TOP = 16;
+  static final int REPLICATE_BOTTOM = 32;
+  private static final int POLICY_MASK = 3;
+
+  // Constants for selecting the kernels used by the single-dimensional passes.
+  public static final int KERNELS_SCALAR = 0;
+  public static final int KERNELS_VECTOR = 1;
+
+  /**
+   * The kernels currently in use.
+   */
+  private static volatile int kernels = "scalar".equals(System.getProperty("edu.achriste.image.kernels")) ?
+      KERNELS_SCALAR : KERNELS_VECTOR;
+
+  /**
+   * Sums for the middle of a row, kept per thread so that the vector kernels do not allocate once they have grown.
+   */
+  private static final ThreadLocal<double[]> ROW_SUMS = new ThreadLocal<double[]>() {
+    @Override
+    protected double[] initialValue() {
+      return new double[0];
+    }
+  };
+
+  /**
+   * A row convolved along the rows for a border policy, when the row it stands for was not convolved by the band.
+   */
+  private static final ThreadLocal<float[]> BORDER_ROW = new ThreadLocal<float[]>() {
+    @Override
+    protected float[] initialValue() {
+      return new float[0];
+    }
+  };
+
+  /**
+   * Returns the kernels used by the single-dimensional passes.
+   * @return KERNELS_SCALAR or KERNELS_VECTOR.
+   */
+  public static int getKernels() {
+    return kernels;
+  }
+
+  /**
+   * Selects the kernels used by the single-dimensional passes for every convolution that starts after this call.
+   * @param kernels KERNELS_SCALAR or KERNELS_VECTOR.
+   */
+  public static void setKernels(int kernels) {
+    if (kernels != KERNELS_SCALAR && kernels != KERNELS_VECTOR) {
+      throw new IllegalArgumentException("Unknown kernels " + kernels);
+    }
+    Convolution.kernels = kernels;
+  }
+
+  /**
+   * Makes sure that a border policy is one of the BORDER constants, with or without REPLICATE flags.
+   * @param border The border policy.
+   * @throws IllegalArgumentException If the border policy is unknown, or BORDER_WRAP is given with flags.
+   */
+  static void checkBorder(int border) {
+    int sides = REPLICATE_LEFT | REPLICATE_RIGHT | REPLICATE_TOP | REPLICATE_BOTTOM;
+    if ((border & ~(POLICY_MASK | sides)) != 0 || ((border & POLICY_MASK) == BORDER_WRAP && border != BORDER_WRAP)) {
+      throw new IllegalArgumentException("Unknown border " + border);
+    }
+  }
+
+  /**
+   * Returns the border policy for the ends of rows, which are on the left and right sides of the plane.
+   * @param border One of the BORDER constants, with or without REPLICATE flags.
+   * @return The policy with only the flags for the left and right sides.
+   */
+  static int getRowBorder(int border) {
+    return border & (POLICY_MASK | REPLICATE_LEFT | REPLICATE_RIGHT);
+  }
+
+  /**
+   * Returns the border policy for the ends of columns, which are on the top and bottom sides of the plane.
+   * @param border One of the BORDER constants, with or without REPLICATE flags.
+   * @return The policy with the flags for the top and bottom sides moved to REPLICATE_LEFT and REPLICATE_RIGHT.
+   */
+  static int getColumnBorder(int border) {
+    return border & POLICY_MASK | (border & (REPLICATE_TOP | REPLICATE_BOTTOM)) >> 2;
+  }
+
+  /**
+   * Returns the position inside of a row or column that a position outside of it reads from under a border policy.
+   * @param i The position, which may be outside of the row or column.
+   * @param length The length of the row or column.
+   * @param border One of the BORDER constants, with flags from getRowBorder or getColumnBorder for the direction of
+   *               the row or column.
+   * @return The position to read from, or -1 if the value is zero.
+   */
+  static int getBorderIndex(int i, int length, int border) {
+    if (i >= 0 && i < length) {
+      return i;
+    }
+    if (i < 0 && (border & REPLICATE_LEFT) != 0) {
+      return 0;
+    }
+    if (i >= length && (border & REPLICATE_RIGHT) != 0) {
+      return length - 1;
+    }
+    switch (border & POLICY_MASK) {
+      case BORDER_REPLICATE:
+        return i < 0 ? 0 : length - 1;
+      case BORDER_REFLECT:
+        // Mirroring twice gives back the plane, so the pattern repeats every two lengths.
+        int reflected = i % (2 * length);
+        if (reflected < 0) {
+          reflected += 2 * length;
+        }
+        return reflected < length ? reflected : 2 * length - 1 - reflected;
+      case BORDER_WRAP:
+        int wrapped = i % length;
+        return wrapped < 0 ? wrapped + length : wrapped;
+      default:
+        return -1;
+    }
+  }
+
+  /**
+   * Returns the variance of a kernel around its anchor, which is the position of the kernel's center pixel.
+   * The kernels used by the detector are cut off at a length of 2 * sigma, so their variance is smaller than sigma^2.
+   * @param kernel The kernel.
+   * @return The variance of the kernel.
+   */
+  static double getVariance(double[] kernel) {
+    double variance = 0;
+    for (int i = 0; i < kernel.length; i++) {
+      double offset = i - kernel.length / 2;
+      variance += kernel[i] * offset * offset;
+    }
+    return variance;
+  }
+
+  /**
+   * Convolves a plane with a separable kernel given as two single dimensional kernels.
+   * @param src The plane to convolve.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param kernelX The separated kernel in the x-direction.
+   * @param kernelY The separated kernel in the y-direction.
+   * @return A new plane holding the result of the convolution.
+   */
+  public static float[] convolve(float[] src, int width, int height, double[] kernelX, double[] kernelY) {
+    return convolve(src, width, height, kernelX, kernelY, BORDER_ZERO);
+  }
+
+  /**
+   * Convolves a plane with a separable kernel given as two single dimensional kernels.
+   * @param src The plane to convolve.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param kernelX The separated kernel in the x-direction.
+   * @param kernelY The separated kernel in the y-direction.
+   * @param border One of the BORDER constants.
+   * @return A new plane holding the result of the convolution.
+   */
+  public static float[] convolve(float[] src, int width, int height, double[] kernelX, double[] kernelY,
+                                 int border) {
+    float[] dst = new float[width * height];
+    convolve(src, dst, new float[width * height], width, height, kernelX, kernelY, border);
+    return dst;
+  }
+
+  /**
+   * Convolves a plane with a separable kernel given as two single dimensional kernels.
+   * The convolution is performed along the rows first and then along the columns. This method does not allocate, so
+   * callers processing many images of the same size can reuse dst and tmp.
+   * @param src The plane to convolve.
+   * @param dst The plane to store the result in. May not be src.
+   * @param tmp Scratch plane with the same size as src. May not be src or dst.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param kernelX The separated kernel in the x-direction.
+   * @param kernelY The separated kernel in the y-direction.
+   */
+  public static void convolve(float[] src, float[] dst, float[] tmp, int width, int height,
+                              double[] kernelX, double[] kernelY) {
+    convolve(src, dst, tmp, width, height, kernelX, kernelY, BORDER_ZERO);
+  }
+
+  /**
+   * Convolves a plane with a separable kernel given as two single dimensional kernels, reading values outside of the
+   * plane through a border policy. This method does not allocate once the border row of the calling thread has grown.
+   * @param src The plane to convolve.
+   * @param dst The plane to store the result in. May not be src.
+   * @param tmp Scratch plane with the same size as src. May not be src or dst.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param kernelX The separated kernel in the x-direction.
+   * @param kernelY The separated kernel in the y-direction.
+   * @param border One of the BORDER constants.
+   */
+  public static void convolve(float[] src, float[] dst, float[] tmp, int width, int height,
+                              double[] kernelX, double[] kernelY, int border) {
+    checkBorder(border);
+    convolveBand(src, dst, tmp, width, height, kernelX, kernelY, 0, height, border);
+  }
+
+  /**
+   * Convolves a plane with a separable kernel, splitting the plane into bands of rows on the given pool.
+   * Each band convolves its own rows plus a halo of kernelY.length / 2 rows on either side along the rows, so bands
+   * never wait on each other between the two passes.
+   * @param src The plane to convolve.
+   * @param dst The plane to store the result in. May not be src.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param kernelX The separated kernel in the x-direction.
+   * @param kernelY The separated kernel in the y-direction.
+   * @param pool The pool to run on, or null to run on the calling thread.
+   */
+  public static void convolve(float[] src, float[] dst, int width, int height,
+                              double[] kernelX, double[] kernelY, ForkJoinPool pool) {
+    convolve(src, dst, width, height, kernelX, kernelY, pool, BORDER_ZERO);
+  }
+
+  /**
+   * Convolves a plane with a separable kernel on the given pool, reading values outside of the plane through a border
+   * policy.
+   * @param src The plane to convolve.
+   * @param dst The plane to store the result in. May not be src.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param kernelX The separated kernel in the x-direction.
+   * @param kernelY The separated kernel in the y-direction.
+   * @param pool The pool to run on, or null to run on the calling thread.
+   * @param border One of the BORDER constants.
+   */
+  public static void convolve(float[] src, float[] dst, int width, int height,
+                              double[] kernelX, double[] kernelY, ForkJoinPool pool, int border) {
+    new BandConvolution(width, height, pool, border).convolve(src, dst, kernelX, kernelY);
+  }
+
+  /**
+   * Convolves planes of one size with separable kernels in horizontal bands on a pool, with the band actions and the
+   * scratch rows of each band created once, so that convolving a plane for every frame does not allocate anything.
+   */
+  static class BandConvolution {
+    private int width;
+    private int height;
+    private int border;
+    private int bandHeight;
+    private RowBands.Runner bands;
+
+    // Scratch rows for each band, grown when a taller kernel needs more of them.
+    private float[][] tmp;
+
+    // The planes and kernels being convolved, only set while convolve runs.
+    private float[] src;
+    private float[] dst;
+    private double[] kernelX;
+    private double[] kernelY;
+
+    /**
+     * Creates the band actions for planes of the given size.
+     * @param width The width of the plane.
+     * @param height The height of the plane.
+     * @param pool The pool to run on, or null to run on the calling thread.
+     * @param border One of the BORDER constants.
+     */
+    BandConvolution(int width, int height, ForkJoinPool pool, int border) {
+      checkBorder(border);
+      this.width = width;
+      this.height = height;
+      this.border = border;
+      bandHeight = RowBands.getBandHeight(pool, height);
+      tmp = new float[RowBands.getBandCount(pool, height)][0];
+      bands = new RowBands.Runner(pool, height, new RowBands.Task() {
+        @Override
+        public void run(int band, int start, int end) {
+          convolveBand(BandConvolution.this.src, BandConvolution.this.dst, tmp[band], BandConvolution.this.width,
+                       BandConvolution.this.height, kernelX, kernelY, start, end, BandConvolution.this.border);
+        }
+      });
+    }
+
+    /**
+     * Convolves a plane with a separable kernel.
+     * @param src The plane to convolve, with the size given to the constructor.
+     * @param dst The plane to store the result in. May not be src.
+     * @param kernelX The separated kernel in the x-direction.
+     * @param kernelY The separated kernel in the y-direction.
+     */
+    void convolve(float[] src, float[] dst, double[] kernelX, double[] kernelY) {
+      int rows = Math.min(height, bandHeight + kernelY.length - 1);
+      for (int band = 0; band < tmp.length; band++) {
+        if (tmp[band].length < rows * width) {
+          tmp[band] = new float[rows * width];
+        }
+      }
+
+      this.src = src;
+      this.dst = dst;
+      this.kernelX = kernelX;
+      this.kernelY = kernelY;
+      try {
+        bands.run();
+      }
+      finally {
+        this.src = null;
+        this.dst = null;
+        this.kernelX = null;
+        this.kernelY = null;
+      }
+    }
+  }
+
+  /**
+   * Convolves rows start through end - 1 of a plane with a separable kernel.
+   * The rows needed from above and below the band are convolved along the rows into tmp first, and then tmp is
+   * convolved along the columns into the band's rows of dst.
+   * @param src The plane to convolve.
+   * @param dst The plane to store the result in.
+   * @param tmp Scratch space for at least min(height, end - start + kernelY.length - 1) rows.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param kernelX The separated kernel in the x-direction.
+   * @param kernelY The separated kernel in the y-direction.
+   * @param start The first row to convolve.
+   * @param end One past the last row to convolve.
+   * @param border One of the BORDER constants.
+   */
+  private static void convolveBand(float[] src, float[] dst, float[] tmp, int width, int height,
+                                   double[] kernelX, double[] kernelY, int start, int end, int border) {
+    int anchor = kernelY.length / 2;
+    int tmpStart = Math.max(0, start - anchor);
+    int tmpEnd = Math.min(height, end - anchor + kernelY.length - 1);
+
+    convolveRows(src, tmp, width, kernelX, tmpStart, tmpEnd, getRowBorder(border));
+    convolveColumns(src, tmp, dst, width, height, kernelX, kernelY, tmpStart, tmpEnd, start, end, border);
+  }
+
+  /**
+   * Convolves a rectangular window of a plane with a separable kernel, leaving the rest of dst as it is.
+   * Every pixel of the window reads the same neighbors of src in the same order as when the whole plane is convolved,
+   * so the window ends up with exactly the values a full convolution would give it.
+   * @param src The plane to convolve.
+   * @param dst The plane to store the result in. May not be src.
+   * @param tmp Scratch plane with the same size as src. May not be src or dst.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param kernelX The separated kernel in the x-direction.
+   * @param kernelY The separated kernel in the y-direction.
+   * @param x The first column of the window.
+   * @param y The first row of the window.
+   * @param w The width of the window.
+   * @param h The height of the window.
+   * @param border One of the BORDER constants.
+   */
+  static void convolveWindow(float[] src, float[] dst, float[] tmp, int width, int height,
+                             double[] kernelX, double[] kernelY, int x, int y, int w, int h, int border) {
+    int anchor = kernelY.length / 2;
+    int tmpStart = Math.max(0, y - anchor);
+    int tmpEnd = Math.min(height, y + h - anchor + kernelY.length - 1);
+    int rowBorder = getRowBorder(border);
+    int columnBorder = getColumnBorder(border);
+
+    // Convolve the columns of the window along the rows, for every row read by the column pass.
+    for (int r = tmpStart; r < tmpEnd; r++) {
+      for (int c = 0; c < w; c++) {
+        tmp[(r - tmpStart) * w + c] = convolvePixel(src, r * width, width, kernelX, x + c, rowBorder);
+      }
+    }
+
+    for (int r = y; r < y + h; r++) {
+      int row = r * width + x;
+      Arrays.fill(dst, row, row + w, 0);
+      for (int k = 0; k < kernelY.length; k++) {
+        int srcRow = getBorderIndex(r - anchor + k, height, columnBorder);
+        if (srcRow < 0) {
+          continue;
+        }
+        if (srcRow >= tmpStart && srcRow < tmpEnd) {
+          accumulateRow(tmp, (srcRow - tmpStart) * w, dst, row, w, (float) kernelY[k]);
+        }
+        else {
+          // The border policy reads a row that the window did not convolve.
+          float[] borderRow = getBorderRow(w);
+          for (int c = 0; c < w; c++) {
+            borderRow[c] = convolvePixel(src, srcRow * width, width, kernelX, x + c, rowBorder);
+          }
+          accumulateRow(borderRow, 0, dst, row, w, (float) kernelY[k]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the border row of the calling thread, grown to hold at least the given number of values.
+   * @param length The number of values needed.
+   * @return The border row.
+   */
+  private static float[] getBorderRow(int length) {
+    float[] row = BORDER_ROW.get();
+    if (row.length < length) {
+      row = new float[length];
+      BORDER_ROW.set(row);
+    }
+    return row;
+  }
+
+  /**
+   * Convolves a plane with a two-dimensional kernel using an automatically chosen strategy.
+   * @param src The plane to convolve.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param kernel The kernel indexed as kernel[row][column].
+   * @return A new plane holding the result of the convolution.
+   */
+  public static float[] convolve(float[] src, int width, int height, double[][] kernel) {
+    return convolve(src, width, height, kernel, STRATEGY_AUTO);
+  }
+
+  /**
+   * Convolves a plane with a two-dimensional kernel using the given strategy.
+   * @param src The plane to convolve.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param kernel The kernel indexed as kernel[row][column].
+   * @param strategy One of the STRATEGY constants given by this class.
+   * @return A new plane holding the result of the convolution.
+   */
+  public static float[] convolve(float[] src, int width, int height, double[][] kernel, int strategy) {
+    if (strategy == STRATEGY_AUTO) {
+      strategy = chooseStrategy(kernel);
+    }
+
+    switch (strategy) {
+      case STRATEGY_DIRECT:
+        return convolveDirect(src, width, height, kernel);
+      case STRATEGY_SEPARABLE:
+        double[] kernelX = new double[kernel[0].length];
+        double[] kernelY = new double[kernel.length];
+        if (!separate(kernel, kernelX, kernelY)) {
+          throw new IllegalArgumentException("Kernel is not separable");
+        }
+        return convolve(src, width, height, kernelX, kernelY);
+      case STRATEGY_FFT:
+        return convolveFft(src, width, height, kernel);
+      default:
+        throw new IllegalArgumentException("Unknown convolution strategy " + strategy);
+    }
+  }
+
+  /**
+   * Picks the cheapest strategy for the given kernel.
+   * Separable kernels are always split, since two passes of length k beat anything else. Otherwise small kernels are
+   * applied directly and kernels with more than FFT_THRESHOLD elements go through the FFT.
+   * @param kernel The kernel indexed as kernel[row][column].
+   * @return One of STRATEGY_SEPARABLE, STRATEGY_DIRECT, or STRATEGY_FFT.
+   */
+  public static int chooseStrategy(double[][] kernel) {
+    if (separate(kernel, new double[kernel[0].length], new double[kernel.length])) {
+      return STRATEGY_SEPARABLE;
+    }
+    return kernel.length * kernel[0].length > FFT_THRESHOLD ? STRATEGY_FFT : STRATEGY_DIRECT;
+  }
+
+  /**
+   * Builds the two-dimensional kernel equivalent to a pair of separated kernels.
+   * @param kernelX The separated kernel in the x-direction.
+   * @param kernelY The separated kernel in the y-direction.
+   * @return The kernel indexed as kernel[row][column].
+   */
+  public static double[][] outerProduct(double[] kernelX, double[] kernelY) {
+    double[][] kernel = new double[kernelY.length][kernelX.length];
+    for (int r = 0; r < kernelY.length; r++) {
+      for (int c = 0; c < kernelX.length; c++) {
+        kernel[r][c] = kernelY[r] * kernelX[c];
+      }
+    }
+    return kernel;
+  }
+
+  /**
+   * Attempts to split a two-dimensional kernel into two single dimensional kernels.
+   * A kernel is separable when it has rank one, that is, every row is a multiple of a single row.
+   * @param kernel The kernel indexed as kernel[row][column].
+   * @param kernelX Filled with the separated kernel in the x-direction. Must have length kernel[0].length.
+   * @param kernelY Filled with the separated kernel in the y-direction. Must have length kernel.length.
+   * @return true if the kernel was separable, false otherwise.
+   */
+  public static boolean separate(double[][] kernel, double[] kernelX, double[] kernelY) {
+    // Use the largest element as the pivot to keep the division well conditioned.
+    int pivotRow = 0;
+    int pivotCol = 0;
+    double max = 0;
+    for (int r = 0; r < kernel.length; r++) {
+      for (int c = 0; c < kernel[r].length; c++) {
+        if (Math.abs(kernel[r][c]) > max) {
+          max = Math.abs(kernel[r][c]);
+          pivotRow = r;
+          pivotCol = c;
+        }
+      }
+    }
+
+    // An all zero kernel is trivially separable.
+    if (max == 0) {
+      Arrays.fill(kernelX, 0);
+      Arrays.fill(kernelY, 0);
+      return true;
+    }
+
+    for (int r = 0; r < kernel.length; r++) {
+      kernelY[r] = kernel[r][pivotCol];
+    }
+    for (int c = 0; c < kernel[pivotRow].length; c++) {
+      kernelX[c] = kernel[pivotRow][c] / kernel[pivotRow][pivotCol];
+    }
+
+    // Check that the outer product reproduces the kernel.
+    for (int r = 0; r < kernel.length; r++) {
+      for (int c = 0; c < kernel[r].length; c++) {
+        if (Math.abs(kernelY[r] * kernelX[c] - kernel[r][c]) > SEPARABLE_TOLERANCE * max) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Convolves rows start through end - 1 of a plane with a single dimensional kernel.
+   * The result for row start is stored in the first row of dst.
+   * @param src The plane to convolve.
+   * @param dst The rows to store the result in.
+   * @param width The width of the plane.
+   * @param kernel The single dimensional kernel.
+   * @param start The first row to convolve.
+   * @param end One past the last row to convolve.
+   * @param border One of the BORDER constants.
+   */
+  private static void convolveRows(float[] src, float[] dst, int width, double[] kernel, int start, int end,
+                                   int border) {
+    for (int r = start; r < end; r++) {
+      convolveRow(src, r * width, dst, (r - start) * width, width, kernel, border);
+    }
+  }
+
+  /**
+   * Convolves a single row with a single dimensional kernel.
+   * @param src The array holding the row to convolve.
+   * @param srcOffset The index of the first pixel of the row in src.
+   * @param dst The array to store the result in.
+   * @param dstOffset The index to store the first pixel of the result at in dst.
+   * @param width The width of the row.
+   * @param kernel The single dimensional kernel.
+   */
+  static void convolveRow(float[] src, int srcOffset, float[] dst, int dstOffset, int width, double[] kernel) {
+    convolveRow(src, srcOffset, dst, dstOffset, width, kernel, BORDER_ZERO);
+  }
+
+  /**
+   * Convolves a single row with a single dimensional kernel, reading values past its ends through a border policy.
+   * @param src The array holding the row to convolve.
+   * @param srcOffset The index of the first pixel of the row in src.
+   * @param dst The array to store the result in.
+   * @param dstOffset The index to store the first pixel of the result at in dst.
+   * @param width The width of the row.
+   * @param kernel The single dimensional kernel.
+   * @param border One of the BORDER constants.
+   */
+  static void convolveRow(float[] src, int srcOffset, float[] dst, int dstOffset, int width, double[] kernel,
+                          int border) {
+    if (kernels == KERNELS_VECTOR) {
+      convolveRowVector(src, srcOffset, dst, dstOffset, width, kernel, border);
+      return;
+    }
+    for (int c = 0; c < width; c++) {
+      dst[dstOffset + c] = convolvePixel(src, srcOffset, width, kernel, c, border);
+    }
+  }
+
+  /**
+   * Convolves a single row with a single dimensional kernel, one kernel element at a time across the whole row.
+   * Each sum still adds the kernel elements in the same order as convolvePixel, so the results are identical.
+   * @param src The array holding the row to convolve.
+   * @param srcOffset The index of the first pixel of the row in src.
+   * @param dst The array to store the result in.
+   * @param dstOffset The index to store the first pixel of the result at in dst.
+   * @param width The width of the row.
+   * @param kernel The single dimensional kernel.
+   * @param border One of the BORDER constants, used for the pixels near the ends of the row.
+   */
+  private static void convolveRowVector(float[] src, int srcOffset, float[] dst, int dstOffset, int width,
+                                        double[] kernel, int border) {
+    // Columns from first through last - 1 have the whole kernel inside of the row.
+    int anchor = kernel.length / 2;
+    int first = Math.min(width, anchor);
+    int last = Math.max(first, Math.min(width, width - (kernel.length - 1 - anchor)));
+
+    for (int c = 0; c < first; c++) {
+      dst[dstOffset + c] = convolvePixel(src, srcOffset, width, kernel, c, border);
+    }
+    for (int c = last; c < width; c++) {
+      dst[dstOffset + c] = convolvePixel(src, srcOffset, width, kernel, c, border);
+    }
+
+    double[] sums = ROW_SUMS.get();
+    if (sums.length < last - first) {
+      sums = new double[width];
+      ROW_SUMS.set(sums);
+    }
+    Arrays.fill(sums, 0, last - first, 0);
+    for (int k = 0; k < kernel.length; k++) {
+      double weight = kernel[k];
+      int offset = srcOffset + first - anchor + k;
+      for (int c = 0; c < last - first; c++) {
+        sums[c] += weight * src[offset + c];
+      }
+    }
+    for (int c = 0; c < last - first; c++) {
+      dst[dstOffset + first + c] = (float) sums[c];
+    }
+  }
+
+  /**
+   * Convolves a single pixel of a row with a single dimensional kernel.
+   * @param src The array holding the row to convolve.
+   * @param srcOffset The index of the first pixel of the row in src.
+   * @param width The width of the row.
+   * @param kernel The single dimensional kernel.
+   * @param c The column of the pixel.
+   * @param border One of the BORDER constants.
+   * @return The result for the pixel.
+   */
+  private static float convolvePixel(float[] src, int srcOffset, int width, double[] kernel, int c, int border) {
+    int anchor = kernel.length / 2;
+    double sum = 0;
+
+    if (border == BORDER_ZERO) {
+      // Only visit the kernel elements that fall inside of the row.
+      int first = Math.max(0, anchor - c);
+      int last = Math.min(kernel.length, width - c + anchor);
+      int offset = srcOffset + c - anchor;
+      for (int k = first; k < last; k++) {
+        sum += kernel[k] * src[offset + k];
+      }
+    }
+    else {
+      for (int k = 0; k < kernel.length; k++) {
+        // Sides that are not replicated under BORDER_ZERO still read zeros.
+        int i = getBorderIndex(c - anchor + k, width, border);
+        if (i >= 0) {
+          sum += kernel[k] * src[srcOffset + i];
+        }
+      }
+    }
+    return (float) sum;
+  }
+
+  /**
+   * Convolves the columns of a band of rows with a single dimensional kernel.
+   * Whole rows are accumulated at a time so that memory is always read in order.
+   * @param plane The plane being convolved, used to convolve rows along the rows that a border policy reads from
+   *              outside of tmp.
+   * @param tmp The rows tmpStart through tmpEnd - 1 of the plane convolved along the rows, with tmpStart stored first.
+   *            These are all of the rows of the plane that the band reads.
+   * @param dst The plane to store the result in.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param kernelX The single dimensional kernel that tmp was convolved with along the rows.
+   * @param kernel The single dimensional kernel.
+   * @param tmpStart The first row held in tmp.
+   * @param tmpEnd One past the last row held in tmp.
+   * @param start The first row to convolve.
+   * @param end One past the last row to convolve.
+   * @param border One of the BORDER constants, used for the rows above and below the plane and for the ends of the
+   *               rows convolved here.
+   */
+  private static void convolveColumns(float[] plane, float[] tmp, float[] dst, int width, int height,
+                                      double[] kernelX, double[] kernel, int tmpStart, int tmpEnd, int start, int end,
+                                      int border) {
+    int anchor = kernel.length / 2;
+    int rowBorder = getRowBorder(border);
+    int columnBorder = getColumnBorder(border);
+
+    for (int r = start; r < end; r++) {
+      int row = r * width;
+      Arrays.fill(dst, row, row + width, 0);
+      for (int k = 0; k < kernel.length; k++) {
+        int srcRow = getBorderIndex(r - anchor + k, height, columnBorder);
+        if (srcRow < 0) {
+          continue;
+        }
+        if (srcRow >= tmpStart && srcRow < tmpEnd) {
+          accumulateRow(tmp, (srcRow - tmpStart) * width, dst, row, width, (float) kernel[k]);
+        }
+        else {
+          // The border policy reads a row that the band did not convolve, such as the last row when wrapping.
+          float[] borderRow = getBorderRow(width);
+          convolveRow(plane, srcRow * width, borderRow, 0, width, kernelX, rowBorder);
+          accumulateRow(borderRow, 0, dst, row, width, (float) kernel[k]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds a weighted row onto another row.
+   * Convolving columns is done by clearing each result row and then accumulating the weighted source rows onto it in
+   * kernel order.
+   * @param src The array holding the row to add.
+   * @param srcOffset The index of the first pixel of the row in src.
+   * @param dst The array holding the row to add onto.
+   * @param dstOffset The index of the first pixel of the row in dst.
+   * @param width The width of the rows.
+   * @param weight The weight to multiply the added row by.
+   */
+  static void accumulateRow(float[] src, int srcOffset, float[] dst, int dstOffset, int width, float weight) {
+    for (int c = 0; c < width; c++) {
+      dst[dstOffset + c] += weight * src[srcOffset + c];
+    }
+  }
+
+  /**
+   * Convolves a plane directly with a two-dimensional kernel.
+   * @param src The plane to convolve.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param kernel The kernel indexed as kernel[row][column].
+   * @return A new plane holding the result of the convolution.
+   */
+  private static float[] convolveDirect(float[] src, int width, int height, double[][] kernel) {
+    float[] dst = new float[width * height];
+    int anchorRow = kernel.length / 2;
+    int anchorCol = kernel[0].length / 2;
+    double sum;
+
+    for (int r = 0; r < height; r++) {
+      for (int c = 0; c < width; c++) {
+        sum = 0;
+        for (int kr = Math.max(0, anchorRow - r); kr < Math.min(kernel.length, height - r + anchorRow); kr++) {
+          int offset = (r - anchorRow + kr) * width + c - anchorCol;
+          for (int kc = Math.max(0, anchorCol - c); kc < Math.min(kernel[kr].length, width - c + anchorCol); kc++) {
+            sum += kernel[kr][kc] * src[offset + kc];
+          }
+        }
+        dst[r * width + c] = (float) sum;
+      }
+    }
+    return dst;
+  }
+
+  /**
+   * Convolves a plane with a two-dimensional kernel in the frequency domain.
+   * Both the plane and the flipped kernel are zero padded to a power of two that is large enough to hold the full
+   * linear convolution, so there is no wrap around. The result is then cropped so that it lines up with the anchor of
+   * the kernel in the same way as the direct method.
+   * @param src The plane to convolve.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param kernel The kernel indexed as kernel[row][column].
+   * @return A new plane holding the result of the convolution.
+   */
+  private static float[] convolveFft(float[] src, int width, int height, double[][] kernel) {
+    int kernelHeight = kernel.length;
+    int kernelWidth = kernel[0].length;
+    int paddedWidth = nextPowerOfTwo(width + kernelWidth - 1);
+    int paddedHeight = nextPowerOfTwo(height + kernelHeight - 1);
+
+    double[] imageRe = new double[paddedWidth * paddedHeight];
+    double[] imageIm = new double[paddedWidth * paddedHeight];
+    double[] kernelRe = new double[paddedWidth * paddedHeight];
+    double[] kernelIm = new double[paddedWidth * paddedHeight];
+
+    for (int r = 0; r < height; r++) {
+      for (int c = 0; c < width; c++) {
+        imageRe[r * paddedWidth + c] = src[r * width + c];
+      }
+    }
+
+    // The kernels in this package are applied without flipping, so flip the kernel to get the same result out of a
+    // true convolution.
+    for (int r = 0; r < kernelHeight; r++) {
+      for (int c = 0; c < kernelWidth; c++) {
+        kernelRe[r * paddedWidth + c] = kernel[kernelHeight - 1 - r][kernelWidth - 1 - c];
+      }
+    }
+
+    fft2(imageRe, imageIm, paddedWidth, paddedHeight, false);
+    fft2(kernelRe, kernelIm, paddedWidth, paddedHeight, false);
+
+    // Multiply in the frequency domain.
+    double re;
+    for (int i = 0; i < imageRe.length; i++) {
+      re = imageRe[i] * kernelRe[i] - imageIm[i] * kernelIm[i];
+      imageIm[i] = imageRe[i] * kernelIm[i] + imageIm[i] * kernelRe[i];
+      imageRe[i] = re;
+    }
+
+    fft2(imageRe, imageIm, paddedWidth, paddedHeight, true);
+
+    // Crop the full convolution so that it is aligned with the kernel's anchor.
+    float[] dst = new float[width * height];
+    int rowShift = kernelHeight - 1 - kernelHeight / 2;
+    int colShift = kernelWidth - 1 - kernelWidth / 2;
+    for (int r = 0; r < height; r++) {
+      for (int c = 0; c < width; c++) {
+        dst[r * width + c] = (float) imageRe[(r + rowShift) * paddedWidth + c + colShift];
+      }
+    }
+    return dst;
+  }
+
+  /**
+   * Performs an in-place two-dimensional FFT by transforming every row and then every column.
+   * @param re The real parts, row-major.
+   * @param im The imaginary parts, row-major.
+   * @param width The width, which must be a power of two.
+   * @param height The height, which must be a power of two.
+   * @param inverse Whether to perform the inverse transform. The inverse is scaled by 1 / (width * height).
+   */
+  private static void fft2(double[] re, double[] im, int width, int height, boolean inverse) {
+    double[] rowRe = new double[width];
+    double[] rowIm = new double[width];
+    for (int r = 0; r < height; r++) {
+      System.arraycopy(re, r * width, rowRe, 0, width);
+      System.arraycopy(im, r * width, rowIm, 0, width);
+      fft(rowRe, rowIm, inverse);
+      System.arraycopy(rowRe, 0, re, r * width, width);
+      System.arraycopy(rowIm, 0, im, r * width, width);
+    }
+
+    double[] colRe = new double[height];
+    double[] colIm = new double[height];
+    for (int c = 0; c < width; c++) {
+      for (int r = 0; r < height; r++) {
+        colRe[r] = re[r * width + c];
+        colIm[r] = im[r * width + c];
+      }
+      fft(colRe, colIm, inverse);
+      for (int r = 0; r < height; r++) {
+        re[r * width + c] = colRe[r];
+        im[r * width + c] = colIm[r];
+      }
+    }
+
+    if (inverse) {
+      double scale = 1.0 / (width * height);
+      for (int i = 0; i < re.length; i++) {
+        re[i] *= scale;
+        im[i] *= scale;
+      }
+    }
+  }
+
+  /**
+   * Performs an in-place iterative radix-2 FFT. The inverse is not scaled.
+   * @param re The real parts. The length must be a power of two.
+   * @param im The imaginary parts.
+   * @param inverse Whether to perform the inverse transform.
+   */
+  private static void fft(double[] re, double[] im, boolean inverse) {
+    int n = re.length;
+    double tmp;
+
+    // Bit reversal permutation.
+    for (int i = 1, j = 0; i < n; i++) {
+      int bit = n >> 1;
+      for (; (j & bit) != 0; bit >>= 1) {
+        j ^= bit;
+      }
+      j ^= bit;
+      if (i < j) {
+        tmp = re[i];
+        re[i] = re[j];
+        re[j] = tmp;
+        tmp = im[i];
+        im[i] = im[j];
+        im[j] = tmp;
+      }
+    }
+
+    // Butterflies.
+    for (int length = 2; length <= n; length <<= 1) {
+      double angle = 2 * Math.PI / length * (inverse ? 1 : -1);
+      double stepRe = Math.cos(angle);
+      double stepIm = Math.sin(angle);
+      for (int i = 0; i < n; i += length) {
+        double wRe = 1;
+        double wIm = 0;
+        for (int k = 0; k < length / 2; k++) {
+          int a = i + k;
+          int b = i + k + length / 2;
+          double bRe = re[b] * wRe - im[b] * wIm;
+          double bIm = re[b] * wIm + im[b] * wRe;
+          re[b] = re[a] - bRe;
+          im[b] = im[a] - bIm;
+          re[a] += bRe;
+          im[a] += bIm;
+          tmp = wRe * stepRe - wIm * stepIm;
+          wIm = wRe * stepIm + wIm * stepRe;
+          wRe = tmp;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the smallest power of two that is greater than or equal to n.
+   * @param n A positive integer.
+   * @return The smallest power of two that is greater than or equal to n.
+   */
+  private static int nextPowerOfTwo(int n) {
+    int power = 1;
+    while (power < n) {
+      power <<= 1;
+    }
+    return power;
+  }
+}
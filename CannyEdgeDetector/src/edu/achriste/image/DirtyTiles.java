@@ -0,0 +1,194 @@
+package edu.achriste.image;
+
+/**
+ * A grid of square tiles over a frame, each marked as either dirty or clean.
+ * The Canny Edge Detector uses these to find the parts of a frame that changed since the last frame, and then to grow
+ * those parts by how far each of its steps reaches, so that only the dirty tiles of each step are computed again.
+ * @author Anthony Christe
+ */
+class DirtyTiles {
+  /**
+   * The width and height of each tile. Tiles on the right and bottom of the frame may be smaller.
+   */
+  static final int TILE_SIZE = 32;
+
+  // Dimensions of the frame.
+  private int width;
+  private int height;
+
+  // Number of tiles across and down the frame.
+  private int columns;
+  private int rows;
+
+  /**
+   * Whether each tile is dirty, stored row after row of tiles.
+   */
+  private boolean[] dirty;
+
+  /**
+   * Work done over a run of neighboring dirty tiles in the same row of tiles.
+   */
+  interface Task {
+    /**
+     * Does the work for a rectangle of pixels.
+     * @param x The first column of the rectangle.
+     * @param y The first row of the rectangle.
+     * @param w The width of the rectangle.
+     * @param h The height of the rectangle.
+     */
+    void run(int x, int y, int w, int h);
+  }
+
+  /**
+   * Creates a grid of clean tiles over a frame.
+   * @param width The width of the frame.
+   * @param height The height of the frame.
+   */
+  DirtyTiles(int width, int height) {
+    this.width = width;
+    this.height = height;
+    this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+    this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+    this.dirty = new boolean[columns * rows];
+  }
+
+  /**
+   * Returns the number of tiles.
+   * @return The number of tiles.
+   */
+  int getTileCount() {
+    return dirty.length;
+  }
+
+  /**
+   * Returns the tile that holds a pixel.
+   * @param x The column of the pixel.
+   * @param y The row of the pixel.
+   * @return The index of the tile.
+   */
+  int getTile(int x, int y) {
+    return (y / TILE_SIZE) * columns + x / TILE_SIZE;
+  }
+
+  /**
+   * Returns whether a tile is dirty.
+   * @param tile The index of the tile.
+   * @return true if the tile is dirty, false otherwise.
+   */
+  boolean isDirty(int tile) {
+    return dirty[tile];
+  }
+
+  /**
+   * Marks every tile as dirty.
+   */
+  void markAll() {
+    for (int tile = 0; tile < dirty.length; tile++) {
+      dirty[tile] = true;
+    }
+  }
+
+  /**
+   * Marks every tile with a pixel that differs between two frames as dirty, and every other tile as clean. The dirty
+   * tiles of the new frame are then copied over the old one, so that the old frame matches the new frame afterwards.
+   * @param frame The new frame.
+   * @param previous The old frame.
+   */
+  void markChanges(float[] frame, float[] previous) {
+    for (int tile = 0; tile < dirty.length; tile++) {
+      int x = (tile % columns) * TILE_SIZE;
+      int y = (tile / columns) * TILE_SIZE;
+      int w = Math.min(TILE_SIZE, width - x);
+      int h = Math.min(TILE_SIZE, height - y);
+
+      dirty[tile] = false;
+      for (int r = y; r < y + h && !dirty[tile]; r++) {
+        for (int i = r * width + x; i < r * width + x + w; i++) {
+          if (frame[i] != previous[i]) {
+            dirty[tile] = true;
+            break;
+          }
+        }
+      }
+
+      if (dirty[tile]) {
+        for (int r = y; r < y + h; r++) {
+          System.arraycopy(frame, r * width + x, previous, r * width + x, w);
+        }
+      }
+    }
+  }
+
+  /**
+   * Marks every tile within reach tiles of a dirty tile of another grid as dirty, and every other tile as clean.
+   * @param other A grid over the same frame.
+   * @param reach How many tiles to grow the dirty tiles of the other grid by in every direction.
+   */
+  void grow(DirtyTiles other, int reach) {
+    for (int tile = 0; tile < dirty.length; tile++) {
+      dirty[tile] = false;
+    }
+    for (int tile = 0; tile < dirty.length; tile++) {
+      if (other.dirty[tile]) {
+        int row = tile / columns;
+        int column = tile % columns;
+        for (int r = Math.max(0, row - reach); r <= Math.min(rows - 1, row + reach); r++) {
+          for (int c = Math.max(0, column - reach); c <= Math.min(columns - 1, column + reach); c++) {
+            dirty[r * columns + c] = true;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns how many tiles a step must grow the dirty tiles by to cover every pixel within some distance of them.
+   * @param pixels The distance in pixels.
+   * @return The distance in tiles.
+   */
+  static int getReach(int pixels) {
+    return (pixels + TILE_SIZE - 1) / TILE_SIZE;
+  }
+
+  /**
+   * Returns the number of pixels in the dirty tiles.
+   * @return The number of pixels.
+   */
+  long getPixels() {
+    long pixels = 0;
+    for (int tile = 0; tile < dirty.length; tile++) {
+      if (dirty[tile]) {
+        int x = (tile % columns) * TILE_SIZE;
+        int y = (tile / columns) * TILE_SIZE;
+        pixels += (long) Math.min(TILE_SIZE, width - x) * Math.min(TILE_SIZE, height - y);
+      }
+    }
+    return pixels;
+  }
+
+  /**
+   * Runs a task over the dirty tiles on the calling thread. Neighboring dirty tiles in the same row of tiles are
+   * joined into a single rectangle, so the task is run once for each run of dirty tiles.
+   * @param task The task to run.
+   */
+  void run(Task task) {
+    for (int row = 0; row < rows; row++) {
+      int y = row * TILE_SIZE;
+      int h = Math.min(TILE_SIZE, height - y);
+      int column = 0;
+      while (column < columns) {
+        if (!dirty[row * columns + column]) {
+          column++;
+          continue;
+        }
+        int end = column;
+        while (end < columns && dirty[row * columns + end]) {
+          end++;
+        }
+        int x = column * TILE_SIZE;
+        task.run(x, y, Math.min(width, end * TILE_SIZE) - x, h);
+        column = end;
+      }
+    }
+  }
+}
@@ -0,0 +1,360 @@
+package edu.achriste.image;
+
+import java.util.Arrays;
+
+/**
+ * The edges found by the Canny Edge Detector, linked into chains of neighboring pixels.
+ * Edge pixels are usually a small fraction of an image, so chains are much smaller than a full edge image and can be
+ * used directly without scanning the image for edges again.
+ *
+ * Every edge pixel belongs to exactly one chain, and consecutive pixels in a chain are 8-neighbors. Chains are stored
+ * packed one after another: the points of chain k are at indices getChainStart(k) through getChainEnd(k) - 1 of the
+ * point array, and each point is stored as the index r * width + c of its pixel. Chains start at the open end of an
+ * edge where there is one, and a chain is split wherever edges branch.
+ *
+ * Chains can also carry subpixel positions. Each edge pixel is moved across the edge along its rounded gradient
+ * direction, to the peak of the parabola through its gradient strength and those of its two neighbors in that
+ * direction.
+ * @author Anthony Christe
+ */
+public class EdgeChains {
+  // Dimensions of the image the chains were found in.
+  private int width;
+  private int height;
+
+  /**
+   * The pixel index of every point, chain after chain.
+   */
+  private int[] points;
+
+  /**
+   * The index in points of the first point of each chain, followed by the total number of points.
+   */
+  private int[] chainStarts;
+
+  /**
+   * The subpixel x and y-coordinates of every point, interleaved, or null if they were not requested.
+   */
+  private float[] positions;
+
+  // Offsets to the 8 neighbors of a pixel, with the 4 direct neighbors first so that chains prefer straight steps.
+  private static final int[] NEIGHBOR_ROWS = {0, 1, 0, -1, 1, 1, -1, -1};
+  private static final int[] NEIGHBOR_COLS = {1, 0, -1, 0, 1, -1, -1, 1};
+
+  // For each DIRECTION constant, the row and column step to the neighbor across the edge. This is the neighbor compared
+  // with during non-maximum suppression for DIRECTION_0 and DIRECTION_90, but the other diagonal for DIRECTION_45 and
+  // DIRECTION_135, whose suppression neighbors lie along the edge where the strength has no peak to fit.
+  private static final int[] DIRECTION_ROWS = {-1, -1, 0, -1};
+  private static final int[] DIRECTION_COLS = {0, 1, -1, -1};
+
+  /**
+   * Links the edges in a hysteresis plane into chains.
+   * @param hysteresis The hysteresis plane, holding EDGE_STRONG or EDGE_WEAK for every edge pixel.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param strength The gradient strength plane to find subpixel positions from, or null to not find them.
+   * @param direction The direction plane, which gives the direction to refine each pixel in. Only used with strength.
+   */
+  EdgeChains(byte[] hysteresis, int width, int height, float[] strength, byte[] direction) {
+    this.width = width;
+    this.height = height;
+
+    int edges = 0;
+    for (int i = 0; i < width * height; i++) {
+      if (isEdge(hysteresis[i])) {
+        edges++;
+      }
+    }
+    points = new int[edges];
+    chainStarts = new int[edges + 1];
+
+    // First start a chain at every open end, then pick up whatever is left, which is closed loops and the pieces
+    // between branches that were walked past.
+    boolean[] visited = new boolean[width * height];
+    int chains = 0;
+    int count = 0;
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < width * height; i++) {
+        if (isEdge(hysteresis[i]) && !visited[i] && (pass == 1 || countNeighbors(hysteresis, i) <= 1)) {
+          chainStarts[chains++] = count;
+          count = addChain(hysteresis, visited, i, count);
+        }
+      }
+    }
+    chainStarts[chains] = count;
+    chainStarts = Arrays.copyOf(chainStarts, chains + 1);
+
+    if (strength != null) {
+      positions = new float[2 * edges];
+      for (int p = 0; p < edges; p++) {
+        setPosition(p, strength, direction);
+      }
+    }
+  }
+
+  /**
+   * Returns whether a hysteresis value marks an edge.
+   * @param state A value from the hysteresis plane.
+   * @return true if the pixel is a strong or traced edge, false otherwise.
+   */
+  private static boolean isEdge(byte state) {
+    return state == CannyEdgeDetector.EDGE_STRONG || state == CannyEdgeDetector.EDGE_WEAK;
+  }
+
+  /**
+   * Returns the index of a neighbor of a pixel, or -1 if the neighbor is outside of the image.
+   * @param i The index of the pixel.
+   * @param n The neighbor, as an index into NEIGHBOR_ROWS and NEIGHBOR_COLS.
+   * @return The index of the neighbor, or -1.
+   */
+  private int getNeighbor(int i, int n) {
+    int r = i / width + NEIGHBOR_ROWS[n];
+    int c = i % width + NEIGHBOR_COLS[n];
+    return r < 0 || r >= height || c < 0 || c >= width ? -1 : r * width + c;
+  }
+
+  /**
+   * Counts the edge pixels around a pixel.
+   * @param hysteresis The hysteresis plane.
+   * @param i The index of the pixel.
+   * @return The number of its 8 neighbors that are edges.
+   */
+  private int countNeighbors(byte[] hysteresis, int i) {
+    int neighbors = 0;
+    for (int n = 0; n < NEIGHBOR_ROWS.length; n++) {
+      int j = getNeighbor(i, n);
+      if (j >= 0 && isEdge(hysteresis[j])) {
+        neighbors++;
+      }
+    }
+    return neighbors;
+  }
+
+  /**
+   * Returns an edge pixel next to a pixel that is not yet part of a chain.
+   * @param hysteresis The hysteresis plane.
+   * @param visited Marks the pixels that are already part of a chain.
+   * @param i The index of the pixel.
+   * @return The index of the first such neighbor, or -1 if there is none.
+   */
+  private int getNextPixel(byte[] hysteresis, boolean[] visited, int i) {
+    for (int n = 0; n < NEIGHBOR_ROWS.length; n++) {
+      int j = getNeighbor(i, n);
+      if (j >= 0 && isEdge(hysteresis[j]) && !visited[j]) {
+        return j;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Walks a chain out from a pixel in both directions and stores its points in order.
+   * @param hysteresis The hysteresis plane.
+   * @param visited Marks the pixels that are already part of a chain.
+   * @param start The pixel to start from.
+   * @param count The number of points stored so far.
+   * @return The number of points stored after this chain.
+   */
+  private int addChain(byte[] hysteresis, boolean[] visited, int start, int count) {
+    int first = count;
+    visited[start] = true;
+
+    // Walk away from the start one way, then reverse that part so it leads up to the start.
+    for (int i = getNextPixel(hysteresis, visited, start); i >= 0; i = getNextPixel(hysteresis, visited, i)) {
+      visited[i] = true;
+      points[count++] = i;
+    }
+    for (int a = first, b = count - 1; a < b; a++, b--) {
+      int swap = points[a];
+      points[a] = points[b];
+      points[b] = swap;
+    }
+
+    // Then walk away from the start the other way.
+    points[count++] = start;
+    for (int i = getNextPixel(hysteresis, visited, start); i >= 0; i = getNextPixel(hysteresis, visited, i)) {
+      visited[i] = true;
+      points[count++] = i;
+    }
+    return count;
+  }
+
+  /**
+   * Finds the subpixel position of a point from the gradient strength of its pixel and the two pixels next to it across
+   * the edge.
+   * @param p The point.
+   * @param strength The gradient strength plane.
+   * @param direction The direction plane.
+   */
+  private void setPosition(int p, float[] strength, byte[] direction) {
+    int i = points[p];
+    int r = i / width;
+    int c = i % width;
+    int d = direction[i] & CannyEdgeDetector.DIRECTION_MASK;
+    int dr = DIRECTION_ROWS[d];
+    int dc = DIRECTION_COLS[d];
+    float offset = 0;
+
+    if (r - dr >= 0 && r - dr < height && r + dr >= 0 && r + dr < height &&
+        c - dc >= 0 && c - dc < width && c + dc >= 0 && c + dc < width) {
+      float before = strength[(r - dr) * width + c - dc];
+      float center = strength[i];
+      float after = strength[(r + dr) * width + c + dc];
+      float curvature = before - 2 * center + after;
+      // Only a peak has a maximum to move to. Flat or rising neighborhoods keep the pixel center.
+      if (curvature < 0) {
+        offset = Math.max(-0.5f, Math.min(0.5f, (before - after) / (2 * curvature)));
+      }
+    }
+    positions[2 * p] = c + offset * dc;
+    positions[2 * p + 1] = r + offset * dr;
+  }
+
+  /**
+   * Returns the width of the image the chains were found in.
+   * @return The width of the image.
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Returns the height of the image the chains were found in.
+   * @return The height of the image.
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Returns the number of chains.
+   * @return The number of chains.
+   */
+  public int getChainCount() {
+    return chainStarts.length - 1;
+  }
+
+  /**
+   * Returns the total number of points in every chain, which is the number of edge pixels.
+   * @return The number of points.
+   */
+  public int getPointCount() {
+    return points.length;
+  }
+
+  /**
+   * Returns the index of the first point of a chain.
+   * @param chain The chain.
+   * @return The index of its first point.
+   */
+  public int getChainStart(int chain) {
+    return chainStarts[chain];
+  }
+
+  /**
+   * Returns one past the index of the last point of a chain.
+   * @param chain The chain.
+   * @return One past the index of its last point.
+   */
+  public int getChainEnd(int chain) {
+    return chainStarts[chain + 1];
+  }
+
+  /**
+   * Returns whether a chain is a closed loop, where its last point is next to its first point.
+   * @param chain The chain.
+   * @return true if the chain is closed, false otherwise.
+   */
+  public boolean isClosed(int chain) {
+    int start = getChainStart(chain);
+    int end = getChainEnd(chain);
+    if (end - start < 3) {
+      return false;
+    }
+    return Math.abs(getX(start) - getX(end - 1)) <= 1 && Math.abs(getY(start) - getY(end - 1)) <= 1;
+  }
+
+  /**
+   * Returns the x-coordinate of the pixel of a point.
+   * @param point The point.
+   * @return The x-coordinate.
+   */
+  public int getX(int point) {
+    return points[point] % width;
+  }
+
+  /**
+   * Returns the y-coordinate of the pixel of a point.
+   * @param point The point.
+   * @return The y-coordinate.
+   */
+  public int getY(int point) {
+    return points[point] / width;
+  }
+
+  /**
+   * Returns whether these chains have subpixel positions.
+   * @return true if subpixel positions were found, false otherwise.
+   */
+  public boolean hasSubpixelPositions() {
+    return positions != null;
+  }
+
+  /**
+   * Returns the subpixel x-coordinate of a point, where pixel centers are at whole numbers.
+   * @param point The point.
+   * @return The subpixel x-coordinate.
+   * @throws IllegalStateException If these chains do not have subpixel positions.
+   */
+  public float getSubpixelX(int point) {
+    checkSubpixel();
+    return positions[2 * point];
+  }
+
+  /**
+   * Returns the subpixel y-coordinate of a point, where pixel centers are at whole numbers.
+   * @param point The point.
+   * @return The subpixel y-coordinate.
+   * @throws IllegalStateException If these chains do not have subpixel positions.
+   */
+  public float getSubpixelY(int point) {
+    checkSubpixel();
+    return positions[2 * point + 1];
+  }
+
+  /**
+   * Makes sure that these chains have subpixel positions.
+   */
+  private void checkSubpixel() {
+    if (positions == null) {
+      throw new IllegalStateException("Subpixel positions were not requested");
+    }
+  }
+
+  /**
+   * Returns the packed points of every chain, each stored as the pixel index r * width + c.
+   * The array is shared with these chains and must not be modified.
+   * @return The packed points.
+   */
+  public int[] getPoints() {
+    return points;
+  }
+
+  /**
+   * Returns the index of the first point of every chain, followed by the total number of points.
+   * The array is shared with these chains and must not be modified.
+   * @return The chain offsets, with getChainCount() + 1 values.
+   */
+  public int[] getChainOffsets() {
+    return chainStarts;
+  }
+
+  /**
+   * Returns the packed subpixel positions of every point, as an x-coordinate followed by a y-coordinate.
+   * The array is shared with these chains and must not be modified.
+   * @return The packed positions, with 2 * getPointCount() values, or null if they were not requested.
+   */
+  public float[] getSubpixelPositions() {
+    return positions;
+  }
+}
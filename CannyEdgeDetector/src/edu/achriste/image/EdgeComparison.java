@@ -0,0 +1,225 @@
+package edu.achriste.image;
+
+import java.io.File;
+
+/**
+ * Measures how closely the edges found by one run of the Canny Edge Detector match the edges found by another.
+ * Used to check approximate modes of the detector against the exact mode. Any pixel that is not 0 in an edge map is
+ * counted as an edge.
+ *
+ * Besides exact pixel matches, edges are also matched within one pixel, since approximations tend to move an edge
+ * over by a pixel more often than they add or remove it.
+ * @author Anthony Christe
+ */
+public class EdgeComparison {
+  // The number of edge pixels in each edge map.
+  private int expectedEdges;
+  private int actualEdges;
+
+  /**
+   * The number of pixels that are edges in both edge maps.
+   */
+  private int matched;
+
+  // The number of edge pixels in one edge map that have an edge within one pixel in the other.
+  private int expectedNear;
+  private int actualNear;
+
+  /**
+   * Compares the edges of two detectors run over images of the same size.
+   * @param expected The detector to compare against, usually run in exact mode.
+   * @param actual The detector to compare.
+   * @param width The width of the images.
+   * @param height The height of the images.
+   */
+  public EdgeComparison(CannyEdgeDetector expected, CannyEdgeDetector actual, int width, int height) {
+    this(getEdges(expected, width, height), getEdges(actual, width, height), width, height);
+  }
+
+  /**
+   * Compares two edge maps of the same size.
+   * @param expected The edge map to compare against.
+   * @param actual The edge map to compare.
+   * @param width The width of the edge maps.
+   * @param height The height of the edge maps.
+   */
+  public EdgeComparison(byte[] expected, byte[] actual, int width, int height) {
+    for (int r = 0; r < height; r++) {
+      for (int c = 0; c < width; c++) {
+        int i = r * width + c;
+        if (expected[i] != 0) {
+          expectedEdges++;
+          if (actual[i] != 0) {
+            matched++;
+          }
+          if (hasEdgeNear(actual, width, height, r, c)) {
+            expectedNear++;
+          }
+        }
+        if (actual[i] != 0) {
+          actualEdges++;
+          if (hasEdgeNear(expected, width, height, r, c)) {
+            actualNear++;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the edge map of a detector.
+   * @param detector The detector.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @return The edge map.
+   */
+  private static byte[] getEdges(CannyEdgeDetector detector, int width, int height) {
+    byte[] edges = new byte[width * height];
+    detector.copyEdges(edges);
+    return edges;
+  }
+
+  /**
+   * Returns whether an edge map has an edge at or next to a pixel.
+   * @param edges The edge map.
+   * @param width The width of the edge map.
+   * @param height The height of the edge map.
+   * @param r The row of the pixel.
+   * @param c The column of the pixel.
+   * @return true if the pixel or one of its 8 neighbors is an edge, false otherwise.
+   */
+  private static boolean hasEdgeNear(byte[] edges, int width, int height, int r, int c) {
+    for (int nr = Math.max(0, r - 1); nr <= Math.min(height - 1, r + 1); nr++) {
+      for (int nc = Math.max(0, c - 1); nc <= Math.min(width - 1, c + 1); nc++) {
+        if (edges[nr * width + nc] != 0) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of edge pixels in the expected edge map.
+   * @return The number of expected edge pixels.
+   */
+  public int getExpectedEdges() {
+    return expectedEdges;
+  }
+
+  /**
+   * Returns the number of edge pixels in the actual edge map.
+   * @return The number of actual edge pixels.
+   */
+  public int getActualEdges() {
+    return actualEdges;
+  }
+
+  /**
+   * Returns the fraction of actual edges that are also expected edges.
+   * @param tolerance 0 to only count exact matches, or 1 to count expected edges within one pixel.
+   * @return The precision, from 0 to 1.
+   */
+  public double getPrecision(int tolerance) {
+    return ratio(tolerance == 0 ? matched : actualNear, actualEdges);
+  }
+
+  /**
+   * Returns the fraction of expected edges that are also actual edges.
+   * @param tolerance 0 to only count exact matches, or 1 to count actual edges within one pixel.
+   * @return The recall, from 0 to 1.
+   */
+  public double getRecall(int tolerance) {
+    return ratio(tolerance == 0 ? matched : expectedNear, expectedEdges);
+  }
+
+  /**
+   * Returns the harmonic mean of the precision and recall.
+   * @param tolerance 0 to only count exact matches, or 1 to count edges within one pixel.
+   * @return The F-measure, from 0 to 1.
+   */
+  public double getFMeasure(int tolerance) {
+    double precision = getPrecision(tolerance);
+    double recall = getRecall(tolerance);
+    return precision + recall == 0 ? 0 : 2 * precision * recall / (precision + recall);
+  }
+
+  /**
+   * Divides two counts, treating 0 / 0 as a perfect match.
+   * @param count The numerator.
+   * @param total The denominator.
+   * @return The ratio.
+   */
+  private static double ratio(int count, int total) {
+    return total == 0 ? 1 : (double) count / total;
+  }
+
+  /**
+   * Returns a one line summary of this comparison.
+   * @return A one line summary of this comparison.
+   */
+  @Override
+  public String toString() {
+    return String.format("edges %d/%d  exact P %.4f R %.4f F %.4f  within 1px P %.4f R %.4f F %.4f",
+        actualEdges, expectedEdges, getPrecision(0), getRecall(0), getFMeasure(0),
+        getPrecision(1), getRecall(1), getFMeasure(1));
+  }
+
+  /**
+   * Prints an accuracy report of the approximate modes of the detector against the exact mode. For the box blur, the
+   * blurred images are compared as well as the edges.
+   * @param args The image file, followed by the sigmas to compare at. Defaults to 1.5, 2.5, and 3.5.
+   */
+  public static void main(String[] args) {
+    if (args.length == 0) {
+      System.out.println("Usage: EdgeComparison <image> [sigma...]");
+      return;
+    }
+    EditableImage image = new EditableImage(new File(args[0]));
+    double[] sigmas = {1.5, 2.5, 3.5};
+    if (args.length > 1) {
+      sigmas = new double[args.length - 1];
+      for (int i = 1; i < args.length; i++) {
+        sigmas[i - 1] = Double.parseDouble(args[i]);
+      }
+    }
+
+    int width = image.getWidth();
+    int height = image.getHeight();
+    for (double sigma : sigmas) {
+      CannyEdgeDetector exact = new CannyEdgeDetector(image, new CannySettings(sigma));
+      CannyEdgeDetector fast = new CannyEdgeDetector(image, new CannySettings(sigma).setFastGradients(true));
+      System.out.println("sigma " + sigma + " fast gradients: " + new EdgeComparison(exact, fast, width, height));
+
+      FixedPointCannyEdgeDetector fixed = new FixedPointCannyEdgeDetector(width, height, new CannySettings(sigma));
+      fixed.detect(image);
+      byte[] fixedEdges = new byte[width * height];
+      fixed.copyEdges(fixedEdges);
+      System.out.println("sigma " + sigma + " fixed point: " +
+          new EdgeComparison(getEdges(exact, width, height), fixedEdges, width, height));
+
+      CannyEdgeDetector boxes = new CannyEdgeDetector(image, new CannySettings(sigma).setBlur(CannySettings.BLUR_BOXES));
+      System.out.println("sigma " + sigma + " box blur: " + new EdgeComparison(exact, boxes, width, height) +
+          "  blur " + getBlurDifference(exact, boxes));
+    }
+  }
+
+  /**
+   * Describes how far apart the blurred images of two detectors are.
+   * @param expected The detector to compare against.
+   * @param actual The detector to compare.
+   * @return The mean and max absolute difference between the blurred images, in gray levels.
+   */
+  private static String getBlurDifference(CannyEdgeDetector expected, CannyEdgeDetector actual) {
+    float[] expectedBlur = expected.getImage(CannyEdgeDetector.IMAGE_GAUSSIAN).getGrayscalePlane();
+    float[] actualBlur = actual.getImage(CannyEdgeDetector.IMAGE_GAUSSIAN).getGrayscalePlane();
+    double sum = 0;
+    double max = 0;
+    for (int i = 0; i < expectedBlur.length; i++) {
+      double difference = Math.abs(expectedBlur[i] - actualBlur[i]);
+      sum += difference;
+      max = Math.max(max, difference);
+    }
+    return String.format("mean diff %.3f max diff %.0f", sum / expectedBlur.length, max);
+  }
+}
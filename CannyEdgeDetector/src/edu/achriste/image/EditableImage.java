@@ -1,5 +1,6 @@
 package edu.achriste.image;
 
+import org.apache.commons.imaging.ImageFormat;
 import org.apache.commons.imaging.ImageReadException;
 import org.apache.commons.imaging.ImageWriteException;
 import org.apache.commons.imaging.Imaging;
@@ -14,18 +15,82 @@ import static org.apache.commons.imaging.ImageFormat.IMAGE_FORMAT_TIFF;
 
 /**
  * Provides extra functionality on top of a BufferedImage for easily modifying the contents of a BufferedImage.
+ *
+ * Several EditableImages may share the same pixels. A view made with getSubimage shares the pixels of its parent, so
+ * that writes to either one can be seen through the other. A copy made with copy shares the pixels of the original only
+ * until one of them is written to, when the one being written to takes its own copy of just the pixels it covers.
  * @author Anthony Christe
  */
 public class EditableImage {
-  private BufferedImage image;
+  /**
+   * Counts the Storages that read the same BufferedImage, so that a write can tell whether it must copy it first.
+   */
+  private static class Share {
+    private int owners = 1;
+  }
+
+  /**
+   * A rectangle of a BufferedImage, shared by an EditableImage and all of the views made from it.
+   */
+  private static class Storage {
+    private volatile BufferedImage root;
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+    private Share share;
+
+    /**
+     * Whether a view has been made over this storage, so that more than one image may be using it.
+     */
+    private volatile boolean viewed;
+
+    /**
+     * Creates storage over the whole of a BufferedImage that is not shared with anything else yet.
+     * @param root The BufferedImage.
+     */
+    private Storage(BufferedImage root) {
+      this(root, 0, 0, root == null ? 0 : root.getWidth(), root == null ? 0 : root.getHeight(), new Share());
+    }
+
+    /**
+     * Creates storage over a rectangle of a BufferedImage.
+     * @param root The BufferedImage.
+     * @param x The first column of the rectangle.
+     * @param y The first row of the rectangle.
+     * @param width The width of the rectangle.
+     * @param height The height of the rectangle.
+     * @param share The count of the Storages that read root.
+     */
+    private Storage(BufferedImage root, int x, int y, int width, int height, Share share) {
+      this.root = root;
+      this.x = x;
+      this.y = y;
+      this.width = width;
+      this.height = height;
+      this.share = share;
+    }
+  }
+
+  private Storage storage;
   private int padding;
 
+  // The rectangle of the storage that this image covers.
+  private int x;
+  private int y;
+  private int width;
+  private int height;
+
+  // The BufferedImage over that rectangle, made again whenever the storage takes its own copy of its pixels.
+  private BufferedImage image;
+  private BufferedImage imageRoot;
+
   /**
    * Create an EditableImage from a given BufferedImage.
    * @param image A BufferedImage.
    */
   public EditableImage(BufferedImage image) {
-    this.image = image;
+    this(new Storage(image));
     this.padding = 0;
   }
 
@@ -35,8 +100,42 @@ public class EditableImage {
    * @param file The image file.
    */
   public EditableImage(File file) {
+    this(new Storage(readImage(file)));
+  }
+
+  /**
+   * Create an EditableImage over the whole of some storage.
+   * @param storage The storage.
+   */
+  private EditableImage(Storage storage) {
+    this(storage, 0, 0, storage.width, storage.height);
+  }
+
+  /**
+   * Create an EditableImage over a rectangle of some storage.
+   * @param storage The storage.
+   * @param x The first column of the rectangle.
+   * @param y The first row of the rectangle.
+   * @param width The width of the rectangle.
+   * @param height The height of the rectangle.
+   */
+  private EditableImage(Storage storage, int x, int y, int width, int height) {
+    this.storage = storage;
+    this.x = x;
+    this.y = y;
+    this.width = width;
+    this.height = height;
+  }
+
+  /**
+   * Reads an image file into a BufferedImage.
+   * @param file The image file.
+   * @return The BufferedImage, or null if the file could not be read.
+   */
+  private static BufferedImage readImage(File file) {
+    BufferedImage image = null;
     try {
-      this.image = Imaging.getBufferedImage(file);
+      image = Imaging.getBufferedImage(file);
       if(image == null) {
         throw new IOException();
       }
@@ -48,6 +147,51 @@ public class EditableImage {
       System.out.println("Could not load image file " + file);
       e.printStackTrace();
     }
+    return image;
+  }
+
+  /**
+   * Returns the BufferedImage over the rectangle of the storage that this image covers, for reading.
+   * When the rectangle is the whole of the storage's BufferedImage, that BufferedImage is returned itself.
+   * @return The BufferedImage over this image.
+   */
+  private BufferedImage image() {
+    BufferedImage root = storage.root;
+    if (root != imageRoot || image == null) {
+      int left = storage.x + x;
+      int top = storage.y + y;
+      if (left == 0 && top == 0 && width == root.getWidth() && height == root.getHeight()) {
+        image = root;
+      }
+      else {
+        image = root.getSubimage(left, top, width, height);
+      }
+      imageRoot = root;
+    }
+    return image;
+  }
+
+  /**
+   * Makes sure that the storage of this image is not shared with a copy before it is written to.
+   * If it is, the storage takes its own copy of just the pixels it covers. Views of this image keep sharing the storage,
+   * so they see the new pixels as well.
+   */
+  private void ensureWritable() {
+    Storage s = storage;
+    synchronized (s.share) {
+      if (s.share.owners > 1) {
+        BufferedImage region = s.root.getSubimage(s.x, s.y, s.width, s.height);
+        ColorModel colorModel = region.getColorModel();
+        WritableRaster writableRaster = region.getRaster().createCompatibleWritableRaster(s.width, s.height);
+        region.copyData(writableRaster);
+
+        s.share.owners--;
+        s.share = new Share();
+        s.x = 0;
+        s.y = 0;
+        s.root = new BufferedImage(colorModel, writableRaster, colorModel.isAlphaPremultiplied(), null);
+      }
+    }
   }
 
   /**
@@ -55,7 +199,7 @@ public class EditableImage {
    * @return The height of an image.
    */
   public int getHeight() {
-    return image.getHeight();
+    return height;
   }
 
   /**
@@ -63,7 +207,7 @@ public class EditableImage {
    * @return The width of an image.
    */
   public int getWidth() {
-    return image.getWidth();
+    return width;
   }
 
   /**
@@ -71,7 +215,7 @@ public class EditableImage {
    * @return The total number of pixels in an image.
    */
   public int getSize() {
-    return image.getHeight() * image.getWidth();
+    return height * width;
   }
 
   /**
@@ -81,7 +225,7 @@ public class EditableImage {
    * @return The grayscale value (0 - 255) of the image at the given x and y-coordinates.
    */
   public int getGrayscale(int x, int y) {
-    return grayscaleFromRgb(image.getRGB(x, y));
+    return grayscaleFromRgb(image().getRGB(x, y));
   }
 
   /**
@@ -91,7 +235,68 @@ public class EditableImage {
    * @param value The grayscale value (0 - 255).
    */
   public void setGrayscale(int x, int y, int value) {
-    image.setRGB(x, y, rgbFromGrayscale(value));
+    ensureWritable();
+    image().setRGB(x, y, rgbFromGrayscale(value));
+  }
+
+  /**
+   * Returns the grayscale values (0 - 255) of the whole image as a row-major plane.
+   * The pixels are read in a single bulk call instead of one call per pixel.
+   * @return A plane of width * height grayscale values, where the value at x, y is stored at y * width + x.
+   */
+  public float[] getGrayscalePlane() {
+    return getGrayscalePlane(new float[width * height], new GrayscaleImage(width, height, GrayscaleImage.TYPE_BYTE));
+  }
+
+  /**
+   * Reads the grayscale values (0 - 255) of the whole image into an existing row-major plane.
+   * Callers reading many images of the same size can reuse the plane and scratch image. Images with one byte per
+   * pixel are read straight from their raster, without a trip through the ColorModel for every pixel.
+   * @param plane A plane of at least width * height values to store the grayscale values in.
+   * @param levels Scratch byte image of the same size that the gray levels are read into first.
+   * @return The given plane.
+   */
+  public float[] getGrayscalePlane(float[] plane, GrayscaleImage levels) {
+    levels.read(image());
+    return levels.getGrayscalePlane(plane);
+  }
+
+  /**
+   * Returns the grayscale values (0 - 255) of the whole image as a GrayscaleImage, read in bulk.
+   * @return A new GrayscaleImage of TYPE_BYTE.
+   */
+  public GrayscaleImage getGrayscaleImage() {
+    return GrayscaleImage.fromBufferedImage(image());
+  }
+
+  /**
+   * Sets the grayscale values of the whole image from a row-major plane.
+   * Values are truncated to integers in the same way that setGrayscale is normally called.
+   * @param plane A plane of width * height grayscale values (0 - 255).
+   */
+  public void setGrayscalePlane(float[] plane) {
+    int[] rgb = new int[width * height];
+
+    for (int i = 0; i < rgb.length; i++) {
+      rgb[i] = rgbFromGrayscale((int) plane[i]);
+    }
+    ensureWritable();
+    image().setRGB(0, 0, width, height, rgb, 0, width);
+  }
+
+  /**
+   * Sets the grayscale values of one row of the image, so that an image can be filled a row at a time without a
+   * full-frame plane.
+   * @param y The row.
+   * @param row Width grayscale values (0 - 255).
+   * @param rgb Scratch array of at least width values for the bulk write.
+   */
+  public void setGrayscaleRow(int y, int[] row, int[] rgb) {
+    for (int x = 0; x < width; x++) {
+      rgb[x] = rgbFromGrayscale(row[x]);
+    }
+    ensureWritable();
+    image().setRGB(0, y, width, 1, rgb, 0, width);
   }
 
   /**
@@ -114,52 +319,112 @@ public class EditableImage {
 
   /**
    * Returns the BufferedImage associated with this.
+   * Since the caller may write to it, this image first takes its own copy of its pixels if they are shared with a copy.
    * @return The BufferedImage associated with this.
    */
   public BufferedImage getImage() {
-    return this.image;
+    ensureWritable();
+    return image();
   }
 
   /**
    * Returns a copy of this EditableImage.
+   * The copy shares the pixels of this image until either of them is written to, so copies that are only read from
+   * cost no more than the EditableImage itself.
    * @return A copy of this EditableImage.
    */
   public EditableImage copy() {
-    ColorModel colorModel = image.getColorModel();
-    boolean isAlphaPremultiplied = colorModel.isAlphaPremultiplied();
-    WritableRaster writeableRaster = image.copyData(null);
-    return new EditableImage(new BufferedImage(colorModel, writeableRaster, isAlphaPremultiplied, null));
+    Storage s = storage;
+    Storage shared;
+    synchronized (s.share) {
+      s.share.owners++;
+      shared = new Storage(s.root, s.x + x, s.y + y, width, height, s.share);
+    }
+    return new EditableImage(shared);
+  }
+
+  /**
+   * Gives up the share of a copy in the pixels it was copied from, so that the image it was copied from can be written
+   * to again without taking its own copy first. The copy must not be used afterwards.
+   */
+  void discard() {
+    release(storage);
+    storage = null;
+  }
+
+  /**
+   * Takes a storage out of the count of the Storages that read its BufferedImage, so that the others can be written to
+   * without copying it first. The storage must not be used afterwards.
+   * @param s The storage.
+   */
+  private static void release(Storage s) {
+    synchronized (s.share) {
+      if (s.share.owners > 1) {
+        s.share.owners--;
+        s.share = new Share();
+      }
+    }
+  }
+
+  /**
+   * Returns a view of a rectangle of this image.
+   * The view shares its pixels with this image, so writes to either one can be seen through the other.
+   * @param x The first column of the rectangle.
+   * @param y The first row of the rectangle.
+   * @param width The width of the rectangle.
+   * @param height The height of the rectangle.
+   * @return A view of the rectangle.
+   */
+  public EditableImage getSubimage(int x, int y, int width, int height) {
+    if (x < 0 || y < 0 || width <= 0 || height <= 0 || x + width > this.width || y + height > this.height) {
+      throw new IllegalArgumentException("Rectangle (" + x + ", " + y + ", " + width + ", " + height
+                                         + ") is outside of a " + this.width + "x" + this.height + " image");
+    }
+    storage.viewed = true;
+    return new EditableImage(storage, this.x + x, this.y + y, width, height);
+  }
+
+  /**
+   * Returns a new image of the same size and type as this one, without copying any pixels.
+   * Every sample of the new image is zero, which is black for grayscale and rgb images.
+   * @return A new image of the same size and type.
+   */
+  public EditableImage createBlank() {
+    BufferedImage current = image();
+    ColorModel colorModel = current.getColorModel();
+    WritableRaster writableRaster = current.getRaster().createCompatibleWritableRaster(width, height);
+    return new EditableImage(new BufferedImage(colorModel, writableRaster, colorModel.isAlphaPremultiplied(), null));
+  }
+
+  /**
+   * Returns an image of the same size and type as this one, taken from a pool.
+   * Unlike createBlank, the pixels of an image from the pool are whatever its last user left in them.
+   * @param pool The pool to take the image from, or null to return createBlank().
+   * @return An image of the same size and type.
+   */
+  public EditableImage createCompatible(ImagePool pool) {
+    if (pool == null) {
+      return createBlank();
+    }
+    return new EditableImage(pool.acquireCompatible(image()));
   }
 
   /**
    * Pads this image with zeroes.
-   * The image is padded on all sides by the amount n.
+   * The image is padded on all sides by the amount n. Edge detection no longer pads its images, since Convolution reads
+   * the values outside of a plane through a border policy instead.
    * @param n The length to pad on each side.
    */
   public void padWithZeros(int n) {
     BufferedImage paddedImage;
     this.padding = n;
-    int paddedWidth = image.getWidth() + (2 * n);
-    int paddedHeight = image.getHeight() + (2 * n);
-
-    paddedImage = new BufferedImage(paddedWidth, paddedHeight, BufferedImage.TYPE_BYTE_INDEXED);
-
-    // First set everything to 0
-    for(int r = 0; r < paddedImage.getHeight(); r++) {
-      for(int c = 0; c < paddedImage.getWidth(); c++) {
-        paddedImage.setRGB(c, r, rgbFromGrayscale(0));
-      }
-    }
 
-    // Insert original image into padded image
-    for(int r = 0; r < image.getHeight(); r++) {
-      for(int c = 0; c < image.getWidth(); c++) {
-        paddedImage.setRGB(c + n, r + n, image.getRGB(c, r));
-      }
-    }
+    // A new indexed image is already black everywhere, so only the original image needs to be copied in.
+    paddedImage = new BufferedImage(width + (2 * n), height + (2 * n), BufferedImage.TYPE_BYTE_INDEXED);
+    paddedImage.setRGB(n, n, width, height, image().getRGB(0, 0, width, height, null, 0, width), 0, width);
 
     // Finally, update the image
-    this.image = paddedImage;
+    setStorage(new Storage(paddedImage));
   }
 
   /**
@@ -168,25 +433,38 @@ public class EditableImage {
   public void removePadding() {
     BufferedImage unpaddedImage;
 
-    int width = image.getWidth() - (2 * this.padding);
-    int height = image.getHeight() - (2 * this.padding);
+    int width = this.width - (2 * this.padding);
+    int height = this.height - (2 * this.padding);
 
+    // Copy the original image out of the padded image
     unpaddedImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED);
-
-    // Insert original image into padded image
-    for(int r = padding; r < image.getHeight() - padding; r++) {
-      for(int c = padding; c < image.getWidth() - padding; c++) {
-        unpaddedImage.setRGB(c - padding, r - padding, image.getRGB(c, r));
-      }
-    }
+    unpaddedImage.setRGB(0, 0, width, height, image().getRGB(padding, padding, width, height, null, 0, width), 0,
+                         width);
 
     // Finally, update the image
-    this.image = unpaddedImage;
+    setStorage(new Storage(unpaddedImage));
 
     // Reset the padding
     this.padding = 0;
   }
 
+  /**
+   * Replaces the pixels of this image with the whole of some new storage. Views made before this no longer follow it.
+   * The old storage gives up its share in pixels it was copied from, unless a view may still be using it.
+   * @param storage The new storage.
+   */
+  private void setStorage(Storage storage) {
+    if (!this.storage.viewed) {
+      release(this.storage);
+    }
+    this.storage = storage;
+    this.x = 0;
+    this.y = 0;
+    this.width = storage.width;
+    this.height = storage.height;
+    this.image = null;
+  }
+
   /**
    * Writes an image to a file.
    * Uses the Apache Commons Imaging library to write to a file.
@@ -194,11 +472,24 @@ public class EditableImage {
    */
   public void writeImage(String fileName) {
     try {
-      Imaging.writeImage(image, new File(fileName), IMAGE_FORMAT_TIFF, null);
-    } catch (ImageWriteException e) {
-      e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
+      writeImage(new File(fileName), IMAGE_FORMAT_TIFF);
     } catch (IOException e) {
       e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
     }
   }
+
+  /**
+   * Writes an image to a file in the given format.
+   * Unlike writeImage(String), failures are passed on to the caller so that batch jobs can count them.
+   * @param file The file to write to.
+   * @param format The image format to write, such as ImageFormat.IMAGE_FORMAT_PNG.
+   * @throws IOException If the image could not be encoded or written.
+   */
+  public void writeImage(File file, ImageFormat format) throws IOException {
+    try {
+      Imaging.writeImage(image(), file, format, null);
+    } catch (ImageWriteException e) {
+      throw new IOException("Could not write image file " + file, e);
+    }
+  }
 }
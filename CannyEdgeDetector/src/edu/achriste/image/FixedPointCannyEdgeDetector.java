@@ -0,0 +1,413 @@
+package edu.achriste.image;
+
+/**
+ * Runs the Canny Edge Detector on 8-bit grayscale frames using only integer arithmetic.
+ * The pipeline follows the same steps as the CannyEdgeDetector, but every plane is stored in the smallest integer type
+ * that holds it, so far less memory is moved per frame:
+ * <ul>
+ *   <li>The Gaussian kernel is scaled to 14-bit fixed point, and the blurred image is kept as a short with 7
+ *   fractional bits.</li>
+ *   <li>The Sobel operators are summed in ints, and the gradients are shifted down to 5 fractional bits so that their
+ *   squared length fits in an int.</li>
+ *   <li>The gradient strength is kept as the squared length of the gradient, so no square roots are needed, and
+ *   non-maximum suppression and the thresholds compare squared strengths.</li>
+ *   <li>The gradient direction is rounded with integer ratio tests against tan(22.5) and tan(67.5).</li>
+ * </ul>
+ * Like the frame size bound CannyEdgeDetector, a detector is created once for a frame size and then run on many frames
+ * without allocating. Detection always runs on the calling thread, so the pool of the settings is not used.
+ *
+ * The edges are close to, but not exactly the same as, the edges of the floating point pipeline. The rounding of the
+ * fixed point steps moves some pixels across a threshold or past a neighbor in non-maximum suppression, and
+ * suppression compares exact strengths instead of truncating the pixel's own strength to an int first, which keeps a
+ * few more edge pixels. On the sample board image at sigmas 1.5, 2.5, and 3.5, at least 99.9% of the floating point
+ * edges are found, and at least 95% of the fixed point edges match a floating point edge exactly (96% within one
+ * pixel). Use EdgeComparison to measure the difference on other images.
+ * @author Anthony Christe
+ */
+public class FixedPointCannyEdgeDetector {
+  /**
+   * The number of fractional bits of the Gaussian kernel.
+   */
+  private static final int KERNEL_BITS = 14;
+
+  /**
+   * The number of fractional bits of the blurred image.
+   */
+  private static final int BLUR_BITS = 7;
+
+  /**
+   * The Sobel sums of the blurred image are shifted right by this much so that the squared strength fits in an int.
+   */
+  private static final int GRADIENT_SHIFT = 2;
+
+  /**
+   * The number of fractional bits of the gradients.
+   */
+  private static final int GRADIENT_BITS = BLUR_BITS - GRADIENT_SHIFT;
+
+  // tan(22.5) and tan(67.5) with 12 fractional bits, used to round the gradient direction.
+  private static final int TAN_22_5 = 1697;
+  private static final int TAN_67_5 = 9889;
+  private static final int TAN_BITS = 12;
+
+  // For each direction, the row and column step to one of the two neighbors it is compared with during non-maximum
+  // suppression: N, NW, W, and NE for the 0, 45, 90, and 135 directions. The other neighbor is the opposite step.
+  private static final int[] NEIGHBOR_ROWS = {-1, -1, 0, -1};
+  private static final int[] NEIGHBOR_COLS = {0, -1, -1, 1};
+
+  // Dimensions of every frame.
+  private int width;
+  private int height;
+
+  /**
+   * The Gaussian kernel in fixed point. The elements add up to exactly 1 << KERNEL_BITS.
+   */
+  private int[] kernel;
+
+  // The lower and upper thresholds used during hysteresis.
+  private double lowThreshold;
+  private double highThreshold;
+
+  // The frame after blurring along the rows, and after blurring along both the rows and the columns.
+  private short[] horizontal;
+  private short[] blurred;
+
+  /**
+   * The squared gradient strength for each pixel.
+   */
+  private int[] strength;
+
+  /**
+   * The rounded gradient direction for each pixel, as a CannyEdgeDetector DIRECTION constant.
+   */
+  private byte[] direction;
+
+  /**
+   * The hysteresis state of each pixel, as a CannyEdgeDetector EDGE constant.
+   */
+  private byte[] hysteresis;
+
+  /**
+   * Scratch stack used while tracing hysteresis.
+   */
+  private IntStack stack;
+
+  // Scratch arrays used to read frames from images.
+  private int[] rgb;
+  private byte[] plane;
+
+  /**
+   * The number of bytes allocated on the calling thread during the last call to detect, or -1 if unknown.
+   */
+  private long allocatedBytes;
+
+  /**
+   * Creates a detector bound to a frame size and settings, which can then be run on many frames through detect.
+   * @param width The width of every frame.
+   * @param height The height of every frame.
+   * @param settings The settings to use for edge detection. The thresholds must be fixed, the blur must use the
+   *                 sampled kernel, and values outside of the image must be zero.
+   * @throws IllegalArgumentException If the settings choose the thresholds automatically, blur with boxes, or use a
+   *                                  border policy other than BORDER_ZERO.
+   */
+  public FixedPointCannyEdgeDetector(int width, int height, CannySettings settings) {
+    if (settings.getThresholdMode() != CannySettings.THRESHOLDS_FIXED) {
+      throw new IllegalArgumentException("The fixed point detector only supports fixed thresholds");
+    }
+    if (settings.getBlur() != CannySettings.BLUR_KERNEL) {
+      throw new IllegalArgumentException("The fixed point detector only supports blurring with the sampled kernel");
+    }
+    if (settings.getBorder() != Convolution.BORDER_ZERO) {
+      throw new IllegalArgumentException("The fixed point detector only supports zero borders");
+    }
+    this.width = width;
+    this.height = height;
+    this.kernel = getFixedPointKernel(CannyEdgeDetector.getGaussianKernel(settings.getSigma()));
+    this.lowThreshold = settings.getLowThreshold();
+    this.highThreshold = settings.getHighThreshold();
+    this.allocatedBytes = -1;
+
+    // Initialize the planes
+    horizontal = new short[width * height];
+    blurred = new short[width * height];
+    strength = new int[width * height];
+    direction = new byte[width * height];
+    hysteresis = new byte[width * height];
+    stack = new IntStack();
+  }
+
+  /**
+   * Scales a Gaussian kernel to fixed point.
+   * Each element is rounded to the nearest fixed point value, and then the middle element takes up the rounding error,
+   * so that blurring a flat image leaves it unchanged.
+   * @param kernel The Gaussian kernel.
+   * @return The kernel in fixed point.
+   */
+  private static int[] getFixedPointKernel(double[] kernel) {
+    int[] fixed = new int[kernel.length];
+    int sum = 0;
+    for (int i = 0; i < kernel.length; i++) {
+      fixed[i] = (int) Math.round(kernel[i] * (1 << KERNEL_BITS));
+      sum += fixed[i];
+    }
+    if (fixed.length > 0) {
+      fixed[fixed.length / 2] += (1 << KERNEL_BITS) - sum;
+    }
+    return fixed;
+  }
+
+  /**
+   * Runs the steps of the Canny Edge Detector on the next frame.
+   * @param frame The 8-bit grayscale values of the frame, where the value at x, y is stored at y * width + x.
+   */
+  public void detect(byte[] frame) {
+    if (frame.length != width * height) {
+      throw new IllegalArgumentException("Expected a " + width + "x" + height + " frame");
+    }
+    long before = Allocations.getThreadAllocatedBytes();
+
+    applyGaussianFilter(frame);
+    applyFeatureDetection();
+    applyNonMaximumSuppression();
+    applyHysteresis();
+
+    long after = Allocations.getThreadAllocatedBytes();
+    allocatedBytes = before < 0 || after < 0 ? -1 : Allocations.since(before, after);
+  }
+
+  /**
+   * Runs the steps of the Canny Edge Detector on the next frame, read from an image.
+   * @param frame The frame to run edge detection on. It must have the size this detector was created with.
+   */
+  public void detect(EditableImage frame) {
+    if (frame.getWidth() != width || frame.getHeight() != height) {
+      throw new IllegalArgumentException("Expected a " + width + "x" + height + " frame");
+    }
+    if (rgb == null) {
+      rgb = new int[width * height];
+      plane = new byte[width * height];
+    }
+    frame.getImage().getRGB(0, 0, width, height, rgb, 0, width);
+    for (int i = 0; i < width * height; i++) {
+      plane[i] = (byte) EditableImage.grayscaleFromRgb(rgb[i]);
+    }
+    detect(plane);
+  }
+
+  /**
+   * Blurs the frame with the fixed point Gaussian kernel along the rows and then along the columns.
+   * @param frame The 8-bit grayscale values of the frame.
+   */
+  private void applyGaussianFilter(byte[] frame) {
+    int anchor = kernel.length / 2;
+    int rowRound = 1 << (KERNEL_BITS - BLUR_BITS - 1);
+    int columnRound = 1 << (KERNEL_BITS - 1);
+
+    // Along the rows. The result keeps BLUR_BITS fractional bits.
+    for (int r = 0; r < height; r++) {
+      int row = r * width;
+      for (int c = 0; c < width; c++) {
+        int first = Math.max(0, anchor - c);
+        int last = Math.min(kernel.length, width - c + anchor);
+        int offset = row + c - anchor;
+        int sum = 0;
+        for (int k = first; k < last; k++) {
+          sum += kernel[k] * (frame[offset + k] & 0xFF);
+        }
+        horizontal[row + c] = (short) ((sum + rowRound) >> (KERNEL_BITS - BLUR_BITS));
+      }
+    }
+
+    // Along the columns, a whole row at a time.
+    for (int r = 0; r < height; r++) {
+      int row = r * width;
+      int first = Math.max(0, anchor - r);
+      int last = Math.min(kernel.length, height - r + anchor);
+      for (int c = 0; c < width; c++) {
+        int sum = 0;
+        for (int k = first; k < last; k++) {
+          sum += kernel[k] * horizontal[(r - anchor + k) * width + c];
+        }
+        blurred[row + c] = (short) ((sum + columnRound) >> KERNEL_BITS);
+      }
+    }
+  }
+
+  /**
+   * Finds the squared gradient strengths and rounded gradient directions over the blurred image.
+   * Values outside of the image are treated as zero, as in the floating point pipeline.
+   */
+  private void applyFeatureDetection() {
+    int nw, n, ne, w, e, sw, s, se;
+    for (int r = 0; r < height; r++) {
+      for (int c = 0; c < width; c++) {
+        // The 3x3 neighborhood of the pixel. Only pixels on the border of the image need bounds checks.
+        if (r > 0 && r < height - 1 && c > 0 && c < width - 1) {
+          int above = (r - 1) * width + c;
+          int row = r * width + c;
+          int below = (r + 1) * width + c;
+          nw = blurred[above - 1];
+          n = blurred[above];
+          ne = blurred[above + 1];
+          w = blurred[row - 1];
+          e = blurred[row + 1];
+          sw = blurred[below - 1];
+          s = blurred[below];
+          se = blurred[below + 1];
+        }
+        else {
+          nw = getBlurred(r - 1, c - 1);
+          n = getBlurred(r - 1, c);
+          ne = getBlurred(r - 1, c + 1);
+          w = getBlurred(r, c - 1);
+          e = getBlurred(r, c + 1);
+          sw = getBlurred(r + 1, c - 1);
+          s = getBlurred(r + 1, c);
+          se = getBlurred(r + 1, c + 1);
+        }
+
+        // The same Sobel operators as the floating point pipeline
+        int gx = ((sw + 2 * s + se) - (nw + 2 * n + ne)) >> GRADIENT_SHIFT;
+        int gy = ((nw + 2 * w + sw) - (ne + 2 * e + se)) >> GRADIENT_SHIFT;
+
+        int i = r * width + c;
+        strength[i] = gx * gx + gy * gy;
+        direction[i] = roundDirection(gx, gy);
+      }
+    }
+  }
+
+  /**
+   * Returns the blurred value of a pixel, or zero outside of the image.
+   * @param r The row of the pixel.
+   * @param c The column of the pixel.
+   * @return The blurred value of the pixel.
+   */
+  private int getBlurred(int r, int c) {
+    if (r < 0 || r >= height || c < 0 || c >= width) {
+      return 0;
+    }
+    return blurred[r * width + c];
+  }
+
+  /**
+   * Rounds the direction of a gradient to one of the CannyEdgeDetector DIRECTION constants using integer ratio tests.
+   * @param gx The gradient in the x-direction.
+   * @param gy The gradient in the y-direction.
+   * @return The rounded direction.
+   */
+  private static byte roundDirection(int gx, int gy) {
+    int ax = Math.abs(gx);
+    int ay = Math.abs(gy);
+
+    // Value is close to horizontal
+    if ((ay << TAN_BITS) < TAN_22_5 * ax || ay == 0) {
+      return CannyEdgeDetector.DIRECTION_0;
+    }
+    // Value is close to vertical
+    if ((ay << TAN_BITS) >= TAN_67_5 * ax) {
+      return CannyEdgeDetector.DIRECTION_90;
+    }
+    // Value is close to one of the diagonals
+    return (gx > 0) == (gy > 0) ? CannyEdgeDetector.DIRECTION_45 : CannyEdgeDetector.DIRECTION_135;
+  }
+
+  /**
+   * Marks pixels that are weaker than either of their neighbors along the gradient direction as suppressed.
+   */
+  private void applyNonMaximumSuppression() {
+    for (int r = 0; r < height; r++) {
+      for (int c = 0; c < width; c++) {
+        int i = r * width + c;
+        int dr = NEIGHBOR_ROWS[direction[i]];
+        int dc = NEIGHBOR_COLS[direction[i]];
+        if (isStronger(r + dr, c + dc, strength[i]) || isStronger(r - dr, c - dc, strength[i])) {
+          direction[i] |= CannyEdgeDetector.SUPPRESSED;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns whether a neighbor is stronger than the given squared gradient strength.
+   * @param r The row of the neighbor.
+   * @param c The column of the neighbor.
+   * @param gradStrength The squared gradient strength of the current pixel.
+   * @return true if the neighbor is inside of the image and stronger, false otherwise.
+   */
+  private boolean isStronger(int r, int c, int gradStrength) {
+    return r >= 0 && r < height && c >= 0 && c < width && gradStrength < strength[r * width + c];
+  }
+
+  /**
+   * Sorts each pixel against the thresholds and traces the edges.
+   * The thresholds are on the normalized gradient strength. They are turned into squared strengths once per frame, so
+   * each pixel only needs an integer comparison.
+   */
+  private void applyHysteresis() {
+    int minSquared = Integer.MAX_VALUE;
+    int maxSquared = 0;
+    for (int i = 0; i < width * height; i++) {
+      minSquared = Math.min(minSquared, strength[i]);
+      maxSquared = Math.max(maxSquared, strength[i]);
+    }
+
+    double min = Math.sqrt(minSquared);
+    double max = Math.sqrt(maxSquared);
+    double low = min + lowThreshold * (max - min);
+    double high = min + highThreshold * (max - min);
+
+    // Strong pixels have a strength greater than high, and rejected pixels have a strength less than low.
+    long highSquared = (long) Math.floor(high * high);
+    long lowSquared = (long) Math.ceil(low * low);
+
+    for (int i = 0; i < width * height; i++) {
+      if (strength[i] > highSquared) {
+        hysteresis[i] = CannyEdgeDetector.EDGE_STRONG;
+      }
+      else if ((direction[i] & CannyEdgeDetector.SUPPRESSED) != 0 || strength[i] < lowSquared) {
+        hysteresis[i] = CannyEdgeDetector.EDGE_NONE;
+      }
+      else {
+        hysteresis[i] = CannyEdgeDetector.EDGE_UNVISITED;
+      }
+    }
+    Hysteresis.trace(hysteresis, width, height, stack);
+  }
+
+  /**
+   * Copies the edges of the last frame into an existing plane, with the same values as IMAGE_HYSTERESIS of the
+   * CannyEdgeDetector.
+   * @param edges A plane of at least width * height values to store 255 for strong edges, 127 for traced edges, and 0
+   *              for everything else.
+   */
+  public void copyEdges(byte[] edges) {
+    for (int i = 0; i < width * height; i++) {
+      if (hysteresis[i] == CannyEdgeDetector.EDGE_STRONG) {
+        edges[i] = (byte) 255;
+      }
+      else {
+        edges[i] = hysteresis[i] == CannyEdgeDetector.EDGE_WEAK ? (byte) 127 : 0;
+      }
+    }
+  }
+
+  /**
+   * Copies the gradient strength of the last frame into an existing plane, in the same units as the floating point
+   * pipeline. This is mostly useful for checking the fixed point steps against the floating point ones.
+   * @param plane A plane of at least width * height values to store the gradient strength in.
+   */
+  public void copyStrength(float[] plane) {
+    for (int i = 0; i < width * height; i++) {
+      plane[i] = (float) Math.sqrt(strength[i]) / (1 << GRADIENT_BITS);
+    }
+  }
+
+  /**
+   * Returns the number of bytes allocated on the calling thread during the last call to detect.
+   * @return The number of bytes allocated, or -1 if the JVM cannot count allocations or detect has not been called.
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+}
@@ -0,0 +1,240 @@
+package edu.achriste.image;
+
+/**
+ * Histogram of gradient strengths, used to choose the hysteresis thresholds automatically.
+ * Only the strengths that survive non-maximum suppression are counted. The bins cover every strength the Sobel
+ * operators can give for the range of grayscale values in the image, so the histogram can be filled while the min and
+ * max strength are still being found, before the strength can be normalized.
+ * Stronger gradients, which can only come from values outside of that range, are counted in the last bin.
+ *
+ * The range is 0 to 255 for 8-bit images. Frames with other ranges, such as 16-bit or float frames, are given a range
+ * that fits their largest value with getMaxValue, so that their strengths spread over the bins instead of all landing
+ * in the last one.
+ * @author Anthony Christe
+ */
+class GradientHistogram {
+  /**
+   * The number of bins.
+   */
+  static final int BINS = 2048;
+
+  /**
+   * The largest gradient strength the Sobel operators can give for grayscale values from 0 to 255.
+   */
+  static final double MAX_STRENGTH = 4 * 255 * Math.sqrt(2);
+
+  /**
+   * The smallest range that getMaxValue gives, for frames that are black or nearly so.
+   */
+  private static final double MIN_MAX_VALUE = 255.0 / 65536;
+
+  /**
+   * The largest grayscale value the bins are sized for.
+   */
+  private double maxValue;
+
+  /**
+   * Scales a gradient strength to its bin.
+   */
+  private float scale;
+
+  /**
+   * The number of pixels in each bin.
+   */
+  private int[] counts;
+
+  /**
+   * Creates an empty histogram for grayscale values from 0 to 255.
+   */
+  GradientHistogram() {
+    this(255);
+  }
+
+  /**
+   * Creates an empty histogram for grayscale values from 0 to maxValue.
+   * @param maxValue The largest grayscale value in the image.
+   */
+  GradientHistogram(double maxValue) {
+    counts = new int[BINS];
+    setMaxValue(maxValue);
+  }
+
+  /**
+   * Returns the largest grayscale value the bins are sized for.
+   * @return The largest grayscale value.
+   */
+  double getMaxValue() {
+    return maxValue;
+  }
+
+  /**
+   * Sizes the bins for grayscale values from 0 to maxValue. Strengths that were already counted are not moved, so this
+   * should be followed by clear unless the range is the same.
+   * @param maxValue The largest grayscale value in the image.
+   */
+  void setMaxValue(double maxValue) {
+    this.maxValue = maxValue;
+    scale = (float) (BINS / (MAX_STRENGTH * maxValue / 255));
+  }
+
+  /**
+   * Returns the range to size the bins for a plane of grayscale values. This is the smallest power of two, or 255 times
+   * a power of two, that fits the largest magnitude in the plane, so 8-bit images whose largest value is over 128 get
+   * 255, and float images from 0 to 1 get 1. The range only moves in steps of about a factor of two, so frames from the
+   * same source almost always share it.
+   * A blurred plane can go past its true largest value by a rounding error, so values up to 1/1024 past a range still
+   * count as inside of it.
+   * @param plane The grayscale values, such as the blurred image.
+   * @return The largest grayscale value to size the bins for.
+   */
+  static double getMaxValue(float[] plane) {
+    float largest = 0;
+    for (int i = 0; i < plane.length; i++) {
+      largest = Math.max(largest, Math.abs(plane[i]));
+    }
+    return getMaxValue(largest);
+  }
+
+  /**
+   * Returns the range to size the bins for, from the largest magnitude of a plane of grayscale values, for callers that
+   * never hold the whole plane at once.
+   * @param largest The largest magnitude in the plane.
+   * @return The largest grayscale value to size the bins for.
+   * @see #getMaxValue(float[])
+   */
+  static double getMaxValue(float largest) {
+    double limit = largest / (1 + 1.0 / 1024);
+    return Math.min(fitRange(255, limit), fitRange(1, limit));
+  }
+
+  /**
+   * Returns the smallest of a value times a power of two that is at least a limit.
+   * @param value The value.
+   * @param limit The limit.
+   * @return The smallest value * 2^k, for a whole number k, that is at least limit and MIN_MAX_VALUE.
+   */
+  private static double fitRange(double value, double limit) {
+    while (value < limit) {
+      value *= 2;
+    }
+    while (value / 2 >= limit && value / 2 >= MIN_MAX_VALUE) {
+      value /= 2;
+    }
+    return value;
+  }
+
+  /**
+   * Empties this histogram.
+   */
+  void clear() {
+    for (int bin = 0; bin < BINS; bin++) {
+      counts[bin] = 0;
+    }
+  }
+
+  /**
+   * Counts a gradient strength.
+   * @param strength The gradient strength of a pixel.
+   */
+  void add(float strength) {
+    counts[Math.min(BINS - 1, (int) (strength * scale))]++;
+  }
+
+  /**
+   * Stops counting a gradient strength that was counted before, such as the old strength of a pixel that changed.
+   * @param strength The gradient strength that was counted.
+   */
+  void remove(float strength) {
+    counts[Math.min(BINS - 1, (int) (strength * scale))]--;
+  }
+
+  /**
+   * Adds the counts of another histogram to this one.
+   * @param other The other histogram.
+   */
+  void merge(GradientHistogram other) {
+    for (int bin = 0; bin < BINS; bin++) {
+      counts[bin] += other.counts[bin];
+    }
+  }
+
+  /**
+   * Chooses the high threshold with the method given by the settings, normalized against the min and max strength.
+   * @param settings The settings, with either THRESHOLDS_OTSU or THRESHOLDS_PERCENTILE as the threshold mode.
+   * @param minStrength The smallest gradient strength in the image.
+   * @param maxStrength The largest gradient strength in the image.
+   * @return The high threshold, from 0 to 1.
+   */
+  double getHighThreshold(CannySettings settings, double minStrength, double maxStrength) {
+    int bin;
+    if (settings.getThresholdMode() == CannySettings.THRESHOLDS_OTSU) {
+      bin = getOtsuBin();
+    }
+    else {
+      bin = getPercentileBin(settings.getPercentile());
+    }
+
+    // Pixels in the chosen bin and above are edges, so the threshold is the lower edge of the bin.
+    double threshold = (bin / scale - minStrength) / (maxStrength - minStrength);
+    return Math.max(0, Math.min(1, threshold));
+  }
+
+  /**
+   * Finds the threshold between weak and strong gradients with Otsu's method, which picks the split between the two
+   * groups of pixels with the largest between class variance.
+   * @return The first bin of the strong group.
+   */
+  private int getOtsuBin() {
+    long total = 0;
+    double sum = 0;
+    for (int bin = 0; bin < BINS; bin++) {
+      total += counts[bin];
+      sum += (double) bin * counts[bin];
+    }
+
+    // Group size and sum of values less than the threshold, updated as the threshold moves up.
+    long below = 0;
+    double sumBelow = 0;
+    double max = 0;
+    int maxIndex = 0;
+    for (int t = 1; t < BINS; t++) {
+      below += counts[t - 1];
+      sumBelow += (double) (t - 1) * counts[t - 1];
+      long above = total - below;
+      if (below == 0 || above == 0) {
+        continue;
+      }
+
+      double q1 = (double) below / total;
+      double u1 = sumBelow / below;
+      double u2 = (sum - sumBelow) / above;
+      double variance = q1 * (1 - q1) * (u1 - u2) * (u1 - u2);
+      if (variance > max) {
+        max = variance;
+        maxIndex = t;
+      }
+    }
+    return maxIndex;
+  }
+
+  /**
+   * Finds the bin that leaves the given fraction of pixels below it.
+   * @param percentile The fraction of pixels that should not be strong edges, from 0 to 1.
+   * @return The first bin above the percentile.
+   */
+  private int getPercentileBin(double percentile) {
+    long total = 0;
+    for (int bin = 0; bin < BINS; bin++) {
+      total += counts[bin];
+    }
+
+    long below = 0;
+    for (int bin = 0; bin < BINS; bin++) {
+      below += counts[bin];
+      if (below >= percentile * total) {
+        return bin + 1;
+      }
+    }
+    return BINS;
+  }
+}
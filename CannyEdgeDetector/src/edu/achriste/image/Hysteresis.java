@@ -0,0 +1,290 @@
+package edu.achriste.image;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Traces edges through the hysteresis plane of the Canny Edge Detector.
+ * Before tracing, every pixel holds one of the CannyEdgeDetector EDGE constants. Strong pixels are above the upper
+ * threshold, unvisited pixels are between the thresholds, and all other pixels are none. Tracing marks every unvisited
+ * pixel that is 8-connected to a strong pixel through other unvisited pixels as weak, and everything else as none.
+ *
+ * The trace can either be run with an explicit stack on the calling thread, or split into horizontal bands on a
+ * ForkJoinPool. Both give the same result.
+ * @author Anthony Christe
+ */
+class Hysteresis {
+  // Row and column offsets for all 8 neighbors, starting at N and going clockwise.
+  private static final int[] NEIGHBOR_ROWS = {-1, -1, 0, 1, 1, 1, 0, -1};
+  private static final int[] NEIGHBOR_COLS = {0, 1, 1, 1, 0, -1, -1, -1};
+
+  /**
+   * Traces the hysteresis plane on the calling thread.
+   * Instead of recursing into neighbors, pixels waiting to be visited are kept on the given stack, so chains of any
+   * length can be followed.
+   * @param states The hysteresis plane.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param stack Scratch stack. It is cleared before it is used.
+   */
+  static void trace(byte[] states, int width, int height, IntStack stack) {
+    stack.clear();
+
+    // For each accepted edge pixel, search all 8 neighbors for pixels between the thresholds.
+    for (int i = 0; i < states.length; i++) {
+      if (states[i] == CannyEdgeDetector.EDGE_STRONG) {
+        pushNeighbors(states, width, height, i, stack);
+        while (!stack.isEmpty()) {
+          int j = stack.pop();
+          if (states[j] == CannyEdgeDetector.EDGE_UNVISITED) {
+            states[j] = CannyEdgeDetector.EDGE_WEAK;
+            pushNeighbors(states, width, height, j, stack);
+          }
+        }
+      }
+    }
+
+    // Set any remaining pixels to black.
+    for (int i = 0; i < states.length; i++) {
+      if (states[i] == CannyEdgeDetector.EDGE_UNVISITED) {
+        states[i] = CannyEdgeDetector.EDGE_NONE;
+      }
+    }
+  }
+
+  /**
+   * Traces only some of the pixels of the hysteresis plane on the calling thread, leaving the rest as they are.
+   * The given pixels must hold every unvisited pixel in the plane, along with every strong pixel that is 8-connected to
+   * one of them through other strong and unvisited pixels, so that whole components are traced.
+   * @param states The hysteresis plane.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param pixels The indices of the pixels to trace.
+   * @param stack Scratch stack. It is cleared before it is used.
+   */
+  static void trace(byte[] states, int width, int height, IntStack pixels, IntStack stack) {
+    stack.clear();
+
+    for (int p = 0; p < pixels.size(); p++) {
+      int i = pixels.get(p);
+      if (states[i] == CannyEdgeDetector.EDGE_STRONG) {
+        pushNeighbors(states, width, height, i, stack);
+        while (!stack.isEmpty()) {
+          int j = stack.pop();
+          if (states[j] == CannyEdgeDetector.EDGE_UNVISITED) {
+            states[j] = CannyEdgeDetector.EDGE_WEAK;
+            pushNeighbors(states, width, height, j, stack);
+          }
+        }
+      }
+    }
+
+    for (int p = 0; p < pixels.size(); p++) {
+      int i = pixels.get(p);
+      if (states[i] == CannyEdgeDetector.EDGE_UNVISITED) {
+        states[i] = CannyEdgeDetector.EDGE_NONE;
+      }
+    }
+  }
+
+  /**
+   * Pushes every unvisited neighbor of a pixel onto the stack.
+   * @param states The hysteresis plane.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param i The index of the pixel.
+   * @param stack The stack to push onto.
+   */
+  private static void pushNeighbors(byte[] states, int width, int height, int i, IntStack stack) {
+    int r = i / width;
+    int c = i % width;
+    for (int n = 0; n < NEIGHBOR_ROWS.length; n++) {
+      int nr = r + NEIGHBOR_ROWS[n];
+      int nc = c + NEIGHBOR_COLS[n];
+      if (nr >= 0 && nr < height && nc >= 0 && nc < width && states[nr * width + nc] == CannyEdgeDetector.EDGE_UNVISITED) {
+        stack.push(nr * width + nc);
+      }
+    }
+  }
+
+  /**
+   * Traces the hysteresis plane in horizontal bands on the given pool.
+   * Strong and unvisited pixels are joined into components with a union-find forest. Each band joins its own pixels
+   * in parallel, then the rows on either side of each band border are joined, and finally each unvisited pixel is
+   * resolved in parallel by checking whether its component contains a strong pixel.
+   * @param states The hysteresis plane.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param pool The pool to run on.
+   */
+  static void trace(byte[] states, int width, int height, ForkJoinPool pool) {
+    new BandTracer(width, height, pool).trace(states);
+  }
+
+  /**
+   * Traces hysteresis planes of one size in horizontal bands on a pool, with the union-find forest and the band
+   * actions created once, so that tracing a plane for every frame does not allocate anything.
+   */
+  static class BandTracer {
+    private int width;
+    private int height;
+    private ForkJoinPool pool;
+
+    // The union-find forest, with one entry for each pixel.
+    private int[] parent;
+
+    // The plane being traced, only set while trace runs.
+    private byte[] states;
+
+    private RowBands.Runner unionBands;
+    private RowBands.Runner resolveBands;
+
+    /**
+     * Creates the forest and band actions for planes of the given size.
+     * @param width The width of the plane.
+     * @param height The height of the plane.
+     * @param pool The pool to run on.
+     */
+    BandTracer(final int width, int height, ForkJoinPool pool) {
+      this.width = width;
+      this.height = height;
+      this.pool = pool;
+      parent = new int[width * height];
+
+      // Join components inside of each band.
+      unionBands = new RowBands.Runner(pool, height, new RowBands.Task() {
+        @Override
+        public void run(int band, int start, int end) {
+          unionBand(states, parent, width, start, end);
+        }
+      });
+
+      // Resolve each unvisited pixel from the root of its component.
+      resolveBands = new RowBands.Runner(pool, height, new RowBands.Task() {
+        @Override
+        public void run(int band, int start, int end) {
+          for (int i = start * width; i < end * width; i++) {
+            if (states[i] == CannyEdgeDetector.EDGE_UNVISITED) {
+              boolean traced = states[find(parent, i)] == CannyEdgeDetector.EDGE_STRONG;
+              states[i] = traced ? CannyEdgeDetector.EDGE_WEAK : CannyEdgeDetector.EDGE_NONE;
+            }
+          }
+        }
+      });
+    }
+
+    /**
+     * Traces a hysteresis plane.
+     * @param states The hysteresis plane, with the size given to the constructor.
+     */
+    void trace(byte[] states) {
+      if (states.length != parent.length) {
+        throw new IllegalArgumentException("The plane does not have " + width + "x" + height + " pixels");
+      }
+
+      this.states = states;
+      try {
+        unionBands.run();
+
+        // Join components across the band borders.
+        int bandHeight = RowBands.getBandHeight(pool, height);
+        for (int top = bandHeight; top < height; top += bandHeight) {
+          for (int c = 0; c < width; c++) {
+            int i = top * width + c;
+            if (isCandidate(states[i])) {
+              for (int nc = Math.max(0, c - 1); nc <= Math.min(width - 1, c + 1); nc++) {
+                int j = (top - 1) * width + nc;
+                if (isCandidate(states[j])) {
+                  union(states, parent, i, j);
+                }
+              }
+            }
+          }
+        }
+
+        resolveBands.run();
+      }
+      finally {
+        this.states = null;
+      }
+    }
+  }
+
+  /**
+   * Joins the strong and unvisited pixels in rows start through end - 1 with their already visited neighbors.
+   * @param states The hysteresis plane.
+   * @param parent The union-find forest.
+   * @param width The width of the plane.
+   * @param start The first row of the band.
+   * @param end One past the last row of the band.
+   */
+  private static void unionBand(byte[] states, int[] parent, int width, int start, int end) {
+    for (int r = start; r < end; r++) {
+      for (int c = 0; c < width; c++) {
+        int i = r * width + c;
+        parent[i] = i;
+        if (!isCandidate(states[i])) {
+          continue;
+        }
+        // W neighbor
+        if (c > 0 && isCandidate(states[i - 1])) {
+          union(states, parent, i, i - 1);
+        }
+        if (r > start) {
+          // NW, N, and NE neighbors
+          for (int nc = Math.max(0, c - 1); nc <= Math.min(width - 1, c + 1); nc++) {
+            if (isCandidate(states[i - width - c + nc])) {
+              union(states, parent, i, i - width - c + nc);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns whether or not a pixel takes part in tracing.
+   * @param state The hysteresis state of the pixel.
+   * @return true if the pixel is strong or unvisited, false otherwise.
+   */
+  private static boolean isCandidate(byte state) {
+    return state == CannyEdgeDetector.EDGE_STRONG || state == CannyEdgeDetector.EDGE_UNVISITED;
+  }
+
+  /**
+   * Joins the components of two pixels.
+   * A strong root is always kept as the root of the joined component, so a component contains a strong pixel exactly
+   * when its root is strong.
+   * @param states The hysteresis plane.
+   * @param parent The union-find forest.
+   * @param a The first pixel.
+   * @param b The second pixel.
+   */
+  private static void union(byte[] states, int[] parent, int a, int b) {
+    int rootA = find(parent, a);
+    int rootB = find(parent, b);
+    if (rootA == rootB) {
+      return;
+    }
+    if (states[rootA] == CannyEdgeDetector.EDGE_STRONG) {
+      parent[rootB] = rootA;
+    }
+    else {
+      parent[rootA] = rootB;
+    }
+  }
+
+  /**
+   * Finds the root of a pixel's component, halving the path along the way.
+   * Every write points a pixel at one of its own ancestors, so concurrent finds always see a valid forest.
+   * @param parent The union-find forest.
+   * @param i The pixel.
+   * @return The root of the pixel's component.
+   */
+  private static int find(int[] parent, int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+}
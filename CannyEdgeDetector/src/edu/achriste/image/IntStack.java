@@ -0,0 +1,74 @@
+package edu.achriste.image;
+
+import java.util.Arrays;
+
+/**
+ * A growable stack of primitive ints.
+ * Used in place of recursion so that long chains of pixels can be followed without overflowing the call stack.
+ * The backing array is kept between uses, so a stack that is cleared and reused stops allocating once it has grown to
+ * the largest size it needs.
+ * @author Anthony Christe
+ */
+class IntStack {
+  private int[] values;
+  private int size;
+
+  /**
+   * Creates an empty stack.
+   */
+  IntStack() {
+    this.values = new int[64];
+    this.size = 0;
+  }
+
+  /**
+   * Pushes a value onto the stack.
+   * @param value The value to push.
+   */
+  void push(int value) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+    }
+    values[size++] = value;
+  }
+
+  /**
+   * Removes and returns the value on the top of the stack.
+   * @return The value on the top of the stack.
+   */
+  int pop() {
+    return values[--size];
+  }
+
+  /**
+   * Returns whether or not the stack is empty.
+   * @return true if the stack is empty, false otherwise.
+   */
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns the number of values on the stack.
+   * @return The number of values.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns a value on the stack without removing it.
+   * @param index The index of the value, where 0 is the bottom of the stack.
+   * @return The value.
+   */
+  int get(int index) {
+    return values[index];
+  }
+
+  /**
+   * Removes all values from the stack without releasing the backing array.
+   */
+  void clear() {
+    size = 0;
+  }
+}
@@ -0,0 +1,273 @@
+package edu.achriste.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads and writes grayscale images as raw PGM and PFM files through memory-mapped files.
+ * The pixels of these formats are stored as they are after a short text header, so a GrayscaleImage is filled straight
+ * from the mapped file with a single bulk copy, and written back the same way, without encoding or decoding. Since the
+ * file is mapped rather than read through a stream, images that were written or read recently are served from the page
+ * cache, and other processes reading the same file share it.
+ *
+ * Byte images are stored as 8-bit binary (P5) PGM, short images as 16-bit binary PGM, and float images as grayscale
+ * (Pf) PFM. As the formats require, 16-bit PGM values are big-endian and PFM rows are stored from the bottom of the
+ * image to the top.
+ * @author Anthony Christe
+ */
+public class MappedImageFile {
+  /**
+   * The most bytes a single mapped buffer can cover.
+   */
+  private static final long MAX_MAPPED_BYTES = Integer.MAX_VALUE;
+
+  private MappedImageFile() {
+  }
+
+  /**
+   * Returns whether a file has the extension of a format this class reads and writes.
+   * @param file The file.
+   * @return true if the file name ends with .pgm or .pfm, false otherwise.
+   */
+  public static boolean isRawImage(File file) {
+    String name = file.getName().toLowerCase();
+    return name.endsWith(".pgm") || name.endsWith(".pfm");
+  }
+
+  /**
+   * Reads a binary PGM or grayscale PFM image through a memory-mapped file.
+   * @param file The image to read.
+   * @return A new image of TYPE_BYTE for 8-bit PGM, TYPE_SHORT for 16-bit PGM, or TYPE_FLOAT for PFM. PGM values are
+   *         not scaled by the largest value of the image.
+   * @throws IOException If the file could not be read, is not a binary PGM or grayscale PFM image, or is too large to
+   *                     map or to hold in one plane.
+   */
+  public static GrayscaleImage read(File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = in.getChannel();
+      checkMappable(file, channel.size());
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      if (buffer.remaining() < 2 || buffer.get() != 'P') {
+        throw new IOException(file + " is not a PGM or PFM image");
+      }
+      int magic = buffer.get();
+      if (magic != '5' && magic != 'f') {
+        throw new IOException(file + " is not a binary PGM or grayscale PFM image");
+      }
+      PgmReader.HeaderInput header = getHeaderInput(buffer, file);
+      int width = PgmReader.readHeaderInt(header, file);
+      int height = PgmReader.readHeaderInt(header, file);
+      if (width <= 0 || height <= 0) {
+        throw new IOException(file + " has an invalid header");
+      }
+      if ((long) width * height > Integer.MAX_VALUE) {
+        throw new IOException(file + " is too large to read into one plane: " + width + "x" + height);
+      }
+
+      if (magic == '5') {
+        return readPgm(buffer, file, width, height, PgmReader.readHeaderInt(header, file));
+      }
+      return readPfm(buffer, file, width, height, readScale(header, file));
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads the pixels of a binary PGM image that follow its header.
+   * @param buffer The mapped file, positioned at the first pixel.
+   * @param file The file, for error messages.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param maxValue The largest value of the image.
+   * @return A new image of TYPE_BYTE or TYPE_SHORT.
+   * @throws IOException If the header is invalid or the file is too short.
+   */
+  private static GrayscaleImage readPgm(ByteBuffer buffer, File file, int width, int height, int maxValue)
+      throws IOException {
+    if (maxValue <= 0 || maxValue > 65535) {
+      throw new IOException(file + " has an invalid PGM header");
+    }
+    boolean wide = maxValue > 255;
+    checkRemaining(buffer, file, (long) width * height * (wide ? 2 : 1));
+
+    if (!wide) {
+      byte[] plane = new byte[width * height];
+      buffer.get(plane);
+      return new GrayscaleImage(plane, width, height, 0, width);
+    }
+    short[] plane = new short[width * height];
+    buffer.order(ByteOrder.BIG_ENDIAN).asShortBuffer().get(plane);
+    return new GrayscaleImage(plane, width, height, 0, width);
+  }
+
+  /**
+   * Reads the pixels of a grayscale PFM image that follow its header.
+   * @param buffer The mapped file, positioned at the first pixel.
+   * @param file The file, for error messages.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param scale The scale of the image. A negative scale means the values are little-endian.
+   * @return A new image of TYPE_FLOAT.
+   * @throws IOException If the file is too short.
+   */
+  private static GrayscaleImage readPfm(ByteBuffer buffer, File file, int width, int height, double scale)
+      throws IOException {
+    checkRemaining(buffer, file, (long) width * height * 4);
+
+    float[] plane = new float[width * height];
+    FloatBuffer values = buffer.order(scale < 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).asFloatBuffer();
+    // Rows are stored from the bottom of the image to the top.
+    for (int y = height - 1; y >= 0; y--) {
+      values.get(plane, y * width, width);
+    }
+    return new GrayscaleImage(plane, width, height, 0, width);
+  }
+
+  /**
+   * Writes an image as a binary PGM or grayscale PFM image through a memory-mapped file.
+   * Byte and short images are written as 8-bit and 16-bit PGM, and float images as little-endian PFM. Any existing file
+   * is replaced.
+   * @param image The image to write.
+   * @param file The file to write to. By convention its name ends with .pgm for byte and short images and .pfm for
+   *             float images.
+   * @throws IOException If the file could not be written, or would be too large to map.
+   */
+  public static void write(GrayscaleImage image, File file) throws IOException {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int type = image.getType();
+
+    String header;
+    int bytesPerPixel;
+    if (type == GrayscaleImage.TYPE_BYTE) {
+      header = "P5\n" + width + " " + height + "\n255\n";
+      bytesPerPixel = 1;
+    }
+    else if (type == GrayscaleImage.TYPE_SHORT) {
+      header = "P5\n" + width + " " + height + "\n65535\n";
+      bytesPerPixel = 2;
+    }
+    else {
+      header = "Pf\n" + width + " " + height + "\n-1.0\n";
+      bytesPerPixel = 4;
+    }
+    byte[] headerBytes = header.getBytes("US-ASCII");
+    long length = headerBytes.length + (long) width * height * bytesPerPixel;
+    checkMappable(file, length);
+
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      out.setLength(length);
+      MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+      buffer.put(headerBytes);
+
+      int offset = image.getOffset();
+      int stride = image.getStride();
+      // Each row is copied in bulk, since the image may be a window of a larger plane.
+      if (type == GrayscaleImage.TYPE_BYTE) {
+        for (int y = 0; y < height; y++) {
+          buffer.put(image.getBytes(), offset + y * stride, width);
+        }
+      }
+      else if (type == GrayscaleImage.TYPE_SHORT) {
+        ShortBuffer values = buffer.order(ByteOrder.BIG_ENDIAN).asShortBuffer();
+        for (int y = 0; y < height; y++) {
+          values.put(image.getShorts(), offset + y * stride, width);
+        }
+      }
+      else {
+        FloatBuffer values = buffer.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        for (int y = height - 1; y >= 0; y--) {
+          values.put(image.getFloats(), offset + y * stride, width);
+        }
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Makes sure that a file is small enough to be mapped as a single buffer.
+   * @param file The file, for error messages.
+   * @param length The length of the file in bytes.
+   * @throws IOException If the file is too large.
+   */
+  private static void checkMappable(File file, long length) throws IOException {
+    if (length > MAX_MAPPED_BYTES) {
+      throw new IOException(file + " is " + length + " bytes, more than the " + MAX_MAPPED_BYTES
+                            + " bytes that can be mapped");
+    }
+  }
+
+  /**
+   * Makes sure that a mapped file has enough bytes left for the pixels of an image.
+   * @param buffer The mapped file, positioned at the first pixel.
+   * @param file The file, for error messages.
+   * @param bytes The number of bytes the pixels take.
+   * @throws IOException If the file is too short.
+   */
+  private static void checkRemaining(ByteBuffer buffer, File file, long bytes) throws IOException {
+    if (buffer.remaining() < bytes) {
+      throw new IOException(file + " is too short for its header");
+    }
+  }
+
+  /**
+   * Returns the header of a mapped file as the bytes that follow its position.
+   * @param buffer The mapped file.
+   * @param file The file, for error messages.
+   * @return The header.
+   */
+  private static PgmReader.HeaderInput getHeaderInput(final ByteBuffer buffer, final File file) {
+    return new PgmReader.HeaderInput() {
+      @Override
+      public int next() throws IOException {
+        return nextHeaderByte(buffer, file);
+      }
+    };
+  }
+
+  /**
+   * Reads the scale of a PFM image from its header, which is the only value of either header that is not a whole
+   * number.
+   * @param header The header, positioned after the height.
+   * @param file The file, for error messages.
+   * @return The scale. A negative scale means the values are little-endian.
+   * @throws IOException If the header is invalid.
+   */
+  private static double readScale(PgmReader.HeaderInput header, File file) throws IOException {
+    String word = PgmReader.readHeaderWord(header);
+    try {
+      return Double.parseDouble(word);
+    }
+    catch (NumberFormatException e) {
+      throw new IOException("Invalid scale in the header of " + file + ": " + word, e);
+    }
+  }
+
+  /**
+   * Reads the next byte of a header.
+   * @param buffer The mapped file.
+   * @param file The file, for error messages.
+   * @return The byte, from 0 to 255.
+   * @throws IOException If the file ends in the header.
+   */
+  private static int nextHeaderByte(ByteBuffer buffer, File file) throws IOException {
+    if (!buffer.hasRemaining()) {
+      throw new IOException("Unexpected end of the header of " + file);
+    }
+    return buffer.get() & 0xFF;
+  }
+}
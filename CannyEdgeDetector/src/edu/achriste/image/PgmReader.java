@@ -0,0 +1,183 @@
+package edu.achriste.image;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads a binary (P5) PGM image one row at a time, so that images larger than memory can be processed in bands.
+ * Both 8-bit and 16-bit images are supported. Pixel values are returned unscaled.
+ * @author Anthony Christe
+ */
+class PgmReader implements Closeable {
+  private DataInputStream in;
+  private int width;
+  private int height;
+  private int maxValue;
+
+  /**
+   * The raw bytes of a single row.
+   */
+  private byte[] buffer;
+
+  /**
+   * The number of rows read so far.
+   */
+  private int rowsRead;
+
+  /**
+   * Opens a PGM image and reads its header.
+   * @param file The PGM image to read.
+   * @throws IOException If the file could not be read or is not a binary PGM image.
+   */
+  PgmReader(File file) throws IOException {
+    this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    try {
+      if (in.readUnsignedByte() != 'P' || in.readUnsignedByte() != '5') {
+        throw new IOException(file + " is not a binary PGM image");
+      }
+      HeaderInput header = new HeaderInput() {
+        @Override
+        public int next() throws IOException {
+          return in.readUnsignedByte();
+        }
+      };
+      this.width = readHeaderInt(header, file);
+      this.height = readHeaderInt(header, file);
+      this.maxValue = readHeaderInt(header, file);
+    }
+    catch (IOException e) {
+      in.close();
+      throw e;
+    }
+    if (width <= 0 || height <= 0 || maxValue <= 0 || maxValue > 65535) {
+      in.close();
+      throw new IOException(file + " has an invalid PGM header");
+    }
+    this.buffer = new byte[maxValue < 256 ? width : width * 2];
+    this.rowsRead = 0;
+  }
+
+  /**
+   * Supplies the bytes of an image header one at a time, so that the headers of streamed and memory-mapped files are
+   * parsed in the same way.
+   */
+  interface HeaderInput {
+    /**
+     * Returns the next byte of the header.
+     * @return The byte, from 0 to 255.
+     * @throws IOException If the header could not be read or ends early.
+     */
+    int next() throws IOException;
+  }
+
+  /**
+   * Reads the next word from a PGM or PFM header, skipping whitespace and comments.
+   * The single whitespace character after the word is also read, which leaves the last value followed directly by
+   * the pixel data.
+   * @param in The header.
+   * @return The word.
+   * @throws IOException If the header could not be read.
+   */
+  static String readHeaderWord(HeaderInput in) throws IOException {
+    int b = in.next();
+    while (Character.isWhitespace(b) || b == '#') {
+      if (b == '#') {
+        while (b != '\n' && b != '\r') {
+          b = in.next();
+        }
+      }
+      b = in.next();
+    }
+
+    StringBuilder word = new StringBuilder();
+    while (!Character.isWhitespace(b)) {
+      word.append((char) b);
+      b = in.next();
+    }
+    return word.toString();
+  }
+
+  /**
+   * Reads the next whole number from a PGM or PFM header, such as the width, height, or largest value.
+   * @param in The header.
+   * @param file The file, for error messages.
+   * @return The number.
+   * @throws IOException If the header could not be read, or the next word is not a whole number that fits in an int.
+   */
+  static int readHeaderInt(HeaderInput in, File file) throws IOException {
+    String word = readHeaderWord(in);
+    for (int i = 0; i < word.length(); i++) {
+      if (word.charAt(i) < '0' || word.charAt(i) > '9') {
+        throw new IOException("Expected a whole number in the header of " + file + " but found " + word);
+      }
+    }
+    try {
+      return Integer.parseInt(word);
+    }
+    catch (NumberFormatException e) {
+      throw new IOException("Number out of range in the header of " + file + ": " + word, e);
+    }
+  }
+
+  /**
+   * Returns the width of the image.
+   * @return The width of the image.
+   */
+  int getWidth() {
+    return width;
+  }
+
+  /**
+   * Returns the height of the image.
+   * @return The height of the image.
+   */
+  int getHeight() {
+    return height;
+  }
+
+  /**
+   * Returns the largest pixel value of the image.
+   * @return The largest pixel value of the image.
+   */
+  int getMaxValue() {
+    return maxValue;
+  }
+
+  /**
+   * Reads the next row of the image.
+   * @param row Array of at least width values to store the row in.
+   * @throws IOException If the row could not be read.
+   */
+  void readRow(float[] row) throws IOException {
+    if (rowsRead == height) {
+      throw new EOFException("All " + height + " rows have already been read");
+    }
+    in.readFully(buffer);
+    rowsRead++;
+
+    if (maxValue < 256) {
+      for (int c = 0; c < width; c++) {
+        row[c] = buffer[c] & 0xFF;
+      }
+    }
+    else {
+      for (int c = 0; c < width; c++) {
+        row[c] = ((buffer[2 * c] & 0xFF) << 8) | (buffer[2 * c + 1] & 0xFF);
+      }
+    }
+  }
+
+  /**
+   * Closes the underlying file.
+   * @throws IOException If the file could not be closed.
+   */
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
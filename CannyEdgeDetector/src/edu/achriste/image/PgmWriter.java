@@ -0,0 +1,54 @@
+package edu.achriste.image;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes an 8-bit binary (P5) PGM image one row at a time.
+ * @author Anthony Christe
+ */
+class PgmWriter implements Closeable {
+  private OutputStream out;
+  private int width;
+
+  /**
+   * Creates a PGM image and writes its header.
+   * @param file The file to write to.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @throws IOException If the file could not be written.
+   */
+  PgmWriter(File file, int width, int height) throws IOException {
+    this.out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+    this.width = width;
+    try {
+      out.write(("P5\n" + width + " " + height + "\n255\n").getBytes("US-ASCII"));
+    }
+    catch (IOException e) {
+      out.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Writes the next row of the image.
+   * @param row Array holding the width values of the row.
+   * @throws IOException If the row could not be written.
+   */
+  void writeRow(byte[] row) throws IOException {
+    out.write(row, 0, width);
+  }
+
+  /**
+   * Flushes and closes the underlying file.
+   * @throws IOException If the file could not be written.
+   */
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+}
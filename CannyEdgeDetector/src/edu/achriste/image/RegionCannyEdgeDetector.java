@@ -0,0 +1,433 @@
+package edu.achriste.image;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the Canny Edge Detector over only a few regions of each frame, such as the rectangles of an inspection recipe
+ * or the pads of a binary mask. Only the pixels of each region and a halo around it wide enough for the Gaussian
+ * filter, gradients, and non-maximum suppression are read and processed, so the cost is proportional to the area of
+ * the regions rather than the area of the frame.
+ *
+ * Each region is cut out of the frame together with its halo. Past the sides of the cut that are borders of the frame,
+ * values are read through the border policy of the settings, just as for the full frame. Past the sides that are
+ * inside of the frame, the nearest pixel is repeated instead, so that the cut does not look like a step. The outer
+ * ring of the halo is as wide as the reach of the filters, and is only read. It is never traced, so it can neither
+ * start an edge nor carry one. Over the region and the inner part of its halo, which is at least as wide as the ring,
+ * the blurred image, gradients, and non-maximum suppression are exactly the same as for the full frame.
+ *
+ * Since the strongest gradient of the whole frame is never found, the hysteresis thresholds are by default relative to
+ * a strength range fixed for every region: the strongest gradient an 8-bit frame can have, or a range set through
+ * setStrengthRange, such as the one a CannyEdgeDetector found on a full reference frame. With the same strength range
+ * and fixed thresholds, the edges of a region only differ from a full frame run where an edge leaves the inner part of
+ * the halo and comes back, since that path is traced in the full frame but not here. Thresholds chosen from the
+ * histogram are chosen from the strengths of each region, so they can differ from those of the full frame.
+ * Region-relative scaling, where each region is normalized against its own weakest and strongest gradient, can be
+ * chosen with SCALING_REGION, but it stretches the noise of a flat region over the full range and so finds false edges
+ * in regions that have none.
+ *
+ * Like a CannyEdgeDetector created with a frame size, this detector is bound to a frame size and reused for many
+ * frames. The results of each region are given in the coordinates of the region, where the top left pixel of the
+ * region is at 0, 0.
+ * @author Anthony Christe
+ */
+public class RegionCannyEdgeDetector {
+  // Ways of normalizing the gradient strengths of each region.
+  /**
+   * Every region is normalized against the same strength range, so thresholds mean the same in every region.
+   */
+  public static final int SCALING_FRAME = 0;
+  /**
+   * Each region is normalized against its own weakest and strongest gradient, including those of its halo.
+   */
+  public static final int SCALING_REGION = 1;
+
+  /**
+   * The narrowest band of the halo that edges are traced through. At small sigmas the filters reach only a few pixels,
+   * but chains of weak pixels still wander out of a region and back into it.
+   */
+  private static final int MIN_TRACE_MARGIN = 8;
+
+  // Dimensions of every frame.
+  private int width;
+  private int height;
+
+  /**
+   * The regions to detect edges in, clipped to the frame.
+   */
+  private Rectangle[] regions;
+
+  /**
+   * For each region, the region grown by the halo and clipped to the frame. This is the part of the frame that is read.
+   */
+  private Rectangle[] crops;
+
+  /**
+   * For each region, a region sized plane that is 0 for pixels outside of the mask, or null if there is no mask.
+   */
+  private byte[][] masks;
+
+  /**
+   * For each region, a detector bound to the size of its crop.
+   */
+  private CannyEdgeDetector[] detectors;
+
+  // For each region, the planes its crop is read into.
+  private float[][] planes;
+  private GrayscaleImage[] levels;
+
+  /**
+   * For each region, scratch plane the edges of its crop are copied into.
+   */
+  private byte[][] cropEdges;
+
+  /**
+   * How the gradient strengths of each region are normalized.
+   */
+  private int scaling;
+
+  // The strength range every region is normalized against with SCALING_FRAME.
+  private double minStrength;
+  private double maxStrength;
+
+  /**
+   * Creates a detector for a list of rectangular regions of interest.
+   * @param width The width of every frame.
+   * @param height The height of every frame.
+   * @param settings The settings to use for edge detection.
+   * @param regions The regions to detect edges in. They are clipped to the frame, and may overlap.
+   * @throws IllegalArgumentException If a region does not overlap the frame, or the settings use BORDER_WRAP.
+   */
+  public RegionCannyEdgeDetector(int width, int height, CannySettings settings, Rectangle... regions) {
+    this.width = width;
+    this.height = height;
+    setUp(settings, regions, null);
+  }
+
+  /**
+   * Creates a detector for the pixels of a binary mask.
+   * Each 8-connected component of the mask becomes one region, bounded by the smallest rectangle around it. Edges
+   * outside of the component are left out of its results.
+   * @param width The width of every frame.
+   * @param height The height of every frame.
+   * @param settings The settings to use for edge detection.
+   * @param mask A frame sized plane that is not 0 for the pixels to detect edges in.
+   * @throws IllegalArgumentException If the settings use BORDER_WRAP.
+   */
+  public RegionCannyEdgeDetector(int width, int height, CannySettings settings, byte[] mask) {
+    this.width = width;
+    this.height = height;
+    if (mask.length != width * height) {
+      throw new IllegalArgumentException("Expected a " + width + "x" + height + " mask");
+    }
+
+    // Label every component of the mask, and find the rectangle around each one.
+    int[] labels = new int[width * height];
+    List<Rectangle> bounds = new ArrayList<Rectangle>();
+    IntStack stack = new IntStack();
+    for (int i = 0; i < mask.length; i++) {
+      if (mask[i] != 0 && labels[i] == 0) {
+        bounds.add(labelComponent(mask, labels, i, bounds.size() + 1, stack));
+      }
+    }
+
+    Rectangle[] componentBounds = bounds.toArray(new Rectangle[bounds.size()]);
+    byte[][] componentMasks = new byte[componentBounds.length][];
+    for (int k = 0; k < componentBounds.length; k++) {
+      Rectangle region = componentBounds[k];
+      componentMasks[k] = new byte[region.width * region.height];
+      for (int r = 0; r < region.height; r++) {
+        for (int c = 0; c < region.width; c++) {
+          if (labels[(region.y + r) * width + region.x + c] == k + 1) {
+            componentMasks[k][r * region.width + c] = 1;
+          }
+        }
+      }
+    }
+    setUp(settings, componentBounds, componentMasks);
+  }
+
+  /**
+   * Clips the regions to the frame, grows them by the halo, and creates a detector for each one.
+   * Each detector repeats the nearest pixel past the sides of its crop that are inside of the frame, and traces edges
+   * only where every step is the same as for the full frame.
+   * @param settings The settings to use for edge detection.
+   * @param regions The regions to detect edges in.
+   * @param masks For each region, a region sized mask, or null for no masks.
+   */
+  private void setUp(CannySettings settings, Rectangle[] regions, byte[][] masks) {
+    // Each region is cropped out of the frame, so wrapping would read the other side of the crop instead of the frame.
+    if (settings.getBorder() == Convolution.BORDER_WRAP) {
+      throw new IllegalArgumentException("Regions cannot wrap around the frame");
+    }
+    Rectangle frame = new Rectangle(0, 0, width, height);
+    int reach = getReach(settings);
+    int halo = reach + Math.max(reach, MIN_TRACE_MARGIN);
+
+    this.regions = new Rectangle[regions.length];
+    this.crops = new Rectangle[regions.length];
+    this.masks = masks == null ? new byte[regions.length][] : masks;
+    this.detectors = new CannyEdgeDetector[regions.length];
+    this.planes = new float[regions.length][];
+    this.levels = new GrayscaleImage[regions.length];
+    this.cropEdges = new byte[regions.length][];
+    this.scaling = SCALING_FRAME;
+    this.minStrength = 0;
+    this.maxStrength = CannyEdgeDetector.getStrengthBound(255);
+
+    for (int k = 0; k < regions.length; k++) {
+      Rectangle region = regions[k].intersection(frame);
+      if (region.isEmpty()) {
+        throw new IllegalArgumentException("Region " + regions[k] + " is outside of the frame");
+      }
+      Rectangle crop = new Rectangle(region.x - halo, region.y - halo, region.width + 2 * halo,
+          region.height + 2 * halo).intersection(frame);
+
+      // Pixels closer than the reach to a side inside of the frame are changed by the repeated pixels past it.
+      int border = settings.getBorder();
+      Rectangle window = new Rectangle(0, 0, crop.width, crop.height);
+      if (crop.x > 0) {
+        border |= Convolution.REPLICATE_LEFT;
+        window.x += reach;
+        window.width -= reach;
+      }
+      if (crop.y > 0) {
+        border |= Convolution.REPLICATE_TOP;
+        window.y += reach;
+        window.height -= reach;
+      }
+      if (crop.x + crop.width < width) {
+        border |= Convolution.REPLICATE_RIGHT;
+        window.width -= reach;
+      }
+      if (crop.y + crop.height < height) {
+        border |= Convolution.REPLICATE_BOTTOM;
+        window.height -= reach;
+      }
+
+      this.regions[k] = region;
+      crops[k] = crop;
+      detectors[k] = new CannyEdgeDetector(crop.width, crop.height, settings);
+      detectors[k].setBorder(border);
+      detectors[k].setTraceWindow(window);
+      detectors[k].setStrengthRange(minStrength, maxStrength);
+      planes[k] = new float[crop.width * crop.height];
+      levels[k] = new GrayscaleImage(crop.width, crop.height, GrayscaleImage.TYPE_BYTE);
+      cropEdges[k] = new byte[crop.width * crop.height];
+    }
+  }
+
+  /**
+   * Returns how far the pixels that decide whether a pixel survives non-maximum suppression reach. The Gaussian kernel
+   * reaches half of its length, or the stacked boxes half of each of their widths, and the Sobel operators and
+   * non-maximum suppression each reach one more pixel.
+   * @param settings The settings to use for edge detection.
+   * @return The reach, in pixels.
+   */
+  private static int getReach(CannySettings settings) {
+    double[] kernel = CannyEdgeDetector.getGaussianKernel(settings.getSigma());
+    int reach = kernel.length / 2;
+    if (settings.getBlur() == CannySettings.BLUR_BOXES) {
+      reach = 0;
+      for (int boxWidth : BoxBlur.getWidths(Convolution.getVariance(kernel))) {
+        reach += boxWidth / 2;
+      }
+    }
+    return reach + 2;
+  }
+
+  /**
+   * Labels one 8-connected component of a mask.
+   * @param mask The mask.
+   * @param labels The labels of every pixel, 0 for pixels that have not been labeled.
+   * @param start A pixel of the component.
+   * @param label The label to give the component.
+   * @param stack Scratch stack.
+   * @return The smallest rectangle around the component.
+   */
+  private Rectangle labelComponent(byte[] mask, int[] labels, int start, int label, IntStack stack) {
+    int minR = start / width;
+    int maxR = minR;
+    int minC = start % width;
+    int maxC = minC;
+
+    stack.clear();
+    labels[start] = label;
+    stack.push(start);
+    while (!stack.isEmpty()) {
+      int i = stack.pop();
+      int r = i / width;
+      int c = i % width;
+      minR = Math.min(minR, r);
+      maxR = Math.max(maxR, r);
+      minC = Math.min(minC, c);
+      maxC = Math.max(maxC, c);
+
+      for (int nr = Math.max(0, r - 1); nr <= Math.min(height - 1, r + 1); nr++) {
+        for (int nc = Math.max(0, c - 1); nc <= Math.min(width - 1, c + 1); nc++) {
+          int j = nr * width + nc;
+          if (mask[j] != 0 && labels[j] == 0) {
+            labels[j] = label;
+            stack.push(j);
+          }
+        }
+      }
+    }
+    return new Rectangle(minC, minR, maxC - minC + 1, maxR - minR + 1);
+  }
+
+  /**
+   * Runs edge detection over every region of the next frame.
+   * @param frame The frame to run edge detection on. It must have the size this detector was created with.
+   */
+  public void detect(EditableImage frame) {
+    if (frame.getWidth() != width || frame.getHeight() != height) {
+      throw new IllegalArgumentException("Expected a " + width + "x" + height + " frame");
+    }
+    for (int k = 0; k < regions.length; k++) {
+      // Each region is read through a view of the frame, so the frame is neither copied nor cropped.
+      Rectangle crop = crops[k];
+      frame.getSubimage(crop.x, crop.y, crop.width, crop.height).getGrayscalePlane(planes[k], levels[k]);
+      detectors[k].detect(planes[k]);
+    }
+  }
+
+  /**
+   * Runs edge detection over every region of the next frame, given as a row-major plane of grayscale values.
+   * @param frame The grayscale values of the frame, where the value at x, y is stored at y * width + x.
+   */
+  public void detect(float[] frame) {
+    if (frame.length != width * height) {
+      throw new IllegalArgumentException("Expected a " + width + "x" + height + " frame");
+    }
+    for (int k = 0; k < regions.length; k++) {
+      Rectangle crop = crops[k];
+      for (int r = 0; r < crop.height; r++) {
+        System.arraycopy(frame, (crop.y + r) * width + crop.x, planes[k], r * crop.width, crop.width);
+      }
+      detectors[k].detect(planes[k]);
+    }
+  }
+
+  /**
+   * Returns how the gradient strengths of each region are normalized.
+   * @return SCALING_FRAME or SCALING_REGION.
+   */
+  public int getScaling() {
+    return scaling;
+  }
+
+  /**
+   * Sets how the gradient strengths of each region are normalized for the following frames.
+   * @param scaling SCALING_FRAME to normalize every region against the strength range, or SCALING_REGION to normalize
+   *                each region against its own weakest and strongest gradient.
+   */
+  public void setScaling(int scaling) {
+    if (scaling != SCALING_FRAME && scaling != SCALING_REGION) {
+      throw new IllegalArgumentException("Unknown scaling " + scaling);
+    }
+    this.scaling = scaling;
+    for (CannyEdgeDetector detector : detectors) {
+      if (scaling == SCALING_FRAME) {
+        detector.setStrengthRange(minStrength, maxStrength);
+      }
+      else {
+        detector.clearStrengthRange();
+      }
+    }
+  }
+
+  /**
+   * Sets the strength range every region is normalized against with SCALING_FRAME, and switches to SCALING_FRAME.
+   * The range found by a CannyEdgeDetector on a full frame, through getMinStrength and getMaxStrength, gives the same
+   * thresholds as that detector. The default range is from 0 to CannyEdgeDetector.getStrengthBound(255).
+   * @param min The gradient strength that a normalized strength of 0 stands for.
+   * @param max The gradient strength that a normalized strength of 1 stands for.
+   */
+  public void setStrengthRange(double min, double max) {
+    if (!(min < max)) {
+      throw new IllegalArgumentException("Invalid strength range " + min + " to " + max);
+    }
+    minStrength = min;
+    maxStrength = max;
+    setScaling(SCALING_FRAME);
+  }
+
+  /**
+   * Returns the number of regions.
+   * @return The number of regions.
+   */
+  public int getRegionCount() {
+    return regions.length;
+  }
+
+  /**
+   * Returns the bounds of a region in the frame, after clipping it to the frame.
+   * @param region The region.
+   * @return A copy of the bounds of the region.
+   */
+  public Rectangle getRegion(int region) {
+    return new Rectangle(regions[region]);
+  }
+
+  /**
+   * Copies the edges of a region of the last frame, in the coordinates of the region.
+   * @param region The region.
+   * @param edges A plane of at least width * height values of the region, to store 255 for strong edges, 127 for
+   *              traced edges, and 0 for everything else, including pixels outside of the mask.
+   */
+  public void copyEdges(int region, byte[] edges) {
+    Rectangle bounds = regions[region];
+    Rectangle crop = crops[region];
+    byte[] mask = masks[region];
+    detectors[region].copyEdges(cropEdges[region]);
+
+    for (int r = 0; r < bounds.height; r++) {
+      for (int c = 0; c < bounds.width; c++) {
+        int j = r * bounds.width + c;
+        int i = (bounds.y - crop.y + r) * crop.width + bounds.x - crop.x + c;
+        edges[j] = mask == null || mask[j] != 0 ? cropEdges[region][i] : 0;
+      }
+    }
+  }
+
+  /**
+   * Copies the edges of every region of the last frame into a frame sized plane. Pixels outside of every region are
+   * set to 0. Where regions overlap, the region that comes last wins.
+   * @param edges A plane of at least width * height values of the frame.
+   */
+  public void copyEdges(byte[] edges) {
+    for (int i = 0; i < width * height; i++) {
+      edges[i] = 0;
+    }
+    for (int k = 0; k < regions.length; k++) {
+      Rectangle bounds = regions[k];
+      Rectangle crop = crops[k];
+      byte[] mask = masks[k];
+      detectors[k].copyEdges(cropEdges[k]);
+
+      for (int r = 0; r < bounds.height; r++) {
+        for (int c = 0; c < bounds.width; c++) {
+          if (mask == null || mask[r * bounds.width + c] != 0) {
+            int i = (bounds.y - crop.y + r) * crop.width + bounds.x - crop.x + c;
+            edges[(bounds.y + r) * width + bounds.x + c] = cropEdges[k][i];
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Links the edges of a region of the last frame into chains, in the coordinates of the region.
+   * @param region The region.
+   * @param subpixel Whether to also find the subpixel position of each edge pixel from the gradient strengths.
+   * @return The edge chains of the region.
+   */
+  public EdgeChains getEdgeChains(int region, boolean subpixel) {
+    Rectangle bounds = regions[region];
+    Rectangle crop = crops[region];
+    return detectors[region].getEdgeChains(subpixel, bounds.x - crop.x, bounds.y - crop.y, bounds.width,
+        bounds.height, masks[region]);
+  }
+}
@@ -0,0 +1,136 @@
+package edu.achriste.image;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits the rows of a plane into horizontal bands and runs a task over each band.
+ * With a pool the bands run in parallel, and without one the whole plane is run as a single band on the calling
+ * thread. Bands only ever write their own rows. Stages that read neighboring rows (the halo) read them from the shared
+ * input planes, which are not written while the stage runs.
+ * @author Anthony Christe
+ */
+class RowBands {
+  /**
+   * Bands are never made shorter than this many rows so that the halo rows stay a small part of each band's work.
+   */
+  static final int MIN_BAND_HEIGHT = 32;
+
+  /**
+   * Each thread of the pool gets about this many bands, so that a slow band does not hold up the whole stage.
+   */
+  private static final int BANDS_PER_THREAD = 4;
+
+  /**
+   * The work done over a single band of rows.
+   */
+  interface Task {
+    /**
+     * Processes rows start through end - 1.
+     * @param band The index of the band, from 0 to getBandCount - 1.
+     * @param start The first row of the band.
+     * @param end One past the last row of the band.
+     */
+    void run(int band, int start, int end);
+  }
+
+  /**
+   * Returns the number of rows in each band. The last band may be shorter.
+   * @param pool The pool to run on, or null to run on the calling thread.
+   * @param height The number of rows in the plane.
+   * @return The number of rows in each band.
+   */
+  static int getBandHeight(ForkJoinPool pool, int height) {
+    if (pool == null) {
+      return Math.max(1, height);
+    }
+    int bands = pool.getParallelism() * BANDS_PER_THREAD;
+    return Math.max(MIN_BAND_HEIGHT, (height + bands - 1) / bands);
+  }
+
+  /**
+   * Returns the number of bands that a plane is split into.
+   * @param pool The pool to run on, or null to run on the calling thread.
+   * @param height The number of rows in the plane.
+   * @return The number of bands.
+   */
+  static int getBandCount(ForkJoinPool pool, int height) {
+    int bandHeight = getBandHeight(pool, height);
+    return Math.max(1, (height + bandHeight - 1) / bandHeight);
+  }
+
+  /**
+   * Runs the task over every band and waits for all of them to finish.
+   * @param pool The pool to run on, or null to run on the calling thread.
+   * @param height The number of rows in the plane.
+   * @param task The task to run over each band.
+   */
+  static void run(ForkJoinPool pool, int height, Task task) {
+    new Runner(pool, height, task).run();
+  }
+
+  /**
+   * Runs a task over every band of planes of one height, with the actions for the bands created once, so that running
+   * the task again for every frame does not allocate anything.
+   */
+  static class Runner {
+    private ForkJoinPool pool;
+    private int height;
+    private Task task;
+
+    // The action for each band, and the action that runs all of them, or null without a pool.
+    private RecursiveAction[] actions;
+    private RecursiveAction all;
+
+    /**
+     * Creates the actions for every band.
+     * @param pool The pool to run on, or null to run on the calling thread.
+     * @param height The number of rows in the plane.
+     * @param task The task to run over each band.
+     */
+    Runner(ForkJoinPool pool, final int height, final Task task) {
+      this.pool = pool;
+      this.height = height;
+      this.task = task;
+      if (pool == null) {
+        return;
+      }
+
+      final int bandHeight = getBandHeight(pool, height);
+      actions = new RecursiveAction[getBandCount(pool, height)];
+      for (int band = 0; band < actions.length; band++) {
+        final int index = band;
+        final int start = band * bandHeight;
+        actions[band] = new RecursiveAction() {
+          @Override
+          protected void compute() {
+            task.run(index, start, Math.min(height, start + bandHeight));
+          }
+        };
+      }
+      all = new RecursiveAction() {
+        @Override
+        protected void compute() {
+          invokeAll(actions);
+        }
+      };
+    }
+
+    /**
+     * Runs the task over every band and waits for all of them to finish.
+     */
+    void run() {
+      if (pool == null) {
+        task.run(0, 0, height);
+        return;
+      }
+
+      // Finished actions keep their state, so they are reset before they are run again.
+      for (RecursiveAction action : actions) {
+        action.reinitialize();
+      }
+      all.reinitialize();
+      pool.invoke(all);
+    }
+  }
+}
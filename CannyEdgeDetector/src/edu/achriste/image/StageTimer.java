@@ -0,0 +1,56 @@
+package edu.achriste.image;
+
+/**
+ * Times the steps of edge detection for a CannyStageListener.
+ * Does nothing when there is no listener, so detectors without one do not pay for reading the clock.
+ * @author Anthony Christe
+ */
+class StageTimer {
+  /**
+   * The listener to report to, or null.
+   */
+  private CannyStageListener listener;
+
+  /**
+   * The sigma of the detector being timed.
+   */
+  private double sigma;
+
+  // The clock and the allocation counter when the current step started.
+  private long startNanos;
+  private long startBytes;
+
+  /**
+   * Creates a timer that reports to a listener.
+   * @param listener The listener to report to, or null to not time anything.
+   * @param sigma The sigma of the detector being timed.
+   */
+  StageTimer(CannyStageListener listener, double sigma) {
+    this.listener = listener;
+    this.sigma = sigma;
+  }
+
+  /**
+   * Marks the start of a step.
+   */
+  void start() {
+    if (listener != null) {
+      startBytes = Allocations.getThreadAllocatedBytes();
+      startNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * Marks the end of the step started last, and reports it to the listener.
+   * @param stage The step, as one of the CannyEdgeDetector.STAGE constants.
+   * @param pixels The number of pixels that the step processed.
+   */
+  void stop(int stage, long pixels) {
+    if (listener != null) {
+      long nanos = System.nanoTime() - startNanos;
+      long bytes = Allocations.getThreadAllocatedBytes();
+      bytes = startBytes < 0 || bytes < 0 ? -1 : Allocations.since(startBytes, bytes);
+      listener.stageCompleted(stage, sigma, nanos, pixels, bytes);
+    }
+  }
+}
@@ -0,0 +1,736 @@
+package edu.achriste.image;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Runs the Canny Edge Detector over a PGM image one row at a time, for images that are too large to hold in memory.
+ * Only a rolling window of rows as tall as the Gaussian kernel plus the Sobel and non-maximum suppression neighbors is
+ * kept, so the pixel data held in memory grows with width * kernel length instead of width * height. The final edge
+ * map is written out as a PGM image one row at a time, with the same values as IMAGE_HYSTERESIS of a CannyEdgeDetector
+ * with the same settings, for fixed thresholds as well as thresholds chosen automatically.
+ *
+ * The image is streamed through three passes. The hysteresis thresholds are relative to the largest gradient strength
+ * in the whole image, so the first pass only finds the gradient strength limits. The second pass runs non-maximum
+ * suppression, sorts each pixel against the thresholds, and labels the connected components of candidate pixels row
+ * by row, writing the sorted rows to a temporary file. The third pass labels the rows of the temporary file again in
+ * the same way and writes out every candidate pixel whose component contains a strong pixel, so edges are traced
+ * across any number of rows.
+ *
+ * When the thresholds are chosen automatically, they are chosen from a histogram of the strengths that survive
+ * non-maximum suppression. Its bins are sized for the range of the blurred image, as in the CannyEdgeDetector, and
+ * that range is only known once the first pass has blurred every row, so the strengths are counted in a pass of their
+ * own between the first and second passes.
+ *
+ * The heap only holds the rows of the window, so it grows with width * kernel length. The components are joined in a
+ * union-find forest of one long per label, which is kept in a temporary memory-mapped file next to the sorted rows, so
+ * it takes disk space and page cache instead of heap. A label is handed out for each candidate pixel that has no
+ * labeled neighbor above or to its left, so the forest takes at most 8 bytes per pixel of the image, and usually far
+ * less, since most candidate pixels join the label of a neighbor.
+ * @author Anthony Christe
+ */
+public class StreamingCannyEdgeDetector {
+  /**
+   * Sigma value to use during detection.
+   */
+  private double sigma;
+
+  /**
+   * Whether to approximate the gradient strength and direction, as with CannySettings.setFastGradients.
+   */
+  private boolean fastGradients;
+
+  // Dimensions of the image.
+  private int width;
+  private int height;
+
+  // The lower and upper thresholds used during hysteresis.
+  private double lowThreshold;
+  private double highThreshold;
+
+  // Min and max gradient strength over the whole image, used to normalize the strength.
+  private double minStrength;
+  private double maxStrength;
+
+  /**
+   * The largest magnitude of the blurred image, which sizes the bins of the histogram.
+   */
+  private float largestValue;
+
+  /**
+   * Union-find forest over component labels. Label 0 is never used so that it can mean "no label".
+   */
+  private LabelForest forest;
+
+  /**
+   * The number of labels handed out so far in the current pass, including the unused label 0.
+   */
+  private long labelCount;
+
+  /**
+   * Run the Canny Edge Detector over a PGM image, writing the edge map to another PGM image.
+   * Detection always runs on the calling thread, so the pool of the settings is not used. Fast gradients are
+   * approximated in the same way as in the CannyEdgeDetector, so both give the same edges for the same settings.
+   * @param input The 8 or 16-bit binary PGM image to run edge detection on.
+   * @param output The file to write the 8-bit binary PGM edge map to.
+   * @param settings The settings to use for edge detection.
+   * @throws IOException If either of the images or the temporary file could not be read or written.
+   * @throws IllegalArgumentException If the settings blur with anything but the sampled kernel, or use a border policy
+   *                                  other than BORDER_ZERO, which would need rows that have not been streamed yet.
+   */
+  public StreamingCannyEdgeDetector(File input, File output, CannySettings settings) throws IOException {
+    if (settings.getBlur() != CannySettings.BLUR_KERNEL) {
+      throw new IllegalArgumentException("The streaming detector only supports blurring with the sampled kernel");
+    }
+    if (settings.getBorder() != Convolution.BORDER_ZERO) {
+      throw new IllegalArgumentException("The streaming detector only supports zero borders");
+    }
+    this.sigma = settings.getSigma();
+    this.fastGradients = settings.isFastGradients();
+    this.lowThreshold = settings.getLowThreshold();
+    this.highThreshold = settings.getHighThreshold();
+    this.minStrength = Double.MAX_VALUE;
+    this.maxStrength = Double.MIN_VALUE;
+
+    findStrengthLimits(input);
+    if (settings.getThresholdMode() != CannySettings.THRESHOLDS_FIXED) {
+      chooseThresholds(input, settings);
+    }
+    File states = File.createTempFile("canny", ".states");
+    File labels = File.createTempFile("canny", ".labels");
+    try {
+      forest = new LabelForest(labels);
+      try {
+        classify(input, states);
+        trace(states, output);
+      }
+      finally {
+        forest.close();
+      }
+    }
+    finally {
+      states.delete();
+      labels.delete();
+    }
+  }
+
+  /**
+   * First pass: finds the min and max gradient strength over the whole image, and the largest blurred value.
+   * @param input The image to run edge detection on.
+   * @throws IOException If the image could not be read.
+   */
+  private void findStrengthLimits(File input) throws IOException {
+    PgmReader reader = new PgmReader(input);
+    try {
+      width = reader.getWidth();
+      height = reader.getHeight();
+      GradientRows rows = new GradientRows(reader, CannyEdgeDetector.getGaussianKernel(sigma), fastGradients);
+      float[] strength = new float[width];
+      byte[] direction = new byte[width];
+
+      for (int r = 0; r < height; r++) {
+        rows.next(strength, direction);
+        for (int c = 0; c < width; c++) {
+          minStrength = strength[c] < minStrength ? strength[c] : minStrength;
+          maxStrength = strength[c] > maxStrength ? strength[c] : maxStrength;
+        }
+      }
+      largestValue = rows.getLargestValue();
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Chooses the thresholds from a histogram of the gradient strengths that survive non-maximum suppression, with the
+   * bins sized for the range of the blurred image, as in the CannyEdgeDetector.
+   * @param input The image to run edge detection on.
+   * @param settings The settings to use for edge detection, which choose the thresholds automatically.
+   * @throws IOException If the image could not be read.
+   */
+  private void chooseThresholds(File input, CannySettings settings) throws IOException {
+    PgmReader reader = new PgmReader(input);
+    try {
+      GradientRows rows = new GradientRows(reader, CannyEdgeDetector.getGaussianKernel(sigma), fastGradients);
+      GradientHistogram histogram = new GradientHistogram(GradientHistogram.getMaxValue(largestValue));
+
+      // Window of the strength for the rows above, at, and below the current row, and the direction of the current and
+      // next row, so that each row can be suppressed before it is counted.
+      float[] above = new float[width];
+      float[] current = new float[width];
+      float[] below = new float[width];
+      byte[] currentDirection = new byte[width];
+      byte[] belowDirection = new byte[width];
+
+      rows.next(current, currentDirection);
+      if (height > 1) {
+        rows.next(below, belowDirection);
+      }
+
+      for (int r = 0; r < height; r++) {
+        for (int c = 0; c < width; c++) {
+          if (!isSuppressed(r == 0 ? null : above, current, r + 1 == height ? null : below, currentDirection, c)) {
+            histogram.add(current[c]);
+          }
+        }
+
+        // Slide the window down by one row.
+        float[] strength = above;
+        above = current;
+        current = below;
+        below = strength;
+        byte[] direction = currentDirection;
+        currentDirection = belowDirection;
+        belowDirection = direction;
+
+        if (r + 2 < height) {
+          rows.next(below, belowDirection);
+        }
+      }
+
+      highThreshold = histogram.getHighThreshold(settings, minStrength, maxStrength);
+      lowThreshold = settings.getLowRatio() * highThreshold;
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Second pass: suppresses non-maximum pixels, sorts every pixel against the thresholds, and joins the components of
+   * the candidate pixels. Each sorted row is written to the states file as one of the CannyEdgeDetector EDGE
+   * constants per pixel.
+   * @param input The image to run edge detection on.
+   * @param states The temporary file to write the sorted rows to.
+   * @throws IOException If either file could not be read or written.
+   */
+  private void classify(File input, File states) throws IOException {
+    PgmReader reader = new PgmReader(input);
+    OutputStream out = null;
+    try {
+      out = new BufferedOutputStream(new FileOutputStream(states), 1 << 16);
+      GradientRows rows = new GradientRows(reader, CannyEdgeDetector.getGaussianKernel(sigma), fastGradients);
+
+      // Window of the strength and direction for the rows above, at, and below the current row.
+      float[] above = new float[width];
+      float[] current = new float[width];
+      float[] below = new float[width];
+      byte[] aboveDirection = new byte[width];
+      byte[] currentDirection = new byte[width];
+      byte[] belowDirection = new byte[width];
+
+      byte[] state = new byte[width];
+      long[] aboveLabels = new long[width];
+      long[] labels = new long[width];
+      labelCount = 1;
+
+      rows.next(current, currentDirection);
+      if (height > 1) {
+        rows.next(below, belowDirection);
+      }
+
+      for (int r = 0; r < height; r++) {
+        classifyRow(r == 0 ? null : above, current, r + 1 == height ? null : below, currentDirection, state);
+        labelRow(state, aboveLabels, labels, true);
+        out.write(state);
+
+        // Slide the window down by one row.
+        float[] strength = above;
+        above = current;
+        current = below;
+        below = strength;
+        byte[] direction = aboveDirection;
+        aboveDirection = currentDirection;
+        currentDirection = belowDirection;
+        belowDirection = direction;
+        long[] swap = aboveLabels;
+        aboveLabels = labels;
+        labels = swap;
+
+        if (r + 2 < height) {
+          rows.next(below, belowDirection);
+        }
+      }
+    }
+    finally {
+      reader.close();
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Suppresses the non-maximum pixels of a row and sorts each pixel against the thresholds.
+   * @param above The strength of the row above, or null for the first row.
+   * @param current The strength of the row.
+   * @param below The strength of the row below, or null for the last row.
+   * @param direction The rounded gradient direction of the row.
+   * @param state Array to store the CannyEdgeDetector EDGE constant of each pixel in.
+   */
+  private void classifyRow(float[] above, float[] current, float[] below, byte[] direction, byte[] state) {
+    for (int c = 0; c < width; c++) {
+      boolean suppress = isSuppressed(above, current, below, direction, c);
+      double norm = (current[c] - minStrength) / (maxStrength - minStrength);
+      if (norm > highThreshold) {
+        state[c] = CannyEdgeDetector.EDGE_STRONG;
+      }
+      else if (suppress || norm < lowThreshold) {
+        state[c] = CannyEdgeDetector.EDGE_NONE;
+      }
+      else {
+        state[c] = CannyEdgeDetector.EDGE_UNVISITED;
+      }
+    }
+  }
+
+  /**
+   * Returns whether a pixel is suppressed by one of its two neighbors along its gradient direction.
+   * @param above The strength of the row above, or null for the first row.
+   * @param current The strength of the row.
+   * @param below The strength of the row below, or null for the last row.
+   * @param direction The rounded gradient direction of the row.
+   * @param c The column of the pixel.
+   * @return Whether or not the pixel should be suppressed.
+   */
+  private boolean isSuppressed(float[] above, float[] current, float[] below, byte[] direction, int c) {
+    int gradStrength = (int) current[c];
+    switch (direction[c]) {
+      case CannyEdgeDetector.DIRECTION_0:
+        // Compare with N and S neighbors
+        return isStronger(above, c, gradStrength) || isStronger(below, c, gradStrength);
+      case CannyEdgeDetector.DIRECTION_45:
+        // Compare with NW and SE neighbors
+        return isStronger(above, c - 1, gradStrength) || isStronger(below, c + 1, gradStrength);
+      case CannyEdgeDetector.DIRECTION_90:
+        // Compare with W and E neighbors
+        return isStronger(current, c - 1, gradStrength) || isStronger(current, c + 1, gradStrength);
+      default:
+        // Compare with NE and SW neighbors
+        return isStronger(above, c + 1, gradStrength) || isStronger(below, c - 1, gradStrength);
+    }
+  }
+
+  /**
+   * Returns whether a neighbor is stronger than the given gradient strength.
+   * @param row The strength of the neighbor's row, or null if the row is outside of the image.
+   * @param c The column of the neighbor.
+   * @param gradStrength The gradient strength of the current pixel.
+   * @return true if the neighbor is inside of the image and stronger, false otherwise.
+   */
+  private boolean isStronger(float[] row, int c, int gradStrength) {
+    return row != null && c >= 0 && c < width && gradStrength < row[c];
+  }
+
+  /**
+   * Third pass: labels the sorted rows again and writes out the traced edge map.
+   * @param states The temporary file holding the sorted rows.
+   * @param output The file to write the edge map to.
+   * @throws IOException If either file could not be read or written.
+   */
+  private void trace(File states, File output) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(states), 1 << 16));
+    PgmWriter writer = null;
+    try {
+      writer = new PgmWriter(output, width, height);
+      byte[] state = new byte[width];
+      byte[] edges = new byte[width];
+      long[] aboveLabels = new long[width];
+      long[] labels = new long[width];
+      labelCount = 1;
+
+      for (int r = 0; r < height; r++) {
+        in.readFully(state);
+        labelRow(state, aboveLabels, labels, false);
+
+        for (int c = 0; c < width; c++) {
+          if (state[c] == CannyEdgeDetector.EDGE_STRONG) {
+            edges[c] = (byte) 255;
+          }
+          else if (state[c] == CannyEdgeDetector.EDGE_UNVISITED && forest.isStrong(forest.find(labels[c]))) {
+            edges[c] = 127;
+          }
+          else {
+            edges[c] = 0;
+          }
+        }
+        writer.writeRow(edges);
+
+        long[] swap = aboveLabels;
+        aboveLabels = labels;
+        labels = swap;
+      }
+    }
+    finally {
+      in.close();
+      if (writer != null) {
+        writer.close();
+      }
+    }
+  }
+
+  /**
+   * Labels the strong and unvisited pixels of a row from their 8-connected neighbors.
+   * Each pixel takes the first label found among its W, NW, N, and NE neighbors, or a new label if none of them are
+   * labeled. Labels are handed out in the same order every time the same rows are labeled, so the third pass gives
+   * every pixel the same label as the second pass without storing the labels.
+   * @param state The sorted row.
+   * @param aboveLabels The labels of the row above, all 0 for the first row.
+   * @param labels Array to store the labels of the row in. Pixels that take no part in tracing get label 0.
+   * @param join Whether to join the components of neighboring labels and record strong pixels.
+   * @throws IOException If the forest could not grow.
+   */
+  private void labelRow(byte[] state, long[] aboveLabels, long[] labels, boolean join) throws IOException {
+    for (int c = 0; c < width; c++) {
+      labels[c] = 0;
+      if (state[c] != CannyEdgeDetector.EDGE_STRONG && state[c] != CannyEdgeDetector.EDGE_UNVISITED) {
+        continue;
+      }
+
+      long label = 0;
+      if (c > 0) {
+        label = joinLabels(label, labels[c - 1], join);
+      }
+      for (int nc = Math.max(0, c - 1); nc <= Math.min(width - 1, c + 1); nc++) {
+        label = joinLabels(label, aboveLabels[nc], join);
+      }
+      if (label == 0) {
+        label = newLabel(join);
+      }
+      labels[c] = label;
+
+      if (join && state[c] == CannyEdgeDetector.EDGE_STRONG) {
+        forest.setStrong(forest.find(label));
+      }
+    }
+  }
+
+  /**
+   * Combines the label found so far for a pixel with the label of one of its neighbors.
+   * @param label The label found so far, or 0.
+   * @param neighbor The label of the neighbor, or 0.
+   * @param join Whether to join the components of the two labels.
+   * @return The label found so far, or the neighbor's label if none had been found.
+   */
+  private long joinLabels(long label, long neighbor, boolean join) {
+    if (neighbor == 0) {
+      return label;
+    }
+    if (label == 0) {
+      return neighbor;
+    }
+    if (join) {
+      forest.union(label, neighbor);
+    }
+    return label;
+  }
+
+  /**
+   * Hands out the next label, growing the union-find forest in the second pass.
+   * @param join Whether this is the second pass.
+   * @return The new label.
+   * @throws IOException If the forest could not grow.
+   */
+  private long newLabel(boolean join) throws IOException {
+    long label = labelCount++;
+    if (join) {
+      forest.add(label);
+    }
+    return label;
+  }
+
+  /**
+   * Returns the width of the image.
+   * @return The width of the image.
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Returns the height of the image.
+   * @return The height of the image.
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * A union-find forest over component labels, kept in a memory-mapped file.
+   * Each label has one long entry, holding the label of its parent shifted left by one, and in the lowest bit whether
+   * the component contains a strong pixel. The bit is only kept up to date for roots. The file is mapped in chunks,
+   * since a single mapping cannot be larger than 2 GB, and grows by one chunk whenever a label past the end is added.
+   */
+  private static class LabelForest {
+    // Each chunk holds 2^CHUNK_SHIFT entries.
+    private static final int CHUNK_SHIFT = 20;
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    private RandomAccessFile file;
+    private LongBuffer[] chunks;
+    private int chunkCount;
+
+    /**
+     * Creates an empty forest.
+     * @param file The file to keep the forest in. Its contents are replaced.
+     * @throws IOException If the file could not be opened.
+     */
+    LabelForest(File file) throws IOException {
+      this.file = new RandomAccessFile(file, "rw");
+      this.file.setLength(0);
+      this.chunks = new LongBuffer[16];
+    }
+
+    /**
+     * Adds a label as the root of a component of its own, without a strong pixel.
+     * Labels must be added in increasing order, starting from 0.
+     * @param label The label.
+     * @throws IOException If the file could not grow.
+     */
+    void add(long label) throws IOException {
+      int chunk = (int) (label >>> CHUNK_SHIFT);
+      if (chunk == chunkCount) {
+        if (chunk == chunks.length) {
+          chunks = Arrays.copyOf(chunks, chunk * 2);
+        }
+        long bytes = 8L << CHUNK_SHIFT;
+        chunks[chunk] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, chunk * bytes, bytes).asLongBuffer();
+        chunkCount++;
+      }
+      set(label, label << 1);
+    }
+
+    /**
+     * Finds the root of a label's component, halving the path along the way.
+     * @param label The label.
+     * @return The root of the label's component.
+     */
+    long find(long label) {
+      long parent = get(label) >>> 1;
+      while (parent != label) {
+        long grandparent = get(parent) >>> 1;
+        set(label, grandparent << 1);
+        label = grandparent;
+        parent = get(label) >>> 1;
+      }
+      return label;
+    }
+
+    /**
+     * Joins the components of two labels.
+     * @param label A label.
+     * @param other Another label.
+     */
+    void union(long label, long other) {
+      long root = find(label);
+      long otherRoot = find(other);
+      if (root != otherRoot) {
+        long strong = get(otherRoot) & 1;
+        set(otherRoot, root << 1);
+        set(root, get(root) | strong);
+      }
+    }
+
+    /**
+     * Returns whether a component contains a strong pixel.
+     * @param root The root of the component.
+     * @return true if it does, false otherwise.
+     */
+    boolean isStrong(long root) {
+      return (get(root) & 1) != 0;
+    }
+
+    /**
+     * Records that a component contains a strong pixel.
+     * @param root The root of the component.
+     */
+    void setStrong(long root) {
+      set(root, get(root) | 1);
+    }
+
+    /**
+     * Closes the file. The mappings stay valid until they are garbage collected.
+     * @throws IOException If the file could not be closed.
+     */
+    void close() throws IOException {
+      chunks = null;
+      file.close();
+    }
+
+    private long get(long label) {
+      return chunks[(int) (label >>> CHUNK_SHIFT)].get((int) (label & CHUNK_MASK));
+    }
+
+    private void set(long label, long entry) {
+      chunks[(int) (label >>> CHUNK_SHIFT)].put((int) (label & CHUNK_MASK), entry);
+    }
+  }
+
+  /**
+   * Produces the gradient strength and direction of an image one row at a time.
+   * Rows are read from the image and blurred only as far ahead as the next gradient row needs, and each stage keeps
+   * a ring of just the rows that later rows still need.
+   */
+  private static class GradientRows {
+    private PgmReader reader;
+    private int width;
+    private int height;
+
+    /**
+     * The single dimensional Gaussian kernel.
+     */
+    private double[] kernel;
+
+    /**
+     * Whether to approximate the gradient strength and direction.
+     */
+    private boolean fast;
+
+    /**
+     * Ring of the last kernel length rows after blurring along the row. Row r is stored at r % kernel length.
+     */
+    private float[][] horizontal;
+
+    /**
+     * Ring of the last three blurred rows after applying the row part of each Sobel operator.
+     */
+    private float[][] sobelX;
+    private float[][] sobelY;
+
+    // Scratch rows
+    private float[] input;
+    private float[] blurred;
+    private float[] gradientX;
+    private float[] gradientY;
+
+    // The number of rows that have been through each stage.
+    private int horizontalRows;
+    private int blurredRows;
+    private int gradientRows;
+
+    /**
+     * The largest magnitude of the rows blurred so far.
+     */
+    private float largestValue;
+
+    /**
+     * Creates a stream of gradient rows over an image.
+     * @param reader The image to read rows from.
+     * @param kernel The single dimensional Gaussian kernel.
+     * @param fast Whether to approximate the gradient strength and direction in the same way as the CannyEdgeDetector.
+     */
+    GradientRows(PgmReader reader, double[] kernel, boolean fast) {
+      this.reader = reader;
+      this.width = reader.getWidth();
+      this.height = reader.getHeight();
+      this.kernel = kernel;
+      this.fast = fast;
+      this.horizontal = new float[Math.max(1, kernel.length)][width];
+      this.sobelX = new float[3][width];
+      this.sobelY = new float[3][width];
+      this.input = new float[width];
+      this.blurred = new float[width];
+      this.gradientX = new float[width];
+      this.gradientY = new float[width];
+    }
+
+    /**
+     * Computes the gradient strength and rounded direction of the next row.
+     * @param strength Array to store the gradient strength of the row in.
+     * @param direction Array to store the rounded gradient direction of the row in, as a DIRECTION constant.
+     * @throws IOException If the image could not be read.
+     */
+    void next(float[] strength, byte[] direction) throws IOException {
+      int r = gradientRows++;
+      blurRows(Math.min(height, r + 2));
+
+      // Apply the column part of each Sobel operator over the rows above, at, and below this row.
+      Arrays.fill(gradientX, 0);
+      Arrays.fill(gradientY, 0);
+      for (int k = 0; k < 3; k++) {
+        int row = r - 1 + k;
+        if (row < 0 || row >= height) {
+          continue;
+        }
+        Convolution.accumulateRow(sobelX[row % 3], 0, gradientX, 0, width, (float) CannyEdgeDetector.SOBEL_XY[k]);
+        Convolution.accumulateRow(sobelY[row % 3], 0, gradientY, 0, width, (float) CannyEdgeDetector.SOBEL_YY[k]);
+      }
+
+      for (int c = 0; c < width; c++) {
+        if (fast) {
+          // The larger gradient plus 3/8 of the smaller one, as in the CannyEdgeDetector.
+          float ax = Math.abs(gradientX[c]);
+          float ay = Math.abs(gradientY[c]);
+          strength[c] = ax > ay ? ax + 0.375f * ay : ay + 0.375f * ax;
+          direction[c] = CannyEdgeDetector.roundDirection(gradientX[c], gradientY[c]);
+        }
+        else {
+          strength[c] = (float) Math.sqrt(Math.pow(gradientX[c], 2) + Math.pow(gradientY[c], 2));
+          direction[c] = (byte) (CannyEdgeDetector.roundAngle(Math.atan2(gradientY[c], gradientX[c])) / 45);
+        }
+      }
+    }
+
+    /**
+     * Returns the largest magnitude of the rows blurred so far, which covers the whole image once every gradient row
+     * has been computed.
+     * @return The largest magnitude.
+     */
+    float getLargestValue() {
+      return largestValue;
+    }
+
+    /**
+     * Blurs rows until the given number of rows have been blurred.
+     * @param count The number of rows that should be blurred.
+     * @throws IOException If the image could not be read.
+     */
+    private void blurRows(int count) throws IOException {
+      int anchor = kernel.length / 2;
+      while (blurredRows < count) {
+        int r = blurredRows++;
+        readRows(Math.min(height, r - anchor + kernel.length));
+
+        // Apply the column part of the Gaussian over the rows it covers.
+        Arrays.fill(blurred, 0);
+        for (int k = 0; k < kernel.length; k++) {
+          int row = r - anchor + k;
+          if (row < 0 || row >= height) {
+            continue;
+          }
+          Convolution.accumulateRow(horizontal[row % kernel.length], 0, blurred, 0, width, (float) kernel[k]);
+        }
+        for (int c = 0; c < width; c++) {
+          largestValue = Math.max(largestValue, Math.abs(blurred[c]));
+        }
+
+        Convolution.convolveRow(blurred, 0, sobelX[r % 3], 0, width, CannyEdgeDetector.SOBEL_XX);
+        Convolution.convolveRow(blurred, 0, sobelY[r % 3], 0, width, CannyEdgeDetector.SOBEL_YX);
+      }
+    }
+
+    /**
+     * Reads and blurs along the row until the given number of rows have been read.
+     * @param count The number of rows that should be read.
+     * @throws IOException If the image could not be read.
+     */
+    private void readRows(int count) throws IOException {
+      while (horizontalRows < count) {
+        reader.readRow(input);
+        Convolution.convolveRow(input, 0, horizontal[horizontalRows % horizontal.length], 0, width, kernel);
+        horizontalRows++;
+      }
+    }
+  }
+}
@@ -0,0 +1,633 @@
+package edu.achriste.ui;
+
+import edu.achriste.image.CannyEdgeDetector;
+import edu.achriste.image.CannyScaleSpace;
+import edu.achriste.image.CannySettings;
+import edu.achriste.image.CannyStageMetrics;
+import edu.achriste.image.Convolution;
+import edu.achriste.image.EditableImage;
+import edu.achriste.image.GrayscaleImage;
+import edu.achriste.image.MappedImageFile;
+import org.apache.commons.imaging.ImageFormat;
+import org.apache.commons.imaging.Imaging;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the Canny Edge Detector over many images without a user interface.
+ *
+ * Inputs may be image files, directories (searched recursively), or glob patterns such as "boards/**.tif". Every image
+ * is read and written on a pool of I/O threads and run through edge detection on a separate pool of compute threads,
+ * so that slow disks and slow images overlap. The number of images in flight is bounded so that memory use does not
+ * grow with the size of the batch. The final hysteresis image is written once for each sigma, and a summary of the
+ * throughput and per image latency is printed at the end. Edge images are written under the output directory at the
+ * same relative path as their input has under the directory or the fixed part of the glob pattern it was found through,
+ * so that images with the same name in different directories do not overwrite each other.
+ *
+ * @author Anthony Christe
+ */
+public class CannyBatchRunner {
+  private static final String USAGE =
+      "Usage: CannyBatchRunner [options] <file|directory|glob>...\n" +
+      "  --sigma <s,s,...>    Sigmas to run edge detection at (default 1.5)\n" +
+      "  --low <t>            Low hysteresis threshold (default 0.1)\n" +
+      "  --high <t>           High hysteresis threshold (default 0.3)\n" +
+      "  --otsu               Choose the thresholds for each image with Otsu's method\n" +
+      "  --percentile <p>     Choose the thresholds for each image so that a fraction p of pixels are below the\n" +
+      "                       high threshold\n" +
+      "  --low-ratio <r>      Low threshold as a fraction of the chosen high threshold (default 0.4)\n" +
+      "  --format <f>         Output format: tiff, png, bmp, gif, pnm, or raw (default tiff). raw writes 8-bit PGM\n" +
+      "                       through a memory-mapped file, without an encoder\n" +
+      "  --output <dir>       Directory to write edge images to (default edges)\n" +
+      "  --threads <n>        Compute threads (default one per processor)\n" +
+      "  --io-threads <n>     Threads for reading and writing images (default 4 per compute thread)\n" +
+      "  --fast               Approximate the gradient strength and direction\n" +
+      "  --box-blur           Blur with stacked box filters, whose cost does not grow with sigma\n" +
+      "  --border <b>         Values past the image border: zero, replicate, reflect, or wrap (default zero)\n" +
+      "  --stages             Print the time and allocations of each step of edge detection";
+
+  // Settings read from the command line.
+  private double[] sigmas = {1.5};
+  private CannySettings settings = new CannySettings(1.5).setEdgesOnly(true);
+  // The format to write with Apache Commons Imaging, or null to write raw PGM through MappedImageFile.
+  private ImageFormat format = ImageFormat.IMAGE_FORMAT_TIFF;
+  private String extension = "tiff";
+  private File outputDirectory = new File("edges");
+  private int computeThreads = Runtime.getRuntime().availableProcessors();
+  private int ioThreads = -1;
+  private List<String> inputs = new ArrayList<String>();
+
+  /**
+   * The time taken by each step of edge detection, or null if the steps are not timed.
+   */
+  private CannyStageMetrics metrics;
+
+  // Pools that images move between.
+  private ExecutorService ioPool;
+  private ExecutorService computePool;
+
+  /**
+   * Limits the number of images that have been read but not yet written.
+   */
+  private Semaphore inFlight;
+
+  /**
+   * Counts down once for every image, whether it succeeded or failed.
+   */
+  private CountDownLatch remaining;
+
+  /**
+   * The time in nanoseconds from the start of reading to the end of writing, for each image that succeeded.
+   */
+  private long[] latencies;
+  private AtomicInteger succeeded = new AtomicInteger();
+  private AtomicInteger failed = new AtomicInteger();
+
+  /**
+   * Reads the settings and inputs from the command line.
+   * @param args The command line arguments.
+   * @throws IllegalArgumentException If an argument is not understood.
+   */
+  private CannyBatchRunner(String[] args) {
+    double low = 0.1;
+    double high = 0.3;
+    double percentile = -1;
+    double lowRatio = 0.4;
+    boolean otsu = false;
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--fast")) {
+        settings.setFastGradients(true);
+      }
+      else if (arg.equals("--box-blur")) {
+        settings.setBlur(CannySettings.BLUR_BOXES);
+      }
+      else if (arg.equals("--otsu")) {
+        otsu = true;
+      }
+      else if (arg.equals("--stages")) {
+        metrics = new CannyStageMetrics();
+        settings.setListener(metrics);
+      }
+      else if (arg.startsWith("--")) {
+        if (i + 1 == args.length) {
+          throw new IllegalArgumentException("Missing value for " + arg);
+        }
+        String value = args[++i];
+        if (arg.equals("--sigma")) {
+          String[] parts = value.split(",");
+          sigmas = new double[parts.length];
+          for (int j = 0; j < parts.length; j++) {
+            sigmas[j] = Double.parseDouble(parts[j].trim());
+          }
+        }
+        else if (arg.equals("--low")) {
+          low = Double.parseDouble(value);
+        }
+        else if (arg.equals("--high")) {
+          high = Double.parseDouble(value);
+        }
+        else if (arg.equals("--percentile")) {
+          percentile = Double.parseDouble(value);
+        }
+        else if (arg.equals("--low-ratio")) {
+          lowRatio = Double.parseDouble(value);
+        }
+        else if (arg.equals("--format")) {
+          setFormat(value.toLowerCase());
+        }
+        else if (arg.equals("--border")) {
+          setBorder(value.toLowerCase());
+        }
+        else if (arg.equals("--output")) {
+          outputDirectory = new File(value);
+        }
+        else if (arg.equals("--threads")) {
+          computeThreads = Integer.parseInt(value);
+        }
+        else if (arg.equals("--io-threads")) {
+          ioThreads = Integer.parseInt(value);
+        }
+        else {
+          throw new IllegalArgumentException("Unknown option " + arg);
+        }
+      }
+      else {
+        inputs.add(arg);
+      }
+    }
+
+    if (inputs.isEmpty()) {
+      throw new IllegalArgumentException("No inputs given");
+    }
+    if (low < 0 || low > high || high > 1) {
+      throw new IllegalArgumentException("Thresholds must satisfy 0 <= low <= high <= 1");
+    }
+    if (computeThreads < 1) {
+      throw new IllegalArgumentException("--threads must be at least 1");
+    }
+    if (ioThreads < 0) {
+      ioThreads = 4 * computeThreads;
+    }
+    else if (ioThreads < 1) {
+      throw new IllegalArgumentException("--io-threads must be at least 1");
+    }
+    if (otsu && percentile >= 0) {
+      throw new IllegalArgumentException("Choose either --otsu or --percentile");
+    }
+    if (lowRatio < 0 || lowRatio > 1) {
+      throw new IllegalArgumentException("--low-ratio must be between 0 and 1");
+    }
+
+    if (otsu) {
+      settings.setOtsuThresholds(lowRatio);
+    }
+    else if (percentile >= 0) {
+      if (percentile > 1) {
+        throw new IllegalArgumentException("--percentile must be between 0 and 1");
+      }
+      settings.setPercentileThresholds(percentile, lowRatio);
+    }
+    else {
+      settings.setThresholds(low, high);
+    }
+  }
+
+  /**
+   * Sets the output format from its name.
+   * @param name The name of the format.
+   */
+  private void setFormat(String name) {
+    if (name.equals("tiff") || name.equals("tif")) {
+      format = ImageFormat.IMAGE_FORMAT_TIFF;
+      extension = "tiff";
+    }
+    else if (name.equals("png")) {
+      format = ImageFormat.IMAGE_FORMAT_PNG;
+      extension = "png";
+    }
+    else if (name.equals("bmp")) {
+      format = ImageFormat.IMAGE_FORMAT_BMP;
+      extension = "bmp";
+    }
+    else if (name.equals("gif")) {
+      format = ImageFormat.IMAGE_FORMAT_GIF;
+      extension = "gif";
+    }
+    else if (name.equals("pnm") || name.equals("pgm")) {
+      format = ImageFormat.IMAGE_FORMAT_PNM;
+      extension = "pgm";
+    }
+    else if (name.equals("raw")) {
+      format = null;
+      extension = "pgm";
+    }
+    else {
+      throw new IllegalArgumentException("Unknown format " + name);
+    }
+  }
+
+  /**
+   * Sets the border policy of the settings from its name.
+   * @param name zero, replicate, reflect, or wrap.
+   * @throws IllegalArgumentException If the name is not one of these.
+   */
+  private void setBorder(String name) {
+    if (name.equals("zero")) {
+      settings.setBorder(Convolution.BORDER_ZERO);
+    }
+    else if (name.equals("replicate")) {
+      settings.setBorder(Convolution.BORDER_REPLICATE);
+    }
+    else if (name.equals("reflect")) {
+      settings.setBorder(Convolution.BORDER_REFLECT);
+    }
+    else if (name.equals("wrap")) {
+      settings.setBorder(Convolution.BORDER_WRAP);
+    }
+    else {
+      throw new IllegalArgumentException("Unknown border " + name);
+    }
+  }
+
+  /**
+   * Expands the inputs into a list of image files.
+   * @param names The list to add the path of each image relative to the input it was found through to.
+   * @return The image files, in the order they were found.
+   * @throws IOException If a directory could not be searched.
+   */
+  private List<File> findImages(List<String> names) throws IOException {
+    List<File> files = new ArrayList<File>();
+    for (String input : inputs) {
+      File file = new File(input);
+      if (file.isFile()) {
+        files.add(file);
+        names.add(file.getName());
+      }
+      else if (file.isDirectory()) {
+        addMatches(file.toPath(), null, files, names);
+      }
+      else if (isGlob(input)) {
+        // Search from the deepest directory that does not contain a wildcard.
+        String prefix = input.substring(0, firstWildcard(input));
+        int slash = Math.max(prefix.lastIndexOf('/'), prefix.lastIndexOf(File.separatorChar));
+        Path root = Paths.get(slash < 0 ? "." : (slash == 0 ? "/" : prefix.substring(0, slash)));
+        String pattern = slash < 0 ? root.resolve(input).toString() : input;
+        addMatches(root, FileSystems.getDefault().getPathMatcher("glob:" + pattern), files, names);
+      }
+      else {
+        throw new IOException("No such file or directory: " + input);
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Adds the regular files under a directory that match a pattern.
+   * @param root The directory to search.
+   * @param matcher The pattern that files must match, or null to add every file.
+   * @param files The list to add files to.
+   * @param names The list to add the path of each file relative to the directory to.
+   * @throws IOException If the directory could not be searched.
+   */
+  private static void addMatches(final Path root, final PathMatcher matcher, final List<File> files,
+                                 final List<String> names) throws IOException {
+    if (!Files.isDirectory(root)) {
+      return;
+    }
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+        if (attributes.isRegularFile() && (matcher == null || matcher.matches(file))) {
+          files.add(file.toFile());
+          names.add(root.relativize(file).toString());
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Returns whether an input contains glob wildcards.
+   * @param input The input.
+   * @return true if the input is a glob pattern, false otherwise.
+   */
+  private static boolean isGlob(String input) {
+    return firstWildcard(input) < input.length();
+  }
+
+  /**
+   * Returns the index of the first glob wildcard in an input.
+   * @param input The input.
+   * @return The index of the first wildcard, or the length of the input if there are none.
+   */
+  private static int firstWildcard(String input) {
+    for (int i = 0; i < input.length(); i++) {
+      if ("*?[{".indexOf(input.charAt(i)) >= 0) {
+        return i;
+      }
+    }
+    return input.length();
+  }
+
+  /**
+   * Runs edge detection over every input image and prints a summary.
+   * @return The number of images that failed.
+   * @throws IOException If the inputs could not be searched, two inputs would be written to the same output, or the
+   *                     output directory could not be created.
+   * @throws InterruptedException If interrupted while waiting for the images to finish.
+   */
+  private int run() throws IOException, InterruptedException {
+    List<String> names = new ArrayList<String>();
+    List<File> files = findImages(names);
+    // Inputs that only differ in their extension, or that were given more than once, would overwrite each other.
+    Map<String, File> outputs = new HashMap<String, File>();
+    for (int i = 0; i < files.size(); i++) {
+      String output = getOutputName(names.get(i));
+      File other = outputs.put(output, files.get(i));
+      if (other != null) {
+        throw new IOException(other + " and " + files.get(i) + " would both be written to " +
+            new File(outputDirectory, output) + "_<sigma>." + extension);
+      }
+    }
+    if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+      throw new IOException("Could not create output directory " + outputDirectory);
+    }
+
+    ioPool = Executors.newFixedThreadPool(ioThreads);
+    computePool = Executors.newFixedThreadPool(computeThreads);
+    // Allow enough images in flight to keep every compute thread busy while others are being read and written.
+    inFlight = new Semaphore(2 * computeThreads);
+    remaining = new CountDownLatch(files.size());
+    latencies = new long[files.size()];
+
+    long start = System.nanoTime();
+    try {
+      for (int i = 0; i < files.size(); i++) {
+        inFlight.acquire();
+        ioPool.execute(new ReadTask(files.get(i), getOutputName(names.get(i))));
+      }
+      remaining.await();
+    }
+    finally {
+      ioPool.shutdown();
+      computePool.shutdown();
+    }
+    long elapsed = System.nanoTime() - start;
+
+    printSummary(files.size(), elapsed);
+    return failed.get();
+  }
+
+  /**
+   * Prints the throughput and latency of the batch.
+   * @param images The number of images in the batch.
+   * @param elapsed The time in nanoseconds that the whole batch took.
+   */
+  private void printSummary(int images, long elapsed) {
+    int count = succeeded.get();
+    long[] sorted = Arrays.copyOf(latencies, count);
+    Arrays.sort(sorted);
+
+    double seconds = elapsed / 1e9;
+    System.out.printf("%d images (%d failed) in %.2f s, %.1f images/sec%n",
+        images, failed.get(), seconds, seconds == 0 ? 0 : count / seconds);
+    if (count > 0) {
+      System.out.printf("latency p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+          percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6, sorted[count - 1] / 1e6);
+    }
+    if (metrics != null) {
+      System.out.print(metrics);
+    }
+  }
+
+  /**
+   * Returns a percentile of sorted values, using the nearest rank.
+   * @param sorted The values, in increasing order. Must not be empty.
+   * @param fraction The percentile, from 0 to 1.
+   * @return The value at the percentile.
+   */
+  private static long percentile(long[] sorted, double fraction) {
+    int rank = (int) Math.ceil(fraction * sorted.length);
+    return sorted[Math.max(0, rank - 1)];
+  }
+
+  /**
+   * Records that an image has finished.
+   * @param file The image file.
+   * @param start The time that the image started being read, from System.nanoTime().
+   * @param error The reason the image failed, or null if it succeeded.
+   */
+  private void finish(File file, long start, Throwable error) {
+    if (error == null) {
+      latencies[succeeded.getAndIncrement()] = System.nanoTime() - start;
+    }
+    else {
+      failed.incrementAndGet();
+      System.err.println("Could not process " + file + ": " + error);
+    }
+    inFlight.release();
+    remaining.countDown();
+  }
+
+  /**
+   * Returns the path of the output images of an input image, relative to the output directory and without the sigma
+   * and extension.
+   * @param name The path of the input image relative to the input it was found through.
+   * @return The path of its output images.
+   */
+  private static String getOutputName(String name) {
+    int dot = name.lastIndexOf('.');
+    if (dot > Math.max(name.lastIndexOf('/'), name.lastIndexOf(File.separatorChar)) + 1) {
+      name = name.substring(0, dot);
+    }
+    return name;
+  }
+
+  /**
+   * Returns the output image of an input image at one sigma, creating the directories it goes in.
+   * @param name The path of the output images, as given by getOutputName.
+   * @param sigma The sigma the edges were found at.
+   * @return The output file.
+   * @throws IOException If the directory of the output file could not be created.
+   */
+  private File getOutputFile(String name, double sigma) throws IOException {
+    File output = new File(outputDirectory, name + "_" + sigma + "." + extension);
+    File directory = output.getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+      throw new IOException("Could not create output directory " + directory);
+    }
+    return output;
+  }
+
+  /**
+   * Reads an 8-bit binary PGM image through a memory-mapped file, without a decoder.
+   * @param file The image to read.
+   * @return The image, or null if it is not an 8-bit binary PGM image, in which case it is left to Apache Commons
+   *         Imaging.
+   */
+  private static BufferedImage readRawImage(File file) {
+    if (!MappedImageFile.isRawImage(file)) {
+      return null;
+    }
+    try {
+      GrayscaleImage image = MappedImageFile.read(file);
+      return image.getType() == GrayscaleImage.TYPE_BYTE ? image.toBufferedImage() : null;
+    }
+    catch (IOException e) {
+      // Such as a plain (P2) PGM image, which Apache Commons Imaging can still read.
+      return null;
+    }
+  }
+
+  /**
+   * Reads an image on the I/O pool and passes it to the compute pool.
+   * Each task finishes its image when it fails, whatever it throws, so that every image is counted down exactly once.
+   */
+  private class ReadTask implements Runnable {
+    private File file;
+    private String name;
+
+    ReadTask(File file, String name) {
+      this.file = file;
+      this.name = name;
+    }
+
+    @Override
+    public void run() {
+      long start = System.nanoTime();
+      try {
+        BufferedImage image = readRawImage(file);
+        if (image == null) {
+          image = Imaging.getBufferedImage(file);
+        }
+        if (image == null) {
+          throw new IOException("Unsupported image format");
+        }
+        computePool.execute(new DetectTask(file, name, start, new EditableImage(image)));
+      }
+      catch (Throwable e) {
+        finish(file, start, e);
+      }
+    }
+  }
+
+  /**
+   * Runs edge detection at every sigma on the compute pool and passes the edge images to the I/O pool.
+   */
+  private class DetectTask implements Runnable {
+    private File file;
+    private String name;
+    private long start;
+    private EditableImage image;
+
+    DetectTask(File file, String name, long start, EditableImage image) {
+      this.file = file;
+      this.name = name;
+      this.start = start;
+      this.image = image;
+    }
+
+    @Override
+    public void run() {
+      try {
+        CannyScaleSpace scaleSpace = new CannyScaleSpace(image, settings, sigmas);
+        EditableImage[] edges = new EditableImage[sigmas.length];
+        for (int i = 0; i < sigmas.length; i++) {
+          edges[i] = scaleSpace.getDetector(sigmas[i]).getImage(CannyEdgeDetector.IMAGE_HYSTERESIS);
+        }
+        ioPool.execute(new WriteTask(file, name, start, edges));
+      }
+      catch (Throwable e) {
+        finish(file, start, e);
+      }
+    }
+  }
+
+  /**
+   * Writes the edge images of one input image on the I/O pool.
+   */
+  private class WriteTask implements Runnable {
+    private File file;
+    private String name;
+    private long start;
+    private EditableImage[] edges;
+
+    WriteTask(File file, String name, long start, EditableImage[] edges) {
+      this.file = file;
+      this.name = name;
+      this.start = start;
+      this.edges = edges;
+    }
+
+    @Override
+    public void run() {
+      Throwable error = null;
+      try {
+        for (int i = 0; i < sigmas.length; i++) {
+          if (format == null) {
+            MappedImageFile.write(edges[i].getGrayscaleImage(), getOutputFile(name, sigmas[i]));
+          }
+          else {
+            edges[i].writeImage(getOutputFile(name, sigmas[i]), format);
+          }
+        }
+      }
+      catch (Throwable e) {
+        error = e;
+      }
+      finish(file, start, error);
+    }
+  }
+
+  /**
+   * Runs the batch from the command line. Exits with status 1 if any image failed, or 2 if the arguments are wrong.
+   * @param args The options and inputs. See USAGE.
+   */
+  public static void main(String[] args) {
+    CannyBatchRunner runner;
+    try {
+      runner = new CannyBatchRunner(args);
+    }
+    catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+      return;
+    }
+
+    try {
+      if (runner.run() > 0) {
+        System.exit(1);
+      }
+    }
+    catch (IOException e) {
+      System.err.println(e.getMessage());
+      System.exit(2);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      System.exit(1);
+    }
+  }
+}
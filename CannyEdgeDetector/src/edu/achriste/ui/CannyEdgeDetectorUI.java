@@ -1,10 +1,14 @@
 package edu.achriste.ui;
 
+import edu.achriste.image.AsyncImageWriter;
 import edu.achriste.image.CannyEdgeDetector;
+import edu.achriste.image.CannyScaleSpace;
+import edu.achriste.image.CannySettings;
 import edu.achriste.image.EditableImage;
 
 import javax.swing.JFrame;
 import javax.swing.JList;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 import javax.swing.JTextField;
@@ -14,6 +18,7 @@ import javax.swing.event.ListSelectionListener;
 import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.io.File;
+import java.io.IOException;
 
 /**
  * User interface to display images and allow switching between images.
@@ -23,6 +28,18 @@ import java.io.File;
 public class CannyEdgeDetectorUI extends JPanel implements ListSelectionListener {
   private static final long serialVersionUID = 7202334436935353130L;
 
+  // The images written for each sigma, and the names of their files.
+  private static final int[] WRITTEN_IMAGES = {
+      CannyEdgeDetector.IMAGE_GAUSSIAN, CannyEdgeDetector.IMAGE_GRADIENT_X_NORM, CannyEdgeDetector.IMAGE_GRADIENT_Y_NORM,
+      CannyEdgeDetector.IMAGE_GRADIENT_STRENGTH_NORM, CannyEdgeDetector.IMAGE_NON_MAXIMUM_SUPPRESSION,
+      CannyEdgeDetector.IMAGE_HIGH_THRESHOLD, CannyEdgeDetector.IMAGE_BETWEEN_THRESHOLD,
+      CannyEdgeDetector.IMAGE_HYSTERESIS
+  };
+  private static final String[] WRITTEN_NAMES = {
+      "0_gaussian", "1_gradient_x_norm", "2_gradient_y_norm", "3_gradient_strength_norm", "4_non_maximum_suppression",
+      "5_high_threshold", "6_between_thresholds", "7_final_hysteresis"
+  };
+
   // User interface components
   private ImagePanel imagePanel;
   private JList<String> optionsList;
@@ -87,9 +104,10 @@ public class CannyEdgeDetectorUI extends JPanel implements ListSelectionListener
     this.add(optionsPanel, BorderLayout.WEST);
 
     // Do computations
-    cannyEdgeDetector15 = new CannyEdgeDetector(originalImage, 1.5);
-    cannyEdgeDetector25 = new CannyEdgeDetector(originalImage, 2.5);
-    cannyEdgeDetector35 = new CannyEdgeDetector(originalImage, 3.5);
+    CannyScaleSpace scaleSpace = new CannyScaleSpace(originalImage, new CannySettings(1.5), 1.5, 2.5, 3.5);
+    cannyEdgeDetector15 = scaleSpace.getDetector(1.5);
+    cannyEdgeDetector25 = scaleSpace.getDetector(2.5);
+    cannyEdgeDetector35 = scaleSpace.getDetector(3.5);
     writeImages();
   }
 
@@ -186,35 +204,48 @@ public class CannyEdgeDetectorUI extends JPanel implements ListSelectionListener
 
   /**
    * Write all computed images to a file.
+   * Images are rendered on this thread and encoded on a pool of writer threads while the next ones are rendered. If any
+   * image could not be written, the number of failures and the first reason are shown to the user.
    */
   private void writeImages() {
-    originalImage.writeImage("images/original.tiff");
-    cannyEdgeDetector15.getImage(CannyEdgeDetector.IMAGE_GAUSSIAN).writeImage("images/1.5/0_gaussian.tiff");
-    cannyEdgeDetector15.getImage(CannyEdgeDetector.IMAGE_GRADIENT_X_NORM).writeImage("images/1.5/1_gradient_x_norm.tiff");
-    cannyEdgeDetector15.getImage(CannyEdgeDetector.IMAGE_GRADIENT_Y_NORM).writeImage("images/1.5/2_gradient_y_norm.tiff");
-    cannyEdgeDetector15.getImage(CannyEdgeDetector.IMAGE_GRADIENT_STRENGTH_NORM).writeImage("images/1.5/3_gradient_strength_norm.tiff");
-    cannyEdgeDetector15.getImage(CannyEdgeDetector.IMAGE_NON_MAXIMUM_SUPPRESSION).writeImage("images/1.5/4_non_maximum_suppression.tiff");
-    cannyEdgeDetector15.getImage(CannyEdgeDetector.IMAGE_HIGH_THRESHOLD).writeImage("images/1.5/5_high_threshold.tiff");
-    cannyEdgeDetector15.getImage(CannyEdgeDetector.IMAGE_BETWEEN_THRESHOLD).writeImage("images/1.5/6_between_thresholds.tiff");
-    cannyEdgeDetector15.getImage(CannyEdgeDetector.IMAGE_HYSTERESIS).writeImage("images/1.5/7_final_hysteresis.tiff");
-
-    cannyEdgeDetector25.getImage(CannyEdgeDetector.IMAGE_GAUSSIAN).writeImage("images/2.5/0_gaussian.tiff");
-    cannyEdgeDetector25.getImage(CannyEdgeDetector.IMAGE_GRADIENT_X_NORM).writeImage("images/2.5/1_gradient_x_norm.tiff");
-    cannyEdgeDetector25.getImage(CannyEdgeDetector.IMAGE_GRADIENT_Y_NORM).writeImage("images/2.5/2_gradient_y_norm.tiff");
-    cannyEdgeDetector25.getImage(CannyEdgeDetector.IMAGE_GRADIENT_STRENGTH_NORM).writeImage("images/2.5/3_gradient_strength_norm.tiff");
-    cannyEdgeDetector25.getImage(CannyEdgeDetector.IMAGE_NON_MAXIMUM_SUPPRESSION).writeImage("images/2.5/4_non_maximum_suppression.tiff");
-    cannyEdgeDetector25.getImage(CannyEdgeDetector.IMAGE_HIGH_THRESHOLD).writeImage("images/2.5/5_high_threshold.tiff");
-    cannyEdgeDetector25.getImage(CannyEdgeDetector.IMAGE_BETWEEN_THRESHOLD).writeImage("images/2.5/6_between_thresholds.tiff");
-    cannyEdgeDetector25.getImage(CannyEdgeDetector.IMAGE_HYSTERESIS).writeImage("images/2.5/7_final_hysteresis.tiff");
-
-    cannyEdgeDetector35.getImage(CannyEdgeDetector.IMAGE_GAUSSIAN).writeImage("images/3.5/0_gaussian.tiff");
-    cannyEdgeDetector35.getImage(CannyEdgeDetector.IMAGE_GRADIENT_X_NORM).writeImage("images/3.5/1_gradient_x_norm.tiff");
-    cannyEdgeDetector35.getImage(CannyEdgeDetector.IMAGE_GRADIENT_Y_NORM).writeImage("images/3.5/2_gradient_y_norm.tiff");
-    cannyEdgeDetector35.getImage(CannyEdgeDetector.IMAGE_GRADIENT_STRENGTH_NORM).writeImage("images/3.5/3_gradient_strength_norm.tiff");
-    cannyEdgeDetector35.getImage(CannyEdgeDetector.IMAGE_NON_MAXIMUM_SUPPRESSION).writeImage("images/3.5/4_non_maximum_suppression.tiff");
-    cannyEdgeDetector35.getImage(CannyEdgeDetector.IMAGE_HIGH_THRESHOLD).writeImage("images/3.5/5_high_threshold.tiff");
-    cannyEdgeDetector35.getImage(CannyEdgeDetector.IMAGE_BETWEEN_THRESHOLD).writeImage("images/3.5/6_between_thresholds.tiff");
-    cannyEdgeDetector35.getImage(CannyEdgeDetector.IMAGE_HYSTERESIS).writeImage("images/3.5/7_final_hysteresis.tiff");
+    int threads = Runtime.getRuntime().availableProcessors();
+    AsyncImageWriter writer = new AsyncImageWriter(threads, 2 * threads);
+    try {
+      try {
+        writer.write(originalImage, "images/original.tiff");
+        writeImages(writer, cannyEdgeDetector15, "images/1.5/");
+        writeImages(writer, cannyEdgeDetector25, "images/2.5/");
+        writeImages(writer, cannyEdgeDetector35, "images/3.5/");
+      }
+      finally {
+        writer.close();
+      }
+    }
+    catch (IOException e) {
+      // Such as "3 of 25 images could not be written", followed by the first reason.
+      String message = e.getMessage();
+      if (e.getCause() != null) {
+        message += "\n" + e.getCause().getMessage();
+      }
+      JOptionPane.showMessageDialog(this, message, "Could not write images", JOptionPane.ERROR_MESSAGE);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Writes every image of one detector to a directory.
+   * @param writer The writer to write with.
+   * @param detector The detector to write the images of.
+   * @param directory The directory to write to, ending with a slash.
+   * @throws InterruptedException If interrupted while waiting for room in the writer.
+   */
+  private void writeImages(AsyncImageWriter writer, CannyEdgeDetector detector, String directory)
+      throws InterruptedException {
+    for (int i = 0; i < WRITTEN_IMAGES.length; i++) {
+      writer.write(detector.getImage(WRITTEN_IMAGES[i]), directory + WRITTEN_NAMES[i] + ".tiff");
+    }
   }
 
   /**
@@ -0,0 +1,118 @@
+package edu.achriste.image;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that the ways of running a CannyEdgeDetector over frames give the same edges as running it once.
+ * @author Anthony Christe
+ */
+public class CannyEdgeDetectorTest {
+  private static final int[] THRESHOLD_MODES = {
+      CannySettings.THRESHOLDS_FIXED, CannySettings.THRESHOLDS_OTSU, CannySettings.THRESHOLDS_PERCENTILE
+  };
+
+  private static final int[] BLURS = {CannySettings.BLUR_KERNEL, CannySettings.BLUR_BOXES};
+
+  // The number of frames run before a bound detector is expected to stop allocating.
+  private static final int WARM_UP_FRAMES = 3;
+
+  private static ForkJoinPool pool;
+
+  @BeforeClass
+  public static void createPool() {
+    pool = new ForkJoinPool(4);
+  }
+
+  @AfterClass
+  public static void shutDownPool() {
+    pool.shutdown();
+  }
+
+  @Test
+  public void pooledMatchesSerial() {
+    float[] frame = TestImages.createFrame(2, 255);
+    for (int thresholdMode : THRESHOLD_MODES) {
+      for (int blur : BLURS) {
+        for (boolean fast : new boolean[] {false, true}) {
+          CannySettings settings = TestImages.createSettings(2.5, thresholdMode).setBlur(blur).setFastGradients(fast);
+          byte[] serial = TestImages.detectEdges(settings, frame);
+          byte[] pooled = TestImages.detectEdges(settings.setPool(pool), frame);
+          assertArrayEquals("thresholds " + thresholdMode + ", blur " + blur + ", fast " + fast, serial, pooled);
+          settings.setPool(null);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void detectChangesMatchesDetect() {
+    int[] borders = {Convolution.BORDER_ZERO, Convolution.BORDER_REPLICATE, Convolution.BORDER_REFLECT};
+    for (int thresholdMode : THRESHOLD_MODES) {
+      for (int border : borders) {
+        for (boolean fast : new boolean[] {false, true}) {
+          CannySettings settings = TestImages.createSettings(2.5, thresholdMode).setBorder(border)
+              .setFastGradients(fast);
+          CannyEdgeDetector detector = new CannyEdgeDetector(TestImages.WIDTH, TestImages.HEIGHT, settings);
+          byte[] edges = new byte[TestImages.WIDTH * TestImages.HEIGHT];
+          float[] frame = TestImages.createFrame(3, 255);
+          for (int f = 0; f < 6; f++) {
+            detector.detectChanges(frame);
+            detector.copyEdges(edges);
+            assertArrayEquals("thresholds " + thresholdMode + ", border " + border + ", fast " + fast + ", frame " + f,
+                TestImages.detectEdges(settings, frame), edges);
+            frame = TestImages.changeFrame(frame, f);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void rethresholdMatchesFreshRun() {
+    float[] frame = TestImages.createFrame(4, 255);
+    double[][] thresholds = {{0.05, 0.2}, {0.2, 0.5}, {0.1, 0.3}};
+    for (ForkJoinPool threads : new ForkJoinPool[] {null, pool}) {
+      CannyEdgeDetector detector = new CannyEdgeDetector(TestImages.WIDTH, TestImages.HEIGHT,
+                                                         new CannySettings(2.5).setPool(threads));
+      detector.detect(frame);
+      byte[] edges = new byte[TestImages.WIDTH * TestImages.HEIGHT];
+      for (double[] pair : thresholds) {
+        detector.rethreshold(pair[0], pair[1]);
+        detector.copyEdges(edges);
+        CannySettings settings = new CannySettings(2.5).setThresholds(pair[0], pair[1]).setPool(threads);
+        assertArrayEquals("thresholds " + pair[0] + " / " + pair[1] + ", pool " + (threads != null),
+            TestImages.detectEdges(settings, frame), edges);
+      }
+    }
+  }
+
+  @Test
+  public void doesNotAllocateAfterWarmUp() {
+    float[][] frames = new float[WARM_UP_FRAMES + 2][];
+    for (int f = 0; f < frames.length; f++) {
+      frames[f] = TestImages.createFrame(f, 255);
+    }
+    byte[] edges = new byte[TestImages.WIDTH * TestImages.HEIGHT];
+
+    for (int thresholdMode : THRESHOLD_MODES) {
+      CannyEdgeDetector detector = new CannyEdgeDetector(TestImages.WIDTH, TestImages.HEIGHT,
+                                                         TestImages.createSettings(1.5, thresholdMode));
+      for (int f = 0; f < frames.length; f++) {
+        detector.detect(frames[f]);
+        detector.copyEdges(edges);
+        assumeTrue("The JVM cannot count allocations", detector.getAllocatedBytes() >= 0);
+        if (f >= WARM_UP_FRAMES) {
+          assertEquals("thresholds " + thresholdMode + ", frame " + f, 0, detector.getAllocatedBytes());
+        }
+      }
+    }
+  }
+}
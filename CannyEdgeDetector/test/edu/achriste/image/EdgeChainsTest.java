@@ -0,0 +1,101 @@
+package edu.achriste.image;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the subpixel positions of edge chains against straight edges whose true position is known.
+ * @author Anthony Christe
+ */
+public class EdgeChainsTest {
+  // Dimensions of the frames, and the margin left out of the measurements so that the frame border has no effect.
+  private static final int SIZE = 64;
+  private static final int MARGIN = 8;
+
+  // The edges are moved off of the pixel grid by this much, so the pixel centers alone are off by up to a third of a
+  // pixel.
+  private static final double SHIFT = 0.3;
+
+  @Test
+  public void refinesStraightEdges() {
+    assertRefined(0);
+    assertRefined(90);
+  }
+
+  @Test
+  public void refinesDiagonalEdges() {
+    assertRefined(45);
+    assertRefined(135);
+  }
+
+  @Test
+  public void refinesEdgesBetweenDirections() {
+    assertRefined(20);
+    assertRefined(30);
+    assertRefined(160);
+  }
+
+  /**
+   * Finds the edge chains of a straight edge shifted either way off of the pixel grid, and checks that the subpixel
+   * positions are on average much closer to the edge than the pixel centers.
+   * @param angle The direction across the edge, in degrees.
+   */
+  private void assertRefined(double angle) {
+    double nx = Math.cos(Math.toRadians(angle));
+    double ny = Math.sin(Math.toRadians(angle));
+    for (double shift : new double[] {SHIFT, -SHIFT}) {
+      double distance = (nx + ny) * (SIZE - 1) / 2 + shift;
+      CannySettings settings = new CannySettings(1.5).setThresholds(0.5, 0.9).setBorder(Convolution.BORDER_REPLICATE);
+      CannyEdgeDetector detector = new CannyEdgeDetector(SIZE, SIZE, settings);
+      detector.detect(createEdge(nx, ny, distance));
+      EdgeChains chains = detector.getEdgeChains(true);
+
+      double pixelError = 0;
+      double subpixelError = 0;
+      int points = 0;
+      for (int p = 0; p < chains.getPointCount(); p++) {
+        int x = chains.getX(p);
+        int y = chains.getY(p);
+        if (x >= MARGIN && y >= MARGIN && x < SIZE - MARGIN && y < SIZE - MARGIN) {
+          pixelError += Math.abs(nx * x + ny * y - distance);
+          subpixelError += Math.abs(nx * chains.getSubpixelX(p) + ny * chains.getSubpixelY(p) - distance);
+          points++;
+        }
+      }
+      String name = "angle " + angle + ", shift " + shift;
+      assertTrue(name + " has no edge", points > 0);
+      assertTrue(name + " is off by " + subpixelError / points + " pixels",
+          subpixelError / points < 0.1 && subpixelError < pixelError / 2);
+    }
+  }
+
+  /**
+   * Returns a frame with a straight, anti-aliased step edge, where each pixel is the average of a grid of samples.
+   * @param nx The x-component of the unit vector across the edge.
+   * @param ny The y-component of the unit vector across the edge.
+   * @param distance The distance of the edge from the origin along that vector, where pixel centers are at whole
+   *                 numbers.
+   * @return The frame, with 40 on one side of the edge and 200 on the other.
+   */
+  private static float[] createEdge(double nx, double ny, double distance) {
+    int samples = 16;
+    float[] frame = new float[SIZE * SIZE];
+    for (int r = 0; r < SIZE; r++) {
+      for (int c = 0; c < SIZE; c++) {
+        int inside = 0;
+        for (int u = 0; u < samples; u++) {
+          for (int v = 0; v < samples; v++) {
+            double x = c - 0.5 + (u + 0.5) / samples;
+            double y = r - 0.5 + (v + 0.5) / samples;
+            if (nx * x + ny * y > distance) {
+              inside++;
+            }
+          }
+        }
+        frame[r * SIZE + c] = (float) (40 + 160.0 * inside / (samples * samples));
+      }
+    }
+    return frame;
+  }
+}
@@ -0,0 +1,139 @@
+package edu.achriste.image;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks both ways of tracing hysteresis against the recursive trace they replaced.
+ * @author Anthony Christe
+ */
+public class HysteresisTest {
+  // Row and column offsets for all 8 neighbors.
+  private static final int[] NEIGHBOR_ROWS = {-1, -1, 0, 1, 1, 1, 0, -1};
+  private static final int[] NEIGHBOR_COLS = {0, 1, 1, 1, 0, -1, -1, -1};
+
+  @Test
+  public void matchesRecursiveTrace() {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      int[][] sizes = {{64, 48}, {1, 40}, {40, 1}, {97, 131}};
+      for (int[] size : sizes) {
+        for (long seed = 0; seed < 5; seed++) {
+          int width = size[0];
+          int height = size[1];
+          byte[] states = createStates(width, height, seed);
+          byte[] expected = states.clone();
+          traceRecursively(expected, width, height);
+
+          byte[] serial = states.clone();
+          Hysteresis.trace(serial, width, height, new IntStack());
+          byte[] banded = states.clone();
+          Hysteresis.trace(banded, width, height, pool);
+
+          String name = width + "x" + height + ", seed " + seed;
+          assertArrayEquals(name + ", serial", expected, serial);
+          assertArrayEquals(name + ", bands", expected, banded);
+        }
+      }
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void tracesChainsTooLongToRecurse() {
+    // A single path that winds through every row of a large plane, with one strong pixel at its end.
+    int width = 1000;
+    int height = 999;
+    byte[] states = new byte[width * height];
+    Arrays.fill(states, CannyEdgeDetector.EDGE_NONE);
+    for (int r = 0; r < height; r += 2) {
+      for (int c = 0; c < width; c++) {
+        states[r * width + c] = CannyEdgeDetector.EDGE_UNVISITED;
+      }
+      if (r + 1 < height) {
+        states[(r + 1) * width + (r % 4 == 0 ? width - 1 : 0)] = CannyEdgeDetector.EDGE_UNVISITED;
+      }
+    }
+    states[(height - 1) * width + width - 1] = CannyEdgeDetector.EDGE_STRONG;
+
+    byte[] expected = states.clone();
+    for (int i = 0; i < expected.length; i++) {
+      if (expected[i] == CannyEdgeDetector.EDGE_UNVISITED) {
+        expected[i] = CannyEdgeDetector.EDGE_WEAK;
+      }
+    }
+    Hysteresis.trace(states, width, height, new IntStack());
+    assertArrayEquals(expected, states);
+  }
+
+  /**
+   * Returns a hysteresis plane as it is before tracing, with scattered strong pixels and blobs of unvisited pixels, so
+   * that there are components with and without strong pixels that reach across band borders.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param seed The seed for the plane.
+   * @return The plane.
+   */
+  private static byte[] createStates(int width, int height, long seed) {
+    Random random = new Random(seed);
+    byte[] states = new byte[width * height];
+    for (int i = 0; i < states.length; i++) {
+      double value = random.nextDouble();
+      if (value < 0.03) {
+        states[i] = CannyEdgeDetector.EDGE_STRONG;
+      }
+      else if (value < 0.45) {
+        states[i] = CannyEdgeDetector.EDGE_UNVISITED;
+      }
+      else {
+        states[i] = CannyEdgeDetector.EDGE_NONE;
+      }
+    }
+    return states;
+  }
+
+  /**
+   * Traces a hysteresis plane the way the detector originally did, by recursing into the neighbors of every strong
+   * pixel. Only usable on planes small enough not to overflow the stack.
+   * @param states The hysteresis plane.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   */
+  private static void traceRecursively(byte[] states, int width, int height) {
+    for (int i = 0; i < states.length; i++) {
+      if (states[i] == CannyEdgeDetector.EDGE_STRONG) {
+        visitNeighbors(states, width, height, i);
+      }
+    }
+    for (int i = 0; i < states.length; i++) {
+      if (states[i] == CannyEdgeDetector.EDGE_UNVISITED) {
+        states[i] = CannyEdgeDetector.EDGE_NONE;
+      }
+    }
+  }
+
+  /**
+   * Marks the unvisited neighbors of a pixel as weak and recurses into them.
+   * @param states The hysteresis plane.
+   * @param width The width of the plane.
+   * @param height The height of the plane.
+   * @param i The index of the pixel.
+   */
+  private static void visitNeighbors(byte[] states, int width, int height, int i) {
+    for (int n = 0; n < NEIGHBOR_ROWS.length; n++) {
+      int r = i / width + NEIGHBOR_ROWS[n];
+      int c = i % width + NEIGHBOR_COLS[n];
+      if (r >= 0 && r < height && c >= 0 && c < width && states[r * width + c] == CannyEdgeDetector.EDGE_UNVISITED) {
+        states[r * width + c] = CannyEdgeDetector.EDGE_WEAK;
+        visitNeighbors(states, width, height, r * width + c);
+      }
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package edu.achriste.image;
+
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the edges of regions against the edges of a full frame run over the same frame.
+ * @author Anthony Christe
+ */
+public class RegionCannyEdgeDetectorTest {
+  private static final int[] BLURS = {CannySettings.BLUR_KERNEL, CannySettings.BLUR_BOXES};
+
+  @Test
+  public void regionsMatchFullFrame() {
+    // Past the frame, these borders continue the image, so no edge runs along the frame border in and out of regions.
+    for (int border : new int[] {Convolution.BORDER_REPLICATE, Convolution.BORDER_REFLECT}) {
+      for (int blur : BLURS) {
+        assertRegions(new CannySettings(2.5).setBorder(border).setBlur(blur), true);
+      }
+    }
+  }
+
+  @Test
+  public void regionsNeverAddEdges() {
+    int[] borders = {Convolution.BORDER_ZERO, Convolution.BORDER_REPLICATE, Convolution.BORDER_REFLECT};
+    for (int border : borders) {
+      for (int blur : BLURS) {
+        for (double sigma : new double[] {1.5, 2.5}) {
+          assertRegions(new CannySettings(sigma).setBorder(border).setBlur(blur), false);
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs random regions, some of them against the sides of the frame, with the strength range of a full frame run,
+   * and compares their edges with those of the full frame.
+   * @param settings The settings to use for edge detection.
+   * @param exact Whether the edges must be the same, or only never have an edge the full frame does not.
+   */
+  private void assertRegions(CannySettings settings, boolean exact) {
+    int width = TestImages.WIDTH;
+    int height = TestImages.HEIGHT;
+    for (long seed = 0; seed < 3; seed++) {
+      float[] frame = TestImages.createFrame(seed, 255);
+      CannyEdgeDetector full = new CannyEdgeDetector(width, height, settings);
+      full.detect(frame);
+      byte[] frameEdges = new byte[width * height];
+      full.copyEdges(frameEdges);
+
+      Random random = new Random(seed);
+      for (int t = 0; t < 20; t++) {
+        int w = 10 + random.nextInt(60);
+        int h = 10 + random.nextInt(50);
+        int x = t % 5 == 0 ? 0 : random.nextInt(width - w);
+        int y = t % 5 == 1 ? height - h : random.nextInt(height - h);
+        RegionCannyEdgeDetector regions = new RegionCannyEdgeDetector(width, height, settings,
+                                                                      new Rectangle(x, y, w, h));
+        regions.setStrengthRange(full.getMinStrength(), full.getMaxStrength());
+        regions.detect(frame);
+        byte[] edges = new byte[w * h];
+        regions.copyEdges(0, edges);
+
+        String name = "sigma " + settings.getSigma() + ", border " + settings.getBorder() + ", blur "
+                      + settings.getBlur() + ", region " + new Rectangle(x, y, w, h);
+        for (int r = 0; r < h; r++) {
+          for (int c = 0; c < w; c++) {
+            byte expected = frameEdges[(y + r) * width + x + c];
+            byte actual = edges[r * w + c];
+            if (exact) {
+              assertEquals(name + " at " + c + ", " + r, expected, actual);
+            }
+            else {
+              assertTrue(name + " adds an edge at " + c + ", " + r, actual == 0 || actual == expected);
+            }
+          }
+        }
+      }
+    }
+  }
+}
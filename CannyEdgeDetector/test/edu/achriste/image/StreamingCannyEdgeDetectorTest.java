@@ -0,0 +1,91 @@
+package edu.achriste.image;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks that the streaming detector gives the same edges as the CannyEdgeDetector.
+ * @author Anthony Christe
+ */
+public class StreamingCannyEdgeDetectorTest {
+  private static final int[] THRESHOLD_MODES = {
+      CannySettings.THRESHOLDS_FIXED, CannySettings.THRESHOLDS_OTSU, CannySettings.THRESHOLDS_PERCENTILE
+  };
+
+  @Test
+  public void matchesInMemoryFor8BitFrames() throws IOException {
+    assertMatchesInMemory(255);
+  }
+
+  @Test
+  public void matchesInMemoryForDarkFrames() throws IOException {
+    assertMatchesInMemory(63);
+  }
+
+  @Test
+  public void matchesInMemoryFor10BitFrames() throws IOException {
+    assertMatchesInMemory(1023);
+  }
+
+  @Test
+  public void matchesInMemoryFor16BitFrames() throws IOException {
+    assertMatchesInMemory(65535);
+  }
+
+  /**
+   * Streams a frame with values up to maxValue through every threshold mode, with and without fast gradients, and
+   * compares the edge map with that of the CannyEdgeDetector.
+   * @param maxValue The largest value of the frame, which is also written as the largest value of the PGM file.
+   * @throws IOException If a temporary file could not be read or written.
+   */
+  private void assertMatchesInMemory(int maxValue) throws IOException {
+    float[] frame = TestImages.createFrame(1, maxValue);
+    File input = File.createTempFile("canny", ".pgm");
+    File output = File.createTempFile("canny", ".edges.pgm");
+    try {
+      TestImages.writePgm(frame, maxValue, input);
+      for (double sigma : new double[] {1.5, 2.5}) {
+        for (int thresholdMode : THRESHOLD_MODES) {
+          for (boolean fast : new boolean[] {false, true}) {
+            CannySettings settings = TestImages.createSettings(sigma, thresholdMode).setFastGradients(fast);
+            new StreamingCannyEdgeDetector(input, output, settings);
+            assertArrayEquals("sigma " + sigma + ", thresholds " + thresholdMode + ", fast " + fast,
+                TestImages.detectEdges(settings, frame), readEdges(output));
+          }
+        }
+      }
+    }
+    finally {
+      input.delete();
+      output.delete();
+    }
+  }
+
+  /**
+   * Reads an 8-bit edge map written by the streaming detector.
+   * @param file The edge map.
+   * @return The edges.
+   * @throws IOException If the file could not be read.
+   */
+  private static byte[] readEdges(File file) throws IOException {
+    PgmReader reader = new PgmReader(file);
+    try {
+      byte[] edges = new byte[reader.getWidth() * reader.getHeight()];
+      float[] row = new float[reader.getWidth()];
+      for (int r = 0; r < reader.getHeight(); r++) {
+        reader.readRow(row);
+        for (int c = 0; c < row.length; c++) {
+          edges[r * row.length + c] = (byte) row[c];
+        }
+      }
+      return edges;
+    }
+    finally {
+      reader.close();
+    }
+  }
+}
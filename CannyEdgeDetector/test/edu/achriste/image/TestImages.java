@@ -0,0 +1,135 @@
+package edu.achriste.image;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Builds the frames used by the tests, so that the tests do not depend on image files or codecs.
+ * @author Anthony Christe
+ */
+class TestImages {
+  // Dimensions of the frames. Large enough for several bands and tiles, small enough to run every setting quickly.
+  static final int WIDTH = 160;
+  static final int HEIGHT = 120;
+
+  /**
+   * Returns a frame of rectangles and discs over a smooth ramp, with noise, so that it has straight, diagonal, and
+   * curved edges as well as chains of weak pixels. Values are whole numbers from 0 to maxValue.
+   * @param seed The seed for the shapes and the noise.
+   * @param maxValue The largest value of the frame, such as 255 for 8-bit frames.
+   * @return The frame, where the value at x, y is stored at y * WIDTH + x.
+   */
+  static float[] createFrame(long seed, int maxValue) {
+    Random random = new Random(seed);
+    double[] levels = new double[WIDTH * HEIGHT];
+    for (int r = 0; r < HEIGHT; r++) {
+      for (int c = 0; c < WIDTH; c++) {
+        levels[r * WIDTH + c] = 40 + 60.0 * c / WIDTH + 30.0 * r / HEIGHT;
+      }
+    }
+
+    for (int shape = 0; shape < 12; shape++) {
+      int x = random.nextInt(WIDTH);
+      int y = random.nextInt(HEIGHT);
+      int size = 8 + random.nextInt(30);
+      double level = 20 + random.nextInt(200);
+      boolean disc = random.nextBoolean();
+      for (int r = Math.max(0, y - size); r < Math.min(HEIGHT, y + size); r++) {
+        for (int c = Math.max(0, x - size); c < Math.min(WIDTH, x + size); c++) {
+          if (!disc || (r - y) * (r - y) + (c - x) * (c - x) < size * size) {
+            levels[r * WIDTH + c] = level;
+          }
+        }
+      }
+    }
+
+    float[] frame = new float[WIDTH * HEIGHT];
+    for (int i = 0; i < frame.length; i++) {
+      double level = Math.max(0, Math.min(255, levels[i] + 12 * random.nextGaussian()));
+      frame[i] = Math.round(level * maxValue / 255);
+    }
+    return frame;
+  }
+
+  /**
+   * Returns a copy of a frame with a rectangle of it changed, as when something moves in front of a fixed camera.
+   * @param frame The frame.
+   * @param seed The seed for the rectangle and its values.
+   * @return The changed copy.
+   */
+  static float[] changeFrame(float[] frame, long seed) {
+    Random random = new Random(seed);
+    float[] changed = frame.clone();
+    int w = 4 + random.nextInt(30);
+    int h = 4 + random.nextInt(30);
+    int x = random.nextInt(WIDTH - w);
+    int y = random.nextInt(HEIGHT - h);
+    float level = random.nextInt(256);
+    for (int r = y; r < y + h; r++) {
+      for (int c = x; c < x + w; c++) {
+        changed[r * WIDTH + c] = level;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Writes a frame to a binary PGM file, with 16-bit values when the largest value is over 255.
+   * @param frame The frame.
+   * @param maxValue The largest value of the frame, written to the header.
+   * @param file The file to write.
+   * @throws IOException If the file could not be written.
+   */
+  static void writePgm(float[] frame, int maxValue, File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeBytes("P5\n" + WIDTH + " " + HEIGHT + "\n" + maxValue + "\n");
+      for (float value : frame) {
+        if (maxValue < 256) {
+          out.writeByte((int) value);
+        }
+        else {
+          out.writeShort((int) value);
+        }
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Runs a detector bound to the frame size over a frame and returns its edges.
+   * @param settings The settings to use for edge detection.
+   * @param frame The frame.
+   * @return The edges, with the same values as IMAGE_HYSTERESIS.
+   */
+  static byte[] detectEdges(CannySettings settings, float[] frame) {
+    CannyEdgeDetector detector = new CannyEdgeDetector(WIDTH, HEIGHT, settings);
+    detector.detect(frame);
+    byte[] edges = new byte[WIDTH * HEIGHT];
+    detector.copyEdges(edges);
+    return edges;
+  }
+
+  /**
+   * Returns settings for one of the ways of choosing the thresholds.
+   * @param sigma The sigma to use for edge detection.
+   * @param thresholdMode One of the THRESHOLDS constants of CannySettings.
+   * @return The settings.
+   */
+  static CannySettings createSettings(double sigma, int thresholdMode) {
+    CannySettings settings = new CannySettings(sigma);
+    if (thresholdMode == CannySettings.THRESHOLDS_OTSU) {
+      settings.setOtsuThresholds(0.4);
+    }
+    else if (thresholdMode == CannySettings.THRESHOLDS_PERCENTILE) {
+      settings.setPercentileThresholds(0.9, 0.4);
+    }
+    return settings;
+  }
+}
@@ -1,5 +1,7 @@
 package edu.achriste.processing;
 
+import edu.achriste.utils.GrayscaleImage;
+import edu.achriste.utils.ImagePool;
 import edu.achriste.utils.ImageUtils;
 
 import java.awt.image.BufferedImage;
@@ -21,16 +23,26 @@ public class ConnectedComponents {
   private final int BACKGROUND = 0;
   private int[][] matrix;
   private int label = 1;
-  private BufferedImage image;
+  private int width;
+  private int height;
 
   /**
    * Initialize this matrix with the given image.
    * @param image The image to find connected componented over.
    */
   public ConnectedComponents(BufferedImage image) {
-    this.image = image;
-    this.matrix = new int[image.getHeight()][image.getWidth()];
-    this.initMatrix();
+    this(GrayscaleImage.fromBufferedImage(image));
+  }
+
+  /**
+   * Initialize this matrix with the given image, where black (0) pixels are foreground.
+   * @param image The image to find connected componented over.
+   */
+  public ConnectedComponents(GrayscaleImage image) {
+    this.width = image.getWidth();
+    this.height = image.getHeight();
+    this.matrix = new int[height][width];
+    this.initMatrix(image);
     this.scan();
   }
 
@@ -44,11 +56,12 @@ public class ConnectedComponents {
 
   /**
    * Make sure all foreground values are set.
+   * @param image The image to find connected componented over.
    */
-  private void initMatrix() {
-    for (int r = 0; r < image.getHeight(); r++) {
-      for (int c = 0; c < image.getWidth(); c++) {
-        if (ImageUtils.isForeground(image, c, r)) {
+  private void initMatrix(GrayscaleImage image) {
+    for (int r = 0; r < height; r++) {
+      for (int c = 0; c < width; c++) {
+        if (image.getGrayscale(c, r) == 0) {
           matrix[r][c] = FOREGROUND;
         }
       }
@@ -130,7 +143,22 @@ public class ConnectedComponents {
    * @return A buffered image from the connected component matrix.
    */
   public BufferedImage getBufferedImage() {
-    BufferedImage bufferedImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+    return getBufferedImage(null);
+  }
+
+  /**
+   * Build a buffered image from the connected component matrix, drawn from an image pool.
+   * @param pool The pool to take the image from, or null to allocate it.
+   * @return A buffered image from the connected component matrix.
+   */
+  public BufferedImage getBufferedImage(ImagePool pool) {
+    BufferedImage bufferedImage;
+    if (pool != null) {
+      bufferedImage = pool.acquire(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+    else {
+      bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
     Map<Integer, Integer> labelsToColors = getLabelsToColors();
 
     for (int r = 0; r < matrix.length; r++) {
@@ -1,5 +1,7 @@
 package edu.achriste.processing;
 
+import edu.achriste.utils.GrayscaleImage;
+import edu.achriste.utils.ImagePool;
 import edu.achriste.utils.ImageUtils;
 
 import java.awt.image.BufferedImage;
@@ -18,46 +20,118 @@ public class Erosion {
    * @return The eroded image.
    */
   public static BufferedImage erode(BufferedImage image, DiskSE disk) {
-    BufferedImage copiedImage = ImageUtils.copyBufferedImage(image);
+    return erode(image, disk, null);
+  }
+
+  /**
+   * Moves the disk structuring element over every pixel in the image and erodes it if all foreground pixels in the
+   * structuring element match foreground pixels in the image. The eroded image is drawn from an image pool.
+   * @param image The image to erode.
+   * @param disk The disk structuring element to use.
+   * @param pool The pool to take the eroded image from, or null to allocate it.
+   * @return The eroded image.
+   */
+  public static BufferedImage erode(BufferedImage image, DiskSE disk, ImagePool pool) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    // The image is read into the top half of a scratch plane and eroded into the bottom half. When there is a pool,
+    // the plane is taken from it as a single image twice as tall as this one.
+    ImagePool.Lease scratch = pool == null ? null : pool.lease(width, 2 * height, BufferedImage.TYPE_BYTE_GRAY);
+    try {
+      byte[] plane = scratch == null ? new byte[2 * width * height] : GrayscaleImage.getPixels(scratch.getImage());
+      GrayscaleImage source = new GrayscaleImage(plane, width, height, 0, width);
+      GrayscaleImage eroded = new GrayscaleImage(plane, width, height, width * height, width);
+      source.read(image);
+      erode(source, disk, eroded);
+
+      // Every pixel is set, so the pixels of the image do not need to be copied first.
+      BufferedImage erodedImage = ImageUtils.createCompatibleImage(image, pool);
+      eroded.copyTo(erodedImage);
+      return erodedImage;
+    }
+    finally {
+      if (scratch != null) {
+        scratch.close();
+      }
+    }
+  }
 
-    for (int r = 0; r < image.getHeight(); r++) {
-      for (int c = 0; c < image.getWidth(); c++) {
+  /**
+   * Moves the disk structuring element over every pixel in the image and erodes it if all foreground pixels in the
+   * structuring element match foreground pixels in the image. Black (0) pixels are foreground.
+   * @param image The image to erode.
+   * @param disk The disk structuring element to use.
+   * @return The eroded image, where foreground pixels are black (0) and background pixels are white (255).
+   */
+  public static GrayscaleImage erode(GrayscaleImage image, DiskSE disk) {
+    return erode(image, disk, new GrayscaleImage(image.getWidth(), image.getHeight(), GrayscaleImage.TYPE_BYTE));
+  }
+
+  /**
+   * Erodes an image into an existing image. Black (0) pixels are foreground.
+   * @param image The image to erode.
+   * @param disk The disk structuring element to use.
+   * @param eroded An image of the same size to store the eroded image in, where foreground pixels are black (0) and
+   *               background pixels are white (255). It must not share pixels with the image being eroded.
+   * @return The eroded image.
+   */
+  public static GrayscaleImage erode(GrayscaleImage image, DiskSE disk, GrayscaleImage eroded) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+
+    // Rows and columns of the foreground pixels in the structuring element, so the background is never looked at.
+    int[] diskRows = new int[disk.getHeight() * disk.getWidth()];
+    int[] diskCols = new int[diskRows.length];
+    int diskSize = 0;
+    for (int r = 0; r < disk.getHeight(); r++) {
+      for (int c = 0; c < disk.getWidth(); c++) {
+        if (disk.get(r, c) == 1) {
+          diskRows[diskSize] = r;
+          diskCols[diskSize] = c;
+          diskSize++;
+        }
+      }
+    }
+
+    for (int r = 0; r < height; r++) {
+      for (int c = 0; c < width; c++) {
         // Structuring element foreground pixels all match image foreground pixels. Set black
-        if (canOrAll(image, disk, r, c)) {
-          copiedImage.setRGB(c, r, ImageUtils.rgbFromGrayscale(0));
+        if (canOrAll(image, diskRows, diskCols, diskSize, r, c)) {
+          eroded.setGrayscale(c, r, 0);
         }
         // Not all pixels match. Set white
         else {
-          copiedImage.setRGB(c, r, ImageUtils.rgbFromGrayscale(255));
+          eroded.setGrayscale(c, r, 255);
         }
       }
     }
-    return copiedImage;
+    return eroded;
   }
 
   /**
    * Checks if all foreground pixels in a disk structuring element match foreground pixels in an image starting at a
    * particular row and column.
    * @param image The image to place the structuring element onto.
-   * @param disk The structuring element.
+   * @param diskRows The row of each foreground pixel in the structuring element.
+   * @param diskCols The column of each foreground pixel in the structuring element.
+   * @param diskSize The number of foreground pixels in the structuring element.
    * @param row The row to place the top left of the structuring element onto.
    * @param col The column to place the top left of the structuring element onto.
    * @return true if all foreground pixels in the structuring element match a foreground pixel in the underlying image,
    *         or false otherwise.
    */
-  private static boolean canOrAll(BufferedImage image, DiskSE disk, int row, int col) {
-    for (int r = 0; r < disk.getHeight(); r++) {
-      for (int c = 0; c < disk.getWidth(); c++) {
-        if (
-                // Make sure we're in bounds
-                (row + r < image.getHeight() && (col + c < image.getWidth())) &&
-                // If disk pixel is foreground
-                disk.get(r, c) == 1 &&
-                // If image pixel is foreground
-                ImageUtils.binaryFromRgb(image.getRGB(c + col, r + row)) != 1
-            ) {
-          return false;
-        }
+  private static boolean canOrAll(GrayscaleImage image, int[] diskRows, int[] diskCols, int diskSize, int row,
+                                  int col) {
+    for (int i = 0; i < diskSize; i++) {
+      int r = row + diskRows[i];
+      int c = col + diskCols[i];
+      if (
+              // Make sure we're in bounds
+              (r < image.getHeight() && c < image.getWidth()) &&
+              // If image pixel is background
+              image.getGrayscale(c, r) != 0
+          ) {
+        return false;
       }
     }
     return true;
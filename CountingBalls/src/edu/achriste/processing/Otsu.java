@@ -1,6 +1,6 @@
 package edu.achriste.processing;
 
-import edu.achriste.utils.ImageUtils;
+import edu.achriste.utils.GrayscaleImage;
 
 import java.awt.image.BufferedImage;
 
@@ -17,6 +17,15 @@ public class Otsu {
    * @return The threshold value from Otsu's Method on the given image.
    */
   public static int otsusMethod(BufferedImage image) {
+    return otsusMethod(GrayscaleImage.fromBufferedImage(image));
+  }
+
+  /**
+   * Perform Otsu's method to find a threshold over a given grayscale image.
+   * @param image The image to perform Otsu's Method on, with gray levels from 0 to 255.
+   * @return The threshold value from Otsu's Method on the given image.
+   */
+  public static int otsusMethod(GrayscaleImage image) {
     double[] histogram = getHistogram(image);
 
     // Group probability less than threshold
@@ -62,14 +71,14 @@ public class Otsu {
    * @return A single dimensional array where each index value corresponds to grayscale value, and the value stored at
    *         that index is the probability of that grayscale value appearing in the image.
    */
-  private static double[] getHistogram(BufferedImage image) {
+  private static double[] getHistogram(GrayscaleImage image) {
     double[] histogram = new double[256];
     long numPixels = image.getHeight() * image.getWidth();
 
     // Calculates the total number of pixels at each grayscale value
-    for (int r = 0; r < image.getWidth(); r++) {
-      for (int c = 0; c < image.getHeight(); c++) {
-        histogram[ImageUtils.grayscaleFromRgb(image.getRGB(c, r))]++;
+    for (int r = 0; r < image.getHeight(); r++) {
+      for (int c = 0; c < image.getWidth(); c++) {
+        histogram[Math.max(0, Math.min(255, image.getGrayscale(c, r)))]++;
       }
     }
 
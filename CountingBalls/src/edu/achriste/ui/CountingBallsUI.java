@@ -4,6 +4,7 @@ import edu.achriste.processing.ConnectedComponents;
 import edu.achriste.processing.DiskSE;
 import edu.achriste.processing.Erosion;
 import edu.achriste.processing.Otsu;
+import edu.achriste.utils.GrayscaleImage;
 import edu.achriste.utils.ImageUtils;
 
 import javax.swing.JFrame;
@@ -102,23 +103,30 @@ public class CountingBallsUI extends JPanel implements ListSelectionListener {
     images.add(ORIGINAL_IMAGE, ImageUtils.readBufferedImage(out));
     messages.add(ORIGINAL_IMAGE, "Original Image");
 
+    // Work on the gray levels directly, and only convert back to BufferedImages for display
+    GrayscaleImage original = GrayscaleImage.fromBufferedImage(images.get(ORIGINAL_IMAGE));
+
     // Perform Otsu's Method
-    int threshold = Otsu.otsusMethod(images.get(ORIGINAL_IMAGE));
-    images.add(BINARY_IMAGE, ImageUtils.makeBinary(images.get(ORIGINAL_IMAGE), threshold));
+    int threshold = Otsu.otsusMethod(original);
+    GrayscaleImage binary = ImageUtils.makeBinary(original, threshold);
+    images.add(BINARY_IMAGE, binary.toBufferedImage());
     messages.add(BINARY_IMAGE, String.format("Binary Image - threshold = %d", threshold));
 
     // Perform erosion
-    images.add(ERODE_4_IMAGE, Erosion.erode(images.get(BINARY_IMAGE), new DiskSE(4)));
-    images.add(ERODE_5_IMAGE, Erosion.erode(images.get(BINARY_IMAGE), new DiskSE(5)));
-    images.add(ERODE_6_IMAGE, Erosion.erode(images.get(BINARY_IMAGE), new DiskSE(6)));
+    GrayscaleImage eroded4 = Erosion.erode(binary, new DiskSE(4));
+    GrayscaleImage eroded5 = Erosion.erode(binary, new DiskSE(5));
+    GrayscaleImage eroded6 = Erosion.erode(binary, new DiskSE(6));
+    images.add(ERODE_4_IMAGE, eroded4.toBufferedImage());
+    images.add(ERODE_5_IMAGE, eroded5.toBufferedImage());
+    images.add(ERODE_6_IMAGE, eroded6.toBufferedImage());
     messages.add(ERODE_4_IMAGE, "Erosion - DiskSE 4");
     messages.add(ERODE_5_IMAGE, "Erosion - DiskSE 5");
     messages.add(ERODE_6_IMAGE, "Erosion - DiskSE 6");
 
     // Perform connected component labeling
-    ConnectedComponents components4 = new ConnectedComponents(images.get(ERODE_4_IMAGE));
-    ConnectedComponents components5 = new ConnectedComponents(images.get(ERODE_5_IMAGE));
-    ConnectedComponents components6 = new ConnectedComponents(images.get(ERODE_6_IMAGE));
+    ConnectedComponents components4 = new ConnectedComponents(eroded4);
+    ConnectedComponents components5 = new ConnectedComponents(eroded5);
+    ConnectedComponents components6 = new ConnectedComponents(eroded6);
     images.add(COMPONENT_4_IMAGE, components4.getBufferedImage());
     images.add(COMPONENT_5_IMAGE, components5.getBufferedImage());
     images.add(COMPONENT_6_IMAGE, components6.getBufferedImage());
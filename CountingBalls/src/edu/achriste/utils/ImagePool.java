@@ -0,0 +1,312 @@
+package edu.achriste.utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A pool of BufferedImages kept for reuse, so that long-running processes do not allocate a new full-frame image for
+ * every result. Images are handed out by size and type, and are returned either with release or by closing the Lease
+ * they were taken with.
+ *
+ * The pool holds at most a given number of bytes of free images. When it holds more, the images of the sizes and types
+ * that were used least recently are dropped first. Images are not cleared when they are reused, so they come back with
+ * whatever their last user left in them. Every method may be called from any thread.
+ * @author Anthony Christe
+ */
+public class ImagePool {
+  /**
+   * The size and type of an image, and the palette or ColorModel of images whose type alone does not say what their
+   * pixels mean.
+   */
+  private static class Key {
+    private int width;
+    private int height;
+    private int type;
+
+    /**
+     * The colors, bits per pixel, and transparent pixel of an indexed image, or null for other images. Every indexed
+     * image has its own IndexColorModel, so indexed images with the same palette are matched by its contents.
+     */
+    private int[] palette;
+
+    /**
+     * The ColorModel of a custom image, or null for other images.
+     */
+    private ColorModel colorModel;
+
+    /**
+     * Creates the key of an image.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param type The type of the image, as given by BufferedImage.
+     * @param colorModel The ColorModel of the image.
+     */
+    private Key(int width, int height, int type, ColorModel colorModel) {
+      this.width = width;
+      this.height = height;
+      this.type = type;
+      // Indexed images are only interchangeable with images of the same palette, and custom images with images of the
+      // very same ColorModel.
+      if (type == BufferedImage.TYPE_BYTE_INDEXED || type == BufferedImage.TYPE_BYTE_BINARY ||
+          (type == BufferedImage.TYPE_CUSTOM && colorModel instanceof IndexColorModel)) {
+        IndexColorModel indexColorModel = (IndexColorModel) colorModel;
+        int size = indexColorModel.getMapSize();
+        palette = new int[size + 2];
+        indexColorModel.getRGBs(palette);
+        palette[size] = indexColorModel.getPixelSize();
+        palette[size + 1] = indexColorModel.getTransparentPixel();
+      }
+      else if (type == BufferedImage.TYPE_CUSTOM) {
+        this.colorModel = colorModel;
+      }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return width == key.width && height == key.height && type == key.type && Arrays.equals(palette, key.palette) &&
+          colorModel == key.colorModel;
+    }
+
+    @Override
+    public int hashCode() {
+      return (((width * 31 + height) * 31 + type) * 31 + Arrays.hashCode(palette)) * 31 +
+          System.identityHashCode(colorModel);
+    }
+  }
+
+  /**
+   * An image taken from the pool, which goes back to the pool when the lease is closed.
+   */
+  public class Lease implements Closeable {
+    private BufferedImage image;
+
+    /**
+     * Creates a lease on an image.
+     * @param image The image.
+     */
+    private Lease(BufferedImage image) {
+      this.image = image;
+    }
+
+    /**
+     * Returns the leased image.
+     * @return The leased image.
+     * @throws IllegalStateException If the lease has been closed.
+     */
+    public BufferedImage getImage() {
+      if (image == null) {
+        throw new IllegalStateException("The lease has been closed");
+      }
+      return image;
+    }
+
+    /**
+     * Returns the image to the pool. Closing a lease again does nothing.
+     */
+    @Override
+    public void close() {
+      if (image != null) {
+        release(image);
+        image = null;
+      }
+    }
+  }
+
+  /**
+   * The free images of each size and type, ordered from the least to the most recently used size and type.
+   */
+  private LinkedHashMap<Key, ArrayDeque<BufferedImage>> free;
+
+  // The most bytes of free images to hold, and how many are held now.
+  private long maxBytes;
+  private long pooledBytes;
+
+  /**
+   * Creates an empty pool.
+   * @param maxBytes The most bytes of free images to hold.
+   */
+  public ImagePool(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("Invalid size " + maxBytes);
+    }
+    this.free = new LinkedHashMap<Key, ArrayDeque<BufferedImage>>(16, 0.75f, true);
+    this.maxBytes = maxBytes;
+    this.pooledBytes = 0;
+  }
+
+  /**
+   * Takes an image of one of the predefined types from the pool, or creates one if there is none.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param type One of the types of BufferedImage, other than TYPE_CUSTOM. TYPE_BYTE_INDEXED and TYPE_BYTE_BINARY
+   *             images come with the default palette of their type.
+   * @return An image of the given size and type.
+   */
+  public BufferedImage acquire(int width, int height, int type) {
+    if (type == BufferedImage.TYPE_CUSTOM) {
+      throw new IllegalArgumentException("Use acquireCompatible for custom images");
+    }
+    ColorModel colorModel = null;
+    if (type == BufferedImage.TYPE_BYTE_INDEXED || type == BufferedImage.TYPE_BYTE_BINARY) {
+      // Every image of these types is created with its own copy of the same default palette.
+      colorModel = new BufferedImage(1, 1, type).getColorModel();
+    }
+    BufferedImage image = take(new Key(width, height, type, colorModel));
+    return image != null ? image : new BufferedImage(width, height, type);
+  }
+
+  /**
+   * Takes an image with the same size, type, and ColorModel as another image from the pool, or creates one if there is
+   * none. The other image is not copied.
+   * @param template The image to match.
+   * @return An image like the template.
+   */
+  public BufferedImage acquireCompatible(BufferedImage template) {
+    int width = template.getWidth();
+    int height = template.getHeight();
+    ColorModel colorModel = template.getColorModel();
+    BufferedImage image = take(new Key(width, height, template.getType(), colorModel));
+    if (image == null) {
+      image = new BufferedImage(colorModel, template.getRaster().createCompatibleWritableRaster(width, height),
+          colorModel.isAlphaPremultiplied(), null);
+    }
+    return image;
+  }
+
+  /**
+   * Takes an image of one of the predefined types from the pool, to be returned by closing the lease.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param type One of the types of BufferedImage, other than TYPE_CUSTOM.
+   * @return A lease on an image of the given size and type.
+   */
+  public Lease lease(int width, int height, int type) {
+    return new Lease(acquire(width, height, type));
+  }
+
+  /**
+   * Takes an image like another image from the pool, to be returned by closing the lease.
+   * @param template The image to match.
+   * @return A lease on an image like the template.
+   */
+  public Lease leaseCompatible(BufferedImage template) {
+    return new Lease(acquireCompatible(template));
+  }
+
+  /**
+   * Returns an image to the pool. The caller must not use the image afterwards. Releasing an image that is already in
+   * the pool does nothing.
+   * @param image An image, usually one taken from this pool. Sub-images cannot be released, since they share their
+   *              pixels with their parent.
+   */
+  public synchronized void release(BufferedImage image) {
+    if (image.getRaster().getParent() != null) {
+      throw new IllegalArgumentException("Cannot release a sub-image");
+    }
+    Key key = new Key(image.getWidth(), image.getHeight(), image.getType(), image.getColorModel());
+    ArrayDeque<BufferedImage> images = free.get(key);
+    if (images == null) {
+      images = new ArrayDeque<BufferedImage>();
+      free.put(key, images);
+    }
+    else if (images.contains(image)) {
+      return;
+    }
+    images.push(image);
+    pooledBytes += getBytes(image);
+    trim();
+  }
+
+  /**
+   * Returns the most bytes of free images the pool holds.
+   * @return The most bytes of free images the pool holds.
+   */
+  public synchronized long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Sets the most bytes of free images the pool holds, dropping the least recently used images if it holds more.
+   * @param maxBytes The most bytes of free images to hold.
+   */
+  public synchronized void setMaxBytes(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("Invalid size " + maxBytes);
+    }
+    this.maxBytes = maxBytes;
+    trim();
+  }
+
+  /**
+   * Returns the bytes of free images the pool holds now.
+   * @return The bytes of free images the pool holds now.
+   */
+  public synchronized long getPooledBytes() {
+    return pooledBytes;
+  }
+
+  /**
+   * Drops every free image.
+   */
+  public synchronized void clear() {
+    free.clear();
+    pooledBytes = 0;
+  }
+
+  /**
+   * Takes the most recently released free image with a key.
+   * @param key The key.
+   * @return The image, or null if there is none.
+   */
+  private synchronized BufferedImage take(Key key) {
+    ArrayDeque<BufferedImage> images = free.get(key);
+    if (images == null) {
+      return null;
+    }
+    BufferedImage image = images.pop();
+    if (images.isEmpty()) {
+      free.remove(key);
+    }
+    pooledBytes -= getBytes(image);
+    return image;
+  }
+
+  /**
+   * Drops free images until the pool holds no more than maxBytes, starting with the least recently used size and type
+   * and, within it, the image released longest ago.
+   */
+  private void trim() {
+    Iterator<Map.Entry<Key, ArrayDeque<BufferedImage>>> entries = free.entrySet().iterator();
+    while (pooledBytes > maxBytes && entries.hasNext()) {
+      ArrayDeque<BufferedImage> images = entries.next().getValue();
+      while (pooledBytes > maxBytes && !images.isEmpty()) {
+        pooledBytes -= getBytes(images.removeLast());
+      }
+      if (images.isEmpty()) {
+        entries.remove();
+      }
+    }
+  }
+
+  /**
+   * Returns the bytes held by the pixels of an image.
+   * @param image The image.
+   * @return The bytes held by its pixels.
+   */
+  private static long getBytes(BufferedImage image) {
+    DataBuffer buffer = image.getRaster().getDataBuffer();
+    return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+  }
+}
@@ -43,6 +43,24 @@ public class ImageUtils {
     return new BufferedImage(colorModel, writeableRaster, isAlphaPremultiplied, null);
   }
 
+  /**
+   * Returns an image of the same size and type as a BufferedImage, without copying its pixels.
+   * @param bufferedImage The BufferedImage to match.
+   * @param pool The pool to take the image from, in which case its pixels are whatever its last user left in them, or
+   *             null to allocate a new black image.
+   * @return An image of the same size and type.
+   */
+  public static BufferedImage createCompatibleImage(BufferedImage bufferedImage, ImagePool pool) {
+    if (pool != null) {
+      return pool.acquireCompatible(bufferedImage);
+    }
+    ColorModel colorModel = bufferedImage.getColorModel();
+    boolean isAlphaPremultiplied = colorModel.isAlphaPremultiplied();
+    WritableRaster writeableRaster = bufferedImage.getRaster().createCompatibleWritableRaster(bufferedImage.getWidth(),
+        bufferedImage.getHeight());
+    return new BufferedImage(colorModel, writeableRaster, isAlphaPremultiplied, null);
+  }
+
   /**
    * Converts an integer rgb value into a grayscale value.
    * The RGB values of grayscale images are the same, so we only need to grab red value to determine the grayscale
@@ -104,18 +122,73 @@ public class ImageUtils {
    * @return A binary image from the given image.
    */
   public static BufferedImage makeBinary(BufferedImage image, int threshold) {
-    BufferedImage copiedImage = copyBufferedImage(image);
+    return makeBinary(image, threshold, null);
+  }
+
+  /**
+   * Returns a binary image of a given image and a given threshold, drawn from an image pool.
+   * All pixels less than the threshold become black and all pixels greater than the threshold become white.
+   * @param image The image to create a binary image from.
+   * @param threshold The threshold value to use for generating this binary image.
+   * @param pool The pool to take the binary image from, or null to allocate it.
+   * @return A binary image from the given image.
+   */
+  public static BufferedImage makeBinary(BufferedImage image, int threshold, ImagePool pool) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    // The gray levels are read and thresholded in place in a scratch plane, taken from the pool if there is one.
+    ImagePool.Lease scratch = pool == null ? null : pool.lease(width, height, BufferedImage.TYPE_BYTE_GRAY);
+    try {
+      byte[] plane = scratch == null ? new byte[width * height] : GrayscaleImage.getPixels(scratch.getImage());
+      GrayscaleImage binary = new GrayscaleImage(plane, width, height, 0, width);
+      binary.read(image);
+      makeBinary(binary, threshold, binary);
 
-    for (int x = 0; x < image.getWidth(); x++) {
-      for (int y = 0; y < image.getHeight(); y++) {
-        if (grayscaleFromRgb(image.getRGB(y, x)) <= threshold) {
-          copiedImage.setRGB(y, x, rgbFromGrayscale(0));
+      // Every pixel is set, so the pixels of the image do not need to be copied first.
+      BufferedImage binaryImage = createCompatibleImage(image, pool);
+      binary.copyTo(binaryImage);
+      return binaryImage;
+    }
+    finally {
+      if (scratch != null) {
+        scratch.close();
+      }
+    }
+  }
+
+  /**
+   * Returns a binary image of a given image and a given threshold.
+   * All pixels less than or equal to the threshold become black (0) and all pixels greater than the threshold become
+   * white (255).
+   * @param image The image to create a binary image from.
+   * @param threshold The threshold value to use for generating this binary image.
+   * @return A new binary image of TYPE_BYTE.
+   */
+  public static GrayscaleImage makeBinary(GrayscaleImage image, int threshold) {
+    return makeBinary(image, threshold, new GrayscaleImage(image.getWidth(), image.getHeight(),
+        GrayscaleImage.TYPE_BYTE));
+  }
+
+  /**
+   * Thresholds an image into an existing binary image.
+   * All pixels less than or equal to the threshold become black (0) and all pixels greater than the threshold become
+   * white (255).
+   * @param image The image to create a binary image from.
+   * @param threshold The threshold value to use for generating this binary image.
+   * @param binary An image of the same size to store the binary image in. It may be the given image itself.
+   * @return The binary image.
+   */
+  public static GrayscaleImage makeBinary(GrayscaleImage image, int threshold, GrayscaleImage binary) {
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        if (image.getGrayscale(x, y) <= threshold) {
+          binary.setGrayscale(x, y, 0);
         } else {
-          copiedImage.setRGB(y, x, rgbFromGrayscale(255));
+          binary.setGrayscale(x, y, 255);
         }
       }
     }
-    return copiedImage;
+    return binary;
   }
 
 
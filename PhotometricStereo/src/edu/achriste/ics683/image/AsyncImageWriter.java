@@ -0,0 +1,224 @@
+package edu.achriste.ics683.image;
+
+import org.apache.commons.imaging.ImageFormat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Encodes and writes images on a pool of threads, so that the thread producing them can go on computing.
+ * At most a given number of writes wait or run at once. Once that many are pending, write blocks until one of them
+ * finishes, so that a fast producer cannot fill memory with images waiting to be written.
+ *
+ * Each write returns a Future that reports whether it failed. flush waits for every pending write and throws the first
+ * failure, and close does the same before stopping the threads. Writes that succeed are forgotten as soon as they
+ * finish, so only the writes still running and those that failed are kept until the next flush.
+ * @author Anthony Christe
+ */
+public class AsyncImageWriter implements Closeable {
+  private ExecutorService pool;
+
+  /**
+   * A permit for each write that may wait or run at once.
+   */
+  private Semaphore capacity;
+
+  /**
+   * The writes submitted since the last flush that are still running or have failed, in the order they were submitted.
+   */
+  private Set<Future<File>> pending;
+
+  /**
+   * The number of writes submitted since the last flush.
+   */
+  private int submitted;
+
+  /**
+   * Whether close has been called. It is set, and checked before each submit, while holding the lock on this writer.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Creates a writer.
+   * @param threads The number of threads that encode and write images.
+   * @param capacity The most writes that may wait or run at once.
+   */
+  public AsyncImageWriter(int threads, int capacity) {
+    if (threads < 1 || capacity < 1) {
+      throw new IllegalArgumentException("Invalid writer of " + threads + " threads and capacity " + capacity);
+    }
+    this.pool = Executors.newFixedThreadPool(threads);
+    this.capacity = new Semaphore(capacity);
+    this.pending = new LinkedHashSet<Future<File>>();
+  }
+
+  /**
+   * Writes an image to a PNG file, in the same format as EditableImage.writeImage(String).
+   * @param image The image to write.
+   * @param fileName The file name and location to write to.
+   * @return A Future giving the file once it has been written.
+   * @throws InterruptedException If interrupted while waiting for room for the write.
+   * @throws IllegalStateException If the writer has been closed.
+   */
+  public Future<File> write(EditableImage image, String fileName) throws InterruptedException {
+    return write(image, new File(fileName), ImageFormat.IMAGE_FORMAT_PNG);
+  }
+
+  /**
+   * Writes an image to a file in the given format. Blocks while the writer is at capacity.
+   * The image is taken as a copy, so the caller may go on changing the image while it is being written. This
+   * EditableImage does not share pixels between copies, so the copy is a full copy of the pixels.
+   * @param image The image to write.
+   * @param file The file to write to.
+   * @param format The image format to write, such as ImageFormat.IMAGE_FORMAT_PNG.
+   * @return A Future giving the file once it has been written, or an ExecutionException caused by the IOException if
+   *         it could not be.
+   * @throws InterruptedException If interrupted while waiting for room for the write.
+   * @throws IllegalStateException If the writer has been closed.
+   */
+  public Future<File> write(EditableImage image, final File file, final ImageFormat format)
+      throws InterruptedException {
+    if (closed) {
+      throw new IllegalStateException("The writer has been closed");
+    }
+    capacity.acquire();
+    final EditableImage snapshot = image.copy();
+
+    FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+      @Override
+      public File call() throws IOException {
+        try {
+          snapshot.writeImage(file, format);
+          return file;
+        }
+        finally {
+          capacity.release();
+        }
+      }
+    }) {
+      @Override
+      protected void done() {
+        forget(this);
+      }
+    };
+
+    // The check and the submit share the lock that close and flush take, so every write that gets past the check is
+    // pending before close flushes. A write that finishes meanwhile cannot be forgotten until the lock is let go.
+    synchronized (this) {
+      if (closed) {
+        // The writer was closed while waiting for room, so the task never runs to give back what it holds.
+        capacity.release();
+        throw new IllegalStateException("The writer has been closed");
+      }
+      pool.execute(task);
+      submitted++;
+      pending.add(task);
+    }
+    return task;
+  }
+
+  /**
+   * Stops keeping a finished write if it succeeded.
+   * @param write The finished write.
+   */
+  private synchronized void forget(Future<File> write) {
+    if (!hasFailed(write)) {
+      pending.remove(write);
+    }
+  }
+
+  /**
+   * Returns whether a finished write failed.
+   * @param write The finished write.
+   * @return true if the write threw, false if it succeeded or was cancelled.
+   */
+  private static boolean hasFailed(Future<File> write) {
+    try {
+      write.get();
+      return false;
+    }
+    catch (CancellationException e) {
+      return false;
+    }
+    catch (ExecutionException e) {
+      return true;
+    }
+    catch (InterruptedException e) {
+      // A finished write does not wait, so this cannot happen.
+      Thread.currentThread().interrupt();
+      return true;
+    }
+  }
+
+  /**
+   * Waits for every write submitted so far to finish.
+   * @throws IOException The first failure among those writes, after all of them have finished.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public void flush() throws IOException, InterruptedException {
+    List<Future<File>> writes;
+    int count;
+    synchronized (this) {
+      writes = new ArrayList<Future<File>>(pending);
+      count = submitted;
+      pending.clear();
+      submitted = 0;
+    }
+
+    IOException failure = null;
+    int failures = 0;
+    for (Future<File> write : writes) {
+      try {
+        write.get();
+      }
+      catch (CancellationException e) {
+        // A cancelled write was never meant to finish.
+      }
+      catch (ExecutionException e) {
+        failures++;
+        if (failure == null) {
+          failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+      }
+    }
+    if (failure != null) {
+      throw new IOException(failures + " of " + count + " images could not be written", failure);
+    }
+  }
+
+  /**
+   * Waits for every pending write to finish and then stops the threads. No more images may be written afterwards.
+   * @throws IOException The first failure among the pending writes, or InterruptedIOException if interrupted while
+   *                     waiting.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      closed = true;
+    }
+    try {
+      flush();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for images to be written");
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package edu.achriste.ics683.image;
 
+import org.apache.commons.imaging.ImageFormat;
 import org.apache.commons.imaging.ImageReadException;
 import org.apache.commons.imaging.ImageWriteException;
 import org.apache.commons.imaging.Imaging;
@@ -98,6 +99,14 @@ public class EditableImage {
     image.setRGB(x, y, rgbFromGrayscale(value));
   }
 
+  /**
+   * Returns the grayscale values (0 - 255) of the whole image as a GrayscaleImage, read in bulk.
+   * @return A new GrayscaleImage of TYPE_BYTE.
+   */
+  public GrayscaleImage getGrayscaleImage() {
+    return GrayscaleImage.fromBufferedImage(image);
+  }
+
   /**
    * Converts a color value in rgb color space to its grayscale equivalent (0 - 255).
    * @param rgb RGB value is rgb color space.
@@ -205,4 +214,19 @@ public class EditableImage {
       e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
     }
   }
+
+  /**
+   * Writes an image to a file in the given format.
+   * Unlike writeImage(String), failures are passed on to the caller.
+   * @param file The file to write to.
+   * @param format The image format to write, such as ImageFormat.IMAGE_FORMAT_PNG.
+   * @throws IOException If the image could not be encoded or written.
+   */
+  public void writeImage(File file, ImageFormat format) throws IOException {
+    try {
+      Imaging.writeImage(image, file, format, null);
+    } catch (ImageWriteException e) {
+      throw new IOException("Could not write image file " + file, e);
+    }
+  }
 }
@@ -0,0 +1,519 @@
+package edu.achriste.ics683.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * A grayscale image stored directly in a plane of bytes, shorts, or floats.
+ * Reading or writing a pixel is a single array access instead of a trip through the ColorModel of a BufferedImage,
+ * and whole images are converted to and from BufferedImages in bulk.
+ *
+ * The value at x, y is stored at index offset + y * stride + x of the plane. The stride may be larger than the width,
+ * so an image can also refer to a window of a larger plane that it shares with other images. Bytes hold gray levels
+ * from 0 to 255 and shorts hold gray levels from 0 to 65535, both unsigned. Floats are used as they are.
+ * @author Anthony Christe
+ */
+public class GrayscaleImage {
+  // Constants for the type of plane an image is stored in.
+  public static final int TYPE_BYTE = 0;
+  public static final int TYPE_SHORT = 1;
+  public static final int TYPE_FLOAT = 2;
+
+  /**
+   * A palette where the index of each color is its gray level, so that images written with it keep their exact levels.
+   */
+  private static final IndexColorModel GRAY_PALETTE = createGrayPalette();
+
+  /**
+   * The number of RGB values in the block of rows that images are read or written through with getRGB or setRGB.
+   * Each call allocates a little inside of Java 2D, so rows are moved a block at a time instead of one at a time.
+   */
+  private static final int BLOCK_SIZE = 1 << 16;
+
+  /**
+   * The gray level of each byte value under the last ColorModel read on each thread, and a block of rows of RGB values
+   * for the images that are read or written through getRGB or setRGB. Frames from the same source usually share their
+   * ColorModel and width, so neither is made again for every frame.
+   */
+  private static final ThreadLocal<Levels> LEVELS = new ThreadLocal<Levels>() {
+    @Override
+    protected Levels initialValue() {
+      return new Levels();
+    }
+  };
+
+  // One of the TYPE constants, and the plane of that type. The other planes are null.
+  private int type;
+  private byte[] bytes;
+  private short[] shorts;
+  private float[] floats;
+
+  // Dimensions of the image, and where it is stored in its plane.
+  private int width;
+  private int height;
+  private int offset;
+  private int stride;
+
+  /**
+   * Creates a black image with its own plane.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param type TYPE_BYTE, TYPE_SHORT, or TYPE_FLOAT.
+   */
+  public GrayscaleImage(int width, int height, int type) {
+    this(type, width, height, 0, width);
+    switch (type) {
+      case TYPE_BYTE:
+        bytes = new byte[width * height];
+        break;
+      case TYPE_SHORT:
+        shorts = new short[width * height];
+        break;
+      case TYPE_FLOAT:
+        floats = new float[width * height];
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown image type " + type);
+    }
+  }
+
+  /**
+   * Creates an image stored in an existing plane of bytes. The plane is shared, not copied.
+   * @param plane The plane.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param offset The index of the top left pixel in the plane.
+   * @param stride The distance in the plane from one row of the image to the next.
+   */
+  public GrayscaleImage(byte[] plane, int width, int height, int offset, int stride) {
+    this(TYPE_BYTE, width, height, offset, stride);
+    checkPlane(plane.length);
+    this.bytes = plane;
+  }
+
+  /**
+   * Creates an image stored in an existing plane of shorts. The plane is shared, not copied.
+   * @param plane The plane.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param offset The index of the top left pixel in the plane.
+   * @param stride The distance in the plane from one row of the image to the next.
+   */
+  public GrayscaleImage(short[] plane, int width, int height, int offset, int stride) {
+    this(TYPE_SHORT, width, height, offset, stride);
+    checkPlane(plane.length);
+    this.shorts = plane;
+  }
+
+  /**
+   * Creates an image stored in an existing plane of floats. The plane is shared, not copied.
+   * @param plane The plane.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param offset The index of the top left pixel in the plane.
+   * @param stride The distance in the plane from one row of the image to the next.
+   */
+  public GrayscaleImage(float[] plane, int width, int height, int offset, int stride) {
+    this(TYPE_FLOAT, width, height, offset, stride);
+    checkPlane(plane.length);
+    this.floats = plane;
+  }
+
+  /**
+   * Sets up the type and layout shared by every way of creating an image.
+   * @param type One of the TYPE constants.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @param offset The index of the top left pixel in the plane.
+   * @param stride The distance in the plane from one row of the image to the next.
+   */
+  private GrayscaleImage(int type, int width, int height, int offset, int stride) {
+    if (width < 0 || height < 0 || offset < 0 || stride < width) {
+      throw new IllegalArgumentException("Invalid layout " + width + "x" + height + ", offset " + offset + ", stride " +
+          stride);
+    }
+    this.type = type;
+    this.width = width;
+    this.height = height;
+    this.offset = offset;
+    this.stride = stride;
+  }
+
+  /**
+   * Makes sure that every pixel of this image is inside of its plane.
+   * @param length The length of the plane.
+   */
+  private void checkPlane(int length) {
+    if (height > 0 && width > 0 && offset + (long) (height - 1) * stride + width > length) {
+      throw new IllegalArgumentException("Plane of " + length + " values is too small for the image");
+    }
+  }
+
+  /**
+   * Creates a byte image from a BufferedImage, with the same gray levels that EditableImage reads from it.
+   * @param image The image to read.
+   * @return A new image of TYPE_BYTE.
+   */
+  public static GrayscaleImage fromBufferedImage(BufferedImage image) {
+    GrayscaleImage gray = new GrayscaleImage(image.getWidth(), image.getHeight(), TYPE_BYTE);
+    gray.read(image);
+    return gray;
+  }
+
+  /**
+   * Returns the pixels of a TYPE_BYTE_GRAY image, such as scratch taken from an image pool, so that they can be used as
+   * the plane of byte images.
+   * @param image A TYPE_BYTE_GRAY image that is not a sub-image.
+   * @return The pixels of the image, where the pixel at x, y is stored at y * width + x.
+   */
+  public static byte[] getPixels(BufferedImage image) {
+    if (image.getType() != BufferedImage.TYPE_BYTE_GRAY || image.getRaster().getParent() != null) {
+      throw new IllegalArgumentException("Expected a TYPE_BYTE_GRAY image that is not a sub-image");
+    }
+    return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+  }
+
+  /**
+   * Reads the gray levels of a BufferedImage of the same size into this image, with the same levels that
+   * fromBufferedImage reads, without allocating a plane for them.
+   * @param image The image to read.
+   * @throws IllegalStateException If this image is not of TYPE_BYTE.
+   */
+  public void read(BufferedImage image) {
+    if (type != TYPE_BYTE) {
+      throw new IllegalStateException("Only byte images can be read from a BufferedImage");
+    }
+    if (image.getWidth() != width || image.getHeight() != height) {
+      throw new IllegalArgumentException("Expected a " + width + "x" + height + " image");
+    }
+    readGrayscale(image, bytes, offset, stride);
+  }
+
+  /**
+   * Writes the gray levels of this image into a BufferedImage of the same size a block of rows at a time, with the
+   * same result as calling setRGB with EditableImage.rgbFromGrayscale for every pixel. Levels are clamped to 0 through
+   * 255.
+   * @param image The image to write to.
+   */
+  public void copyTo(BufferedImage image) {
+    if (image.getWidth() != width || image.getHeight() != height) {
+      throw new IllegalArgumentException("Expected a " + width + "x" + height + " image");
+    }
+    int[] rgb = LEVELS.get().getBlock(width);
+    int blockRows = rgb.length / Math.max(1, width);
+    for (int top = 0; top < height; top += blockRows) {
+      int rows = Math.min(blockRows, height - top);
+      for (int y = 0; y < rows; y++) {
+        for (int x = 0; x < width; x++) {
+          rgb[y * width + x] = EditableImage.rgbFromGrayscale(Math.max(0, Math.min(255, getGrayscale(x, top + y))));
+        }
+      }
+      image.setRGB(0, top, width, rows, rgb, 0, width);
+    }
+  }
+
+  /**
+   * Reads the gray levels of a BufferedImage into a plane of bytes, with the same values as calling
+   * EditableImage.grayscaleFromRgb on every pixel given by getRGB.
+   * Images with one byte per pixel, such as TYPE_BYTE_GRAY and TYPE_BYTE_INDEXED, only go through the ColorModel once
+   * for each of the 256 byte values, and TYPE_INT_RGB and TYPE_INT_ARGB images are read straight from their pixels.
+   * Other images are read through a bulk call to getRGB for each block of rows.
+   * @param image The image to read.
+   * @param levels The plane to store the gray levels in.
+   * @param levelsOffset The index of the top left level in the plane.
+   * @param levelsStride The distance between the starts of two rows in the plane.
+   */
+  private static void readGrayscale(BufferedImage image, byte[] levels, int levelsOffset, int levelsStride) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    WritableRaster raster = image.getRaster();
+    DataBuffer buffer = raster.getDataBuffer();
+    SampleModel model = raster.getSampleModel();
+    int translateX = raster.getSampleModelTranslateX();
+    int translateY = raster.getSampleModelTranslateY();
+
+    if (buffer instanceof DataBufferByte && buffer.getNumBanks() == 1 && model instanceof ComponentSampleModel &&
+        model.getNumBands() == 1) {
+      ComponentSampleModel components = (ComponentSampleModel) model;
+      int pixelStride = components.getPixelStride();
+      byte[] data = ((DataBufferByte) buffer).getData();
+      int[] lookup = LEVELS.get().getLookup(image.getColorModel());
+
+      for (int y = 0; y < height; y++) {
+        int index = buffer.getOffset() + components.getOffset(-translateX, y - translateY);
+        for (int x = 0; x < width; x++) {
+          levels[levelsOffset + y * levelsStride + x] = (byte) lookup[data[index + x * pixelStride] & 0xFF];
+        }
+      }
+    }
+    else if (buffer instanceof DataBufferInt && model instanceof SinglePixelPackedSampleModel &&
+        (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB)) {
+      // The red channel is stored as it is.
+      SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) model;
+      int[] data = ((DataBufferInt) buffer).getData();
+      for (int y = 0; y < height; y++) {
+        int index = buffer.getOffset() + packed.getOffset(-translateX, y - translateY);
+        for (int x = 0; x < width; x++) {
+          levels[levelsOffset + y * levelsStride + x] = (byte) EditableImage.grayscaleFromRgb(data[index + x]);
+        }
+      }
+    }
+    else {
+      int[] rgb = LEVELS.get().getBlock(width);
+      int blockRows = rgb.length / Math.max(1, width);
+      for (int top = 0; top < height; top += blockRows) {
+        int rows = Math.min(blockRows, height - top);
+        image.getRGB(0, top, width, rows, rgb, 0, width);
+        for (int y = 0; y < rows; y++) {
+          int row = levelsOffset + (top + y) * levelsStride;
+          for (int x = 0; x < width; x++) {
+            levels[row + x] = (byte) EditableImage.grayscaleFromRgb(rgb[y * width + x]);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates a BufferedImage from this image, with a palette where each index is its own gray level.
+   * Reading the result with EditableImage or fromBufferedImage gives back the same levels, and writing it to a file
+   * keeps them exactly. Levels are truncated to integers and clamped to 0 through 255.
+   * @return A new image of TYPE_BYTE_INDEXED.
+   */
+  public BufferedImage toBufferedImage() {
+    byte[] data = new byte[width * height];
+    if (type == TYPE_BYTE) {
+      for (int y = 0; y < height; y++) {
+        System.arraycopy(bytes, offset + y * stride, data, y * width, width);
+      }
+    }
+    else {
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          data[y * width + x] = (byte) Math.max(0, Math.min(255, getGrayscale(x, y)));
+        }
+      }
+    }
+
+    WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(data, data.length), width, height, width,
+        1, new int[] {0}, null);
+    return new BufferedImage(GRAY_PALETTE, raster, false, null);
+  }
+
+  /**
+   * The gray level of each byte value under a ColorModel, and a block of rows of RGB values.
+   */
+  private static class Levels {
+    ColorModel colorModel;
+    int[] lookup = new int[256];
+    int[] block = new int[0];
+
+    /**
+     * Returns a block of about BLOCK_SIZE values that holds at least one row of the given width, made again only if
+     * such a row does not fit in the last block.
+     * @param width The width of the rows.
+     * @return The block.
+     */
+    int[] getBlock(int width) {
+      if (block.length < width) {
+        block = new int[Math.max(width, BLOCK_SIZE)];
+      }
+      return block;
+    }
+
+    /**
+     * Returns the gray level of each byte value under a ColorModel, looking them up again if it is not the last one.
+     * @param colorModel The ColorModel of an image with one byte per pixel.
+     * @return The gray level of each of the 256 byte values.
+     */
+    int[] getLookup(ColorModel colorModel) {
+      if (colorModel != this.colorModel) {
+        byte[] pixel = new byte[1];
+        for (int value = 0; value < lookup.length; value++) {
+          pixel[0] = (byte) value;
+          lookup[value] = EditableImage.grayscaleFromRgb(colorModel.getRGB(pixel));
+        }
+        this.colorModel = colorModel;
+      }
+      return lookup;
+    }
+  }
+
+  /**
+   * Creates the palette used by toBufferedImage.
+   * @return A palette of 256 grays.
+   */
+  private static IndexColorModel createGrayPalette() {
+    byte[] levels = new byte[256];
+    for (int i = 0; i < levels.length; i++) {
+      levels[i] = (byte) i;
+    }
+    return new IndexColorModel(8, levels.length, levels, levels, levels);
+  }
+
+  /**
+   * Returns the width of this image.
+   * @return The width of this image.
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Returns the height of this image.
+   * @return The height of this image.
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Returns the type of plane this image is stored in.
+   * @return TYPE_BYTE, TYPE_SHORT, or TYPE_FLOAT.
+   */
+  public int getType() {
+    return type;
+  }
+
+  /**
+   * Returns the index of the top left pixel of this image in its plane.
+   * @return The offset of this image.
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  /**
+   * Returns the distance in the plane from one row of this image to the next.
+   * @return The stride of this image.
+   */
+  public int getStride() {
+    return stride;
+  }
+
+  /**
+   * Returns the plane of a TYPE_BYTE image. The plane is shared with this image.
+   * @return The plane, or null if this image is stored in another type.
+   */
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Returns the plane of a TYPE_SHORT image. The plane is shared with this image.
+   * @return The plane, or null if this image is stored in another type.
+   */
+  public short[] getShorts() {
+    return shorts;
+  }
+
+  /**
+   * Returns the plane of a TYPE_FLOAT image. The plane is shared with this image.
+   * @return The plane, or null if this image is stored in another type.
+   */
+  public float[] getFloats() {
+    return floats;
+  }
+
+  /**
+   * Returns the gray level of the image at the given x and y-coordinates. Float levels are truncated to integers.
+   * @param x The x-coordinate.
+   * @param y The y-coordinate.
+   * @return The gray level.
+   */
+  public int getGrayscale(int x, int y) {
+    int i = offset + y * stride + x;
+    switch (type) {
+      case TYPE_BYTE:
+        return bytes[i] & 0xFF;
+      case TYPE_SHORT:
+        return shorts[i] & 0xFFFF;
+      default:
+        return (int) floats[i];
+    }
+  }
+
+  /**
+   * Sets the gray level of the image at the given x and y-coordinates.
+   * Levels are clamped to the range of byte and short images.
+   * @param x The x-coordinate.
+   * @param y The y-coordinate.
+   * @param value The gray level.
+   */
+  public void setGrayscale(int x, int y, int value) {
+    int i = offset + y * stride + x;
+    switch (type) {
+      case TYPE_BYTE:
+        bytes[i] = (byte) Math.max(0, Math.min(255, value));
+        break;
+      case TYPE_SHORT:
+        shorts[i] = (short) Math.max(0, Math.min(65535, value));
+        break;
+      default:
+        floats[i] = value;
+        break;
+    }
+  }
+
+  /**
+   * Reads the gray levels of the whole image into a row-major plane.
+   * @param plane A plane of at least width * height values, where the value at x, y is stored at y * width + x.
+   * @return The given plane.
+   */
+  public float[] getGrayscalePlane(float[] plane) {
+    for (int y = 0; y < height; y++) {
+      int row = offset + y * stride;
+      switch (type) {
+        case TYPE_BYTE:
+          for (int x = 0; x < width; x++) {
+            plane[y * width + x] = bytes[row + x] & 0xFF;
+          }
+          break;
+        case TYPE_SHORT:
+          for (int x = 0; x < width; x++) {
+            plane[y * width + x] = shorts[row + x] & 0xFFFF;
+          }
+          break;
+        default:
+          System.arraycopy(floats, row, plane, y * width, width);
+          break;
+      }
+    }
+    return plane;
+  }
+
+  /**
+   * Sets the gray levels of the whole image from a row-major plane.
+   * Byte and short images truncate the values to integers and clamp them, while float images store them as they are.
+   * @param plane A plane of width * height values, where the value at x, y is stored at y * width + x.
+   */
+  public void setGrayscalePlane(float[] plane) {
+    for (int y = 0; y < height; y++) {
+      int row = offset + y * stride;
+      switch (type) {
+        case TYPE_BYTE:
+          for (int x = 0; x < width; x++) {
+            bytes[row + x] = (byte) Math.max(0, Math.min(255, (int) plane[y * width + x]));
+          }
+          break;
+        case TYPE_SHORT:
+          for (int x = 0; x < width; x++) {
+            shorts[row + x] = (short) Math.max(0, Math.min(65535, (int) plane[y * width + x]));
+          }
+          break;
+        default:
+          System.arraycopy(plane, y * width, floats, row, width);
+          break;
+      }
+    }
+  }
+}
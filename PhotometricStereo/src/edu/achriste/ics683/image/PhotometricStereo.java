@@ -4,6 +4,7 @@ import Jama.Matrix;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
@@ -21,10 +22,14 @@ public class PhotometricStereo {
   private static final int NORMAL_Z = 2;
 
   public PhotometricStereo(EditableImage[] editableImages, String sourcesPath) {
-    this.matrices = new Matrix[editableImages.length];
+    this(getGrayscaleImages(editableImages), sourcesPath);
+  }
 
-    for(int i = 0; i < editableImages.length; i++) {
-      this.matrices[i] = new Matrix(normalizeIntensities(editableImages[i]));
+  public PhotometricStereo(GrayscaleImage[] images, String sourcesPath) {
+    this.matrices = new Matrix[images.length];
+
+    for(int i = 0; i < images.length; i++) {
+      this.matrices[i] = new Matrix(normalizeIntensities(images[i]));
     }
 
     this.sourceMatrix = getSourceMatrix(sourcesPath);
@@ -131,11 +136,27 @@ public class PhotometricStereo {
       }
     }
 
-    albedos.writeImage("img/out/albedo.png");
-    normalsX.writeImage("img/out/normals-x.png");
-    normalsY.writeImage("img/out/normals-y.png");
-    normalsZ.writeImage("img/out/normals-z.png");
-    heightMapImage.writeImage("img/out/height-map.png");
+    // Encode the images in parallel rather than one after another
+    AsyncImageWriter writer = new AsyncImageWriter(Runtime.getRuntime().availableProcessors(), 5);
+    try {
+      try {
+        writer.write(albedos, "img/out/albedo.png");
+        writer.write(normalsX, "img/out/normals-x.png");
+        writer.write(normalsY, "img/out/normals-y.png");
+        writer.write(normalsZ, "img/out/normals-z.png");
+        writer.write(heightMapImage, "img/out/height-map.png");
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      // Such as "2 of 5 images could not be written", followed by the first reason.
+      System.err.println(e.getMessage());
+      if(e.getCause() != null) {
+        System.err.println(e.getCause().getMessage());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
 
   private Matrix getIntensityMatrix(int r, int c) {
@@ -178,7 +199,18 @@ public class PhotometricStereo {
     return sourceMatrix;
   }
 
-  private double[][] normalizeIntensities(EditableImage image) {
+  private static GrayscaleImage[] getGrayscaleImages(EditableImage[] editableImages) {
+    GrayscaleImage[] images = new GrayscaleImage[editableImages.length];
+
+    // Read each image in bulk once, rather than a pixel at a time through its ColorModel
+    for(int i = 0; i < editableImages.length; i++) {
+      images[i] = editableImages[i].getGrayscaleImage();
+    }
+
+    return images;
+  }
+
+  private double[][] normalizeIntensities(GrayscaleImage image) {
     double[][] normalizedIntensities = new double[image.getHeight()][image.getWidth()];
 
     for(int r = 0; r < image.getHeight(); r++) {